@@ -70,6 +70,11 @@ android {
         buildConfig = true
     }
 
+    testOptions {
+        // The download code logs through android.util.Log
+        unitTests.isReturnDefaultValues = true
+    }
+
     signingConfigs {
         create("release") {
             (keystoreProperties["keyAlias"] as String?)?.let {
@@ -100,6 +105,8 @@ dependencies {
     implementation("androidx.preference:preference-ktx:1.2.1")
     implementation("androidx.recyclerview:recyclerview:1.3.2")
     implementation("com.google.android.material:material:1.12.0")
+
+    testImplementation("junit:junit:4.13.2")
 }
 
 configure<GenerateBpPluginExtension> {
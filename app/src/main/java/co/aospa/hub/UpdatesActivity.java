@@ -66,7 +66,9 @@ import java.util.stream.Stream;
 
 import co.aospa.hub.controller.UpdaterController;
 import co.aospa.hub.controller.UpdaterService;
+import co.aospa.hub.download.ConnectionPool;
 import co.aospa.hub.download.DownloadClient;
+import co.aospa.hub.download.SegmentState;
 import co.aospa.hub.misc.Constants;
 import co.aospa.hub.misc.StringGenerator;
 import co.aospa.hub.misc.Utils;
@@ -122,6 +124,7 @@ public class UpdatesActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_updates);
+        Utils.registerTransports(this);
 
         mBroadcastReceiver = new BroadcastReceiver() {
             @Override
@@ -168,6 +171,8 @@ public class UpdatesActivity extends AppCompatActivity {
         Intent intent = new Intent(this, UpdaterService.class);
         startService(intent);
         bindService(intent, mConnection, Context.BIND_AUTO_CREATE);
+        // Have the connection ready for refreshing the list
+        ConnectionPool.preconnect(Utils.getServerURL(this));
 
         IntentFilter intentFilter = new IntentFilter();
         intentFilter.addAction(UpdaterController.ACTION_UPDATE_STATUS);
@@ -221,7 +226,8 @@ public class UpdatesActivity extends AppCompatActivity {
                 break;
             case "Resume":
                 UpdateInfo update = mUpdaterController.getUpdate(mLatestDownloadId);
-                if (Utils.canInstall(update) || update.getFile().length() == update.getFileSize()) {
+                if (Utils.canInstall(update) ||
+                        SegmentState.getDownloadedBytes(update.getFile()) == update.getFileSize()) {
                     mUpdaterController.resumeDownload(mLatestDownloadId);
                 } else {
                     showSnackbar(R.string.snack_update_not_installable, Snackbar.LENGTH_LONG);
@@ -268,6 +274,7 @@ public class UpdatesActivity extends AppCompatActivity {
             sortedUpdates.sort((u1, u2) -> Long.compare(u2.getTimestamp(), u1.getTimestamp()));
             mLatestDownloadId = sortedUpdates.get(0).getDownloadId();
             updateUI(mLatestDownloadId);
+            controller.preconnect(mLatestDownloadId);
         }
     }
 
@@ -342,6 +349,9 @@ public class UpdatesActivity extends AppCompatActivity {
                     .setUrl(url)
                     .setDestination(jsonFileTmp)
                     .setDownloadCallback(callback)
+                    .setEngine(Utils.getUpdatesListEngine())
+                    .setHedge(Utils.getAlternateServerURL(this),
+                            Utils.getUpdatesListLatency(this))
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -369,6 +379,9 @@ public class UpdatesActivity extends AppCompatActivity {
             case PAUSED_ERROR:
                 showSnackbar(R.string.snack_download_failed, Snackbar.LENGTH_LONG);
                 break;
+            case PAUSED_NO_SPACE:
+                showSnackbar(R.string.snack_download_no_space, Snackbar.LENGTH_LONG);
+                break;
             case VERIFICATION_FAILED:
                 showSnackbar(R.string.snack_download_verification_failed, Snackbar.LENGTH_LONG);
                 break;
@@ -411,7 +424,8 @@ public class UpdatesActivity extends AppCompatActivity {
     private void handleActiveStatus(UpdateInfo update) {
         final String downloadId = update.getDownloadId();
         if (mUpdaterController.isDownloading(downloadId)) {
-            String downloaded = Formatter.formatShortFileSize(this, update.getFile().length());
+            String downloaded = Formatter.formatShortFileSize(this,
+                    SegmentState.getDownloadedBytes(update.getFile()));
             String total = Formatter.formatShortFileSize(this, update.getFileSize());
             String percentage = NumberFormat.getPercentInstance().format(update.getProgress() / 100.f);
             mProgressPercent.setText(percentage);
@@ -435,7 +449,8 @@ public class UpdatesActivity extends AppCompatActivity {
             mProgressBar.setIndeterminate(true);
         } else {
             setUpdateActionButton(Action.RESUME, downloadId, !isBusy());
-            String downloaded = Formatter.formatShortFileSize(this, update.getFile().length());
+            String downloaded = Formatter.formatShortFileSize(this,
+                    SegmentState.getDownloadedBytes(update.getFile()));
             String total = Formatter.formatShortFileSize(this, update.getFileSize());
             String percentage = NumberFormat.getPercentInstance().format(update.getProgress() / 100.f);
             mProgressPercent.setText(percentage);
@@ -54,6 +54,7 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
         if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
             Utils.cleanupDownloadsDir(context);
         }
+        Utils.registerTransports(context);
 
         final SharedPreferences preferences =
                 PreferenceManager.getDefaultSharedPreferences(context);
@@ -114,6 +115,9 @@ public class UpdatesCheckReceiver extends BroadcastReceiver {
                     .setUrl(url)
                     .setDestination(jsonNew)
                     .setDownloadCallback(callback)
+                    .setEngine(Utils.getUpdatesListEngine())
+                    .setHedge(Utils.getAlternateServerURL(context),
+                            Utils.getUpdatesListLatency(context))
                     .build();
             downloadClient.start();
         } catch (IOException e) {
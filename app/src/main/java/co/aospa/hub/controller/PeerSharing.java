@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.controller;
+
+import android.content.Context;
+import android.net.nsd.NsdManager;
+import android.net.nsd.NsdServiceInfo;
+import android.util.Log;
+
+import co.aospa.hub.download.PeerServer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Share the verified package with the other devices of the local network,
+ * and find the ones sharing the package being downloaded. Every device
+ * serves its package with a PeerServer and advertises it through network
+ * service discovery, the download ID in the TXT record.
+ */
+class PeerSharing {
+
+    private static final String TAG = "PeerSharing";
+
+    private static final String SERVICE_TYPE = "_aospahub._tcp";
+    private static final String SERVICE_NAME = "ParanoidHub";
+    private static final String ATTRIBUTE_ID = "id";
+
+    // Every peer that doesn't answer costs a connection attempt
+    private static final int MAX_PEERS = 4;
+
+    private final NsdManager mNsdManager;
+    private final PeerServer mServer;
+
+    private int mPort;
+    private String mSharedId;
+    private String mServiceName;
+    private NsdManager.RegistrationListener mRegistrationListener;
+    private NsdManager.DiscoveryListener mDiscoveryListener;
+
+    // Only one service can be resolved at a time
+    private final Deque<NsdServiceInfo> mPendingResolves = new ArrayDeque<>();
+    private boolean mResolving;
+
+    // The URL and download ID of each peer, by service name
+    private final Map<String, String[]> mPeers = new HashMap<>();
+
+    PeerSharing(Context context, PeerServer.PackageProvider provider) {
+        mNsdManager = context.getSystemService(NsdManager.class);
+        mServer = new PeerServer(provider);
+    }
+
+    synchronized void start() {
+        if (mDiscoveryListener != null) {
+            return;
+        }
+        try {
+            mPort = mServer.start(0);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start the peer server", e);
+            return;
+        }
+        mDiscoveryListener = new DiscoveryListener();
+        mNsdManager.discoverServices(SERVICE_TYPE, NsdManager.PROTOCOL_DNS_SD,
+                mDiscoveryListener);
+        if (mSharedId != null) {
+            register();
+        }
+    }
+
+    synchronized void stop() {
+        if (mDiscoveryListener == null) {
+            return;
+        }
+        unregister();
+        try {
+            mNsdManager.stopServiceDiscovery(mDiscoveryListener);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Discovery already stopped", e);
+        }
+        mDiscoveryListener = null;
+        mServer.stop();
+        mPendingResolves.clear();
+        mPeers.clear();
+    }
+
+    /**
+     * Advertise the package with the given download ID, or none if null.
+     */
+    synchronized void share(String downloadId) {
+        if (downloadId == null ? mSharedId == null : downloadId.equals(mSharedId)) {
+            return;
+        }
+        mSharedId = downloadId;
+        if (mDiscoveryListener == null) {
+            return;
+        }
+        unregister();
+        if (downloadId != null) {
+            register();
+        }
+    }
+
+    synchronized String getSharedId() {
+        return mSharedId;
+    }
+
+    /**
+     * @return the URLs of the package on the peers that advertise it
+     */
+    synchronized List<String> getPeerUrls(String downloadId) {
+        List<String> urls = new ArrayList<>();
+        for (String[] peer : mPeers.values()) {
+            if (downloadId.equals(peer[1]) && urls.size() < MAX_PEERS) {
+                urls.add(peer[0]);
+            }
+        }
+        return urls;
+    }
+
+    private void register() {
+        NsdServiceInfo serviceInfo = new NsdServiceInfo();
+        serviceInfo.setServiceName(SERVICE_NAME);
+        serviceInfo.setServiceType(SERVICE_TYPE);
+        serviceInfo.setPort(mPort);
+        serviceInfo.setAttribute(ATTRIBUTE_ID, mSharedId);
+        mRegistrationListener = new RegistrationListener();
+        mNsdManager.registerService(serviceInfo, NsdManager.PROTOCOL_DNS_SD,
+                mRegistrationListener);
+    }
+
+    private void unregister() {
+        if (mRegistrationListener == null) {
+            return;
+        }
+        try {
+            mNsdManager.unregisterService(mRegistrationListener);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Service already unregistered", e);
+        }
+        mRegistrationListener = null;
+        mServiceName = null;
+    }
+
+    private synchronized void resolveNext() {
+        if (mResolving || mDiscoveryListener == null) {
+            return;
+        }
+        NsdServiceInfo serviceInfo = mPendingResolves.poll();
+        if (serviceInfo != null) {
+            mResolving = true;
+            mNsdManager.resolveService(serviceInfo, new ResolveListener());
+        }
+    }
+
+    private synchronized void onResolved(NsdServiceInfo serviceInfo) {
+        mResolving = false;
+        if (serviceInfo != null && serviceInfo.getHost() != null &&
+                !serviceInfo.getServiceName().equals(mServiceName)) {
+            byte[] id = serviceInfo.getAttributes().get(ATTRIBUTE_ID);
+            if (id != null) {
+                String downloadId = new String(id, StandardCharsets.UTF_8);
+                String url = PeerServer.getUrl(serviceInfo.getHost().getHostAddress(),
+                        serviceInfo.getPort(), downloadId);
+                Log.d(TAG, "Found " + downloadId + " at " + url);
+                mPeers.put(serviceInfo.getServiceName(), new String[] { url, downloadId });
+            }
+        }
+        resolveNext();
+    }
+
+    private class RegistrationListener implements NsdManager.RegistrationListener {
+        @Override
+        public void onServiceRegistered(NsdServiceInfo serviceInfo) {
+            synchronized (PeerSharing.this) {
+                // The name is changed if another device already uses it
+                if (mRegistrationListener == this) {
+                    mServiceName = serviceInfo.getServiceName();
+                    mPeers.remove(mServiceName);
+                }
+            }
+            Log.d(TAG, "Sharing as " + serviceInfo.getServiceName());
+        }
+
+        @Override
+        public void onRegistrationFailed(NsdServiceInfo serviceInfo, int errorCode) {
+            Log.e(TAG, "Could not register the service, error " + errorCode);
+        }
+
+        @Override
+        public void onServiceUnregistered(NsdServiceInfo serviceInfo) {
+        }
+
+        @Override
+        public void onUnregistrationFailed(NsdServiceInfo serviceInfo, int errorCode) {
+            Log.e(TAG, "Could not unregister the service, error " + errorCode);
+        }
+    }
+
+    private class DiscoveryListener implements NsdManager.DiscoveryListener {
+        @Override
+        public void onDiscoveryStarted(String serviceType) {
+        }
+
+        @Override
+        public void onServiceFound(NsdServiceInfo serviceInfo) {
+            synchronized (PeerSharing.this) {
+                mPendingResolves.add(serviceInfo);
+            }
+            resolveNext();
+        }
+
+        @Override
+        public void onServiceLost(NsdServiceInfo serviceInfo) {
+            synchronized (PeerSharing.this) {
+                mPeers.remove(serviceInfo.getServiceName());
+            }
+        }
+
+        @Override
+        public void onDiscoveryStopped(String serviceType) {
+        }
+
+        @Override
+        public void onStartDiscoveryFailed(String serviceType, int errorCode) {
+            Log.e(TAG, "Could not discover peers, error " + errorCode);
+        }
+
+        @Override
+        public void onStopDiscoveryFailed(String serviceType, int errorCode) {
+            Log.e(TAG, "Could not stop discovering peers, error " + errorCode);
+        }
+    }
+
+    private class ResolveListener implements NsdManager.ResolveListener {
+        @Override
+        public void onResolveFailed(NsdServiceInfo serviceInfo, int errorCode) {
+            Log.e(TAG, "Could not resolve " + serviceInfo.getServiceName() + ", error " +
+                    errorCode);
+            onResolved(null);
+        }
+
+        @Override
+        public void onServiceResolved(NsdServiceInfo serviceInfo) {
+            onResolved(serviceInfo);
+        }
+    }
+}
@@ -25,6 +25,7 @@ import androidx.preference.PreferenceManager;
 
 import co.aospa.hub.misc.Constants;
 import co.aospa.hub.misc.FileUtils;
+import co.aospa.hub.misc.PageCache;
 import co.aospa.hub.misc.Utils;
 import co.aospa.hub.model.UpdateInfo;
 import co.aospa.hub.model.UpdateStatus;
@@ -134,7 +135,10 @@ class UpdateInstaller {
             public void run() {
                 try {
                     mCanCancel = true;
-                    FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack);
+                    PageCache.Snapshot snapshot = PageCache.snapshot(uncryptFile);
+                    FileUtils.copyFile(update.getFile(), uncryptFile, mProgressCallBack,
+                            Utils.isLowCacheIo(mContext));
+                    snapshot.log("Copy");
                     try {
                         Set<PosixFilePermission> perms = new HashSet<>();
                         perms.add(PosixFilePermission.OWNER_READ);
@@ -18,15 +18,29 @@ package co.aospa.hub.controller;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.database.sqlite.SQLiteDatabase;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.preference.PreferenceManager;
 
 import co.aospa.hub.UpdatesDbHelper;
+import co.aospa.hub.download.ConnectionPool;
 import co.aospa.hub.download.DownloadClient;
+import co.aospa.hub.download.MirrorScoreboard;
+import co.aospa.hub.download.RateLimiter;
+import co.aospa.hub.download.SegmentState;
+import co.aospa.hub.misc.Constants;
+import co.aospa.hub.misc.FileUtils;
+import co.aospa.hub.misc.PageCache;
 import co.aospa.hub.misc.Utils;
 import co.aospa.hub.model.Update;
 import co.aospa.hub.model.UpdateInfo;
@@ -55,6 +69,14 @@ public class UpdaterController {
 
     private static final int MAX_REPORT_INTERVAL_MS = 1000;
 
+    // How often the bandwidth limit is evaluated again during downloads, to
+    // follow network changes and the time of day
+    private static final long BANDWIDTH_CHECK_INTERVAL_MS = 60000;
+
+    // How fast packages are read back to verify them in low cache I/O mode,
+    // so that reclaim can keep up with the pages they fill the cache with
+    private static final long LOW_CACHE_VERIFY_BYTES_PER_MS = 64 * 1024;
+
     private final Context mContext;
     private final LocalBroadcastManager mBroadcastManager;
     private final UpdatesDbHelper mUpdatesDbHelper;
@@ -62,10 +84,24 @@ public class UpdaterController {
     private final PowerManager.WakeLock mWakeLock;
 
     private final File mDownloadRoot;
+    private final MirrorScoreboard mMirrorScoreboard;
+    private final RateLimiter mRateLimiter = new RateLimiter();
+    private final PeerSharing mPeerSharing;
+    private volatile long mLastBandwidthCheck;
 
     private int mActiveDownloads = 0;
     private final Set<String> mVerifyingUpdates = new HashSet<>();
 
+    // The downloads follow the default network from the main thread
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private ConnectivityManager.NetworkCallback mNetworkCallback;
+    private Network mNetwork;
+    private boolean mNetworkMetered;
+    // Downloads stopped to be resumed on the new network
+    private final Set<String> mMigratingDownloads = new HashSet<>();
+    // Downloads waiting for a network they may use
+    private final Set<String> mWaitingDownloads = new HashSet<>();
+
     protected static synchronized UpdaterController getInstance(Context context) {
         if (sUpdaterController == null) {
             sUpdaterController = new UpdaterController(context);
@@ -77,11 +113,14 @@ public class UpdaterController {
         mBroadcastManager = LocalBroadcastManager.getInstance(context);
         mUpdatesDbHelper = new UpdatesDbHelper(context);
         mDownloadRoot = Utils.getDownloadPath(context);
+        mMirrorScoreboard = new MirrorScoreboard(new File(context.getFilesDir(), "mirrors"));
         PowerManager powerManager = context.getSystemService(PowerManager.class);
         mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Updater:wakelock");
         mWakeLock.setReferenceCounted(false);
         mContext = context.getApplicationContext();
+        mPeerSharing = new PeerSharing(mContext, this::getVerifiedPackage);
 
+        Utils.registerTransports(context);
         Utils.cleanupDownloadsDir(context);
 
         for (Update update : mUpdatesDbHelper.getUpdates()) {
@@ -92,6 +131,14 @@ public class UpdaterController {
     private static class DownloadEntry {
         final Update mUpdate;
         DownloadClient mDownloadClient;
+        // Taken by the thread of the download when the server first answers
+        volatile PageCache.Snapshot mPageCache;
+        // Whether the user agreed to download over a metered network
+        boolean mMeteredAllowed;
+        Network mNetwork;
+        // When the download was interrupted by a network change, or 0
+        long mInterruptedMillis;
+        Intent mProgressIntent;
         private DownloadEntry(Update update) {
             mUpdate = update;
         }
@@ -113,11 +160,18 @@ public class UpdaterController {
         mBroadcastManager.sendBroadcast(intent);
     }
 
-    void notifyDownloadProgress(String downloadId) {
-        Intent intent = new Intent();
-        intent.setAction(ACTION_DOWNLOAD_PROGRESS);
-        intent.putExtra(EXTRA_DOWNLOAD_ID, downloadId);
-        mBroadcastManager.sendBroadcast(intent);
+    /**
+     * Notify the progress of the download with an intent made once, since it
+     * changes often.
+     */
+    private void notifyDownloadProgress(DownloadEntry entry) {
+        if (entry.mProgressIntent == null) {
+            Intent intent = new Intent();
+            intent.setAction(ACTION_DOWNLOAD_PROGRESS);
+            intent.putExtra(EXTRA_DOWNLOAD_ID, entry.mUpdate.getDownloadId());
+            entry.mProgressIntent = intent;
+        }
+        mBroadcastManager.sendBroadcast(entry.mProgressIntent);
     }
 
     void notifyInstallProgress(String downloadId) {
@@ -139,6 +193,9 @@ public class UpdaterController {
         }
         entry.mDownloadClient = downloadClient;
         mActiveDownloads++;
+        ConnectivityManager cm = mContext.getSystemService(ConnectivityManager.class);
+        entry.mNetwork = cm.getActiveNetwork();
+        entry.mMeteredAllowed |= cm.isActiveNetworkMetered();
     }
 
     private void removeDownloadClient(DownloadEntry entry) {
@@ -146,6 +203,7 @@ public class UpdaterController {
             return;
         }
         entry.mDownloadClient = null;
+        entry.mPageCache = null;
         mActiveDownloads--;
     }
 
@@ -159,6 +217,9 @@ public class UpdaterController {
                     return;
                 }
                 final Update update = entry.mUpdate;
+                if (entry.mPageCache == null) {
+                    entry.mPageCache = PageCache.snapshot(update.getFile());
+                }
                 String contentLength = headers.get("Content-Length");
                 if (contentLength != null) {
                     try {
@@ -170,6 +231,27 @@ public class UpdaterController {
                         Log.e(TAG, "Could not get content-length");
                     }
                 }
+                // Paused or cancelled meanwhile if null
+                final DownloadClient client = entry.mDownloadClient;
+                if (!reserveSpace(client, update.getFile(), getTotalSize(headers))) {
+                    Log.e(TAG, "Not enough space to download " + downloadId);
+                    if (client != null) {
+                        client.cancel();
+                        removeDownloadClient(entry);
+                    }
+                    if (update.getPersistentStatus() != UpdateStatus.Persistent.INCOMPLETE) {
+                        // Nothing was downloaded yet
+                        deleteUpdateAsync(update);
+                    }
+                    update.setStatus(UpdateStatus.PAUSED_NO_SPACE);
+                    notifyUpdateChange(downloadId);
+                    return;
+                }
+                if (entry.mInterruptedMillis != 0) {
+                    Log.d(TAG, "Recovered " + downloadId + " from a network change in " +
+                            (SystemClock.elapsedRealtime() - entry.mInterruptedMillis) + " ms");
+                    entry.mInterruptedMillis = 0;
+                }
                 update.setStatus(UpdateStatus.DOWNLOADING);
                 update.setPersistentStatus(UpdateStatus.Persistent.INCOMPLETE);
                 new Thread(() -> mUpdatesDbHelper.addUpdateWithOnConflict(update,
@@ -183,9 +265,15 @@ public class UpdaterController {
                 DownloadEntry entry = mDownloads.get(downloadId);
                 if (entry != null) {
                     Update update = entry.mUpdate;
+                    final PageCache.Snapshot snapshot = entry.mPageCache;
+                    if (snapshot != null) {
+                        snapshot.log("Download");
+                    }
                     update.setStatus(UpdateStatus.VERIFYING);
+                    boolean digestVerified = entry.mDownloadClient != null &&
+                            entry.mDownloadClient.isDigestVerified();
                     removeDownloadClient(entry);
-                    verifyUpdateAsync(downloadId);
+                    verifyUpdateAsync(downloadId, digestVerified);
                     notifyUpdateChange(downloadId);
                     tryReleaseWakelock();
                 }
@@ -195,15 +283,26 @@ public class UpdaterController {
             public void onFailure(boolean cancelled) {
                 if (cancelled) {
                     Log.d(TAG, "Download cancelled");
-                    // Already notified
+                    // Already notified, unless stopped to follow the network
+                    mHandler.post(() -> {
+                        if (mMigratingDownloads.remove(downloadId)) {
+                            resumeDownload(downloadId);
+                        }
+                    });
                 } else {
                     DownloadEntry entry = mDownloads.get(downloadId);
                     if (entry != null) {
                         Update update = entry.mUpdate;
                         Log.e(TAG, "Download failed");
+                        Network network = entry.mNetwork;
+                        boolean connectionLost = entry.mDownloadClient != null &&
+                                entry.mDownloadClient.isConnectionLost();
                         removeDownloadClient(entry);
                         update.setStatus(UpdateStatus.PAUSED_ERROR);
                         notifyUpdateChange(downloadId);
+                        if (connectionLost) {
+                            mHandler.post(() -> onConnectionLost(entry, network));
+                        }
                     }
                 }
                 tryReleaseWakelock();
@@ -211,18 +310,67 @@ public class UpdaterController {
         };
     }
 
-    private DownloadClient.ProgressListener getProgressListener(final String downloadId) {
+    /**
+     * @return the size of the whole file the response is part of, or -1
+     */
+    private static long getTotalSize(DownloadClient.Headers headers) {
+        try {
+            String contentRange = headers.get("Content-Range");
+            if (contentRange != null) {
+                // bytes <first>-<last>/<total>
+                int slash = contentRange.lastIndexOf('/');
+                return slash < 0 ? -1 : Long.parseLong(contentRange.substring(slash + 1).trim());
+            }
+            String contentLength = headers.get("Content-Length");
+            return contentLength != null ? Long.parseLong(contentLength) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Preallocate the package if the client keeps a journal of what it
+     * downloaded. The others take the length of the file for it, so only
+     * check that there is enough free space for them.
+     */
+    private static boolean reserveSpace(DownloadClient client, File file, long size) {
+        if (client != null && client.isJournaled()) {
+            return FileUtils.reserveSpace(file, size);
+        }
+        return FileUtils.hasSpaceFor(file, size);
+    }
+
+    /**
+     * Apply the bandwidth limit of the current network and time of day to
+     * all the downloads, including the ongoing ones.
+     */
+    public void updateBandwidthLimit() {
+        mLastBandwidthCheck = SystemClock.elapsedRealtime();
+        long limit = Utils.getBandwidthLimit(mContext);
+        if (limit != mRateLimiter.getRate()) {
+            Log.d(TAG, limit == RateLimiter.UNLIMITED ? "Removing the bandwidth limit" :
+                    "Limiting the bandwidth to " + limit + " B/s");
+            mRateLimiter.setRate(limit);
+        }
+    }
+
+    /**
+     * Get the listener of the progress of a download. It's called for every
+     * read, so it only looks at fields and allocates nothing unless the
+     * progress is to be notified.
+     */
+    private DownloadClient.ProgressListener getProgressListener(final DownloadEntry entry) {
+        final Update update = entry.mUpdate;
         return new DownloadClient.ProgressListener() {
             private long mLastUpdate = 0;
             private int mProgress = 0;
 
             @Override
             public void update(long bytesRead, long contentLength, long speed, long eta) {
-                DownloadEntry entry = mDownloads.get(downloadId);
-                if (entry == null) {
+                if (entry.mDownloadClient == null) {
+                    // Paused, deleted or done
                     return;
                 }
-                Update update = entry.mUpdate;
                 if (contentLength <= 0) {
                     if (update.getFileSize() <= 0) {
                         return;
@@ -234,33 +382,45 @@ public class UpdaterController {
                     return;
                 }
                 final long now = SystemClock.elapsedRealtime();
+                if (now - mLastBandwidthCheck >= BANDWIDTH_CHECK_INTERVAL_MS) {
+                    updateBandwidthLimit();
+                }
                 int progress = Math.round(bytesRead * 100f / contentLength);
-                if (progress != mProgress || mLastUpdate - now > MAX_REPORT_INTERVAL_MS) {
+                if (progress != mProgress || now - mLastUpdate > MAX_REPORT_INTERVAL_MS) {
                     mProgress = progress;
                     mLastUpdate = now;
                     update.setProgress(progress);
                     update.setEta(eta);
                     update.setSpeed(speed);
-                    notifyDownloadProgress(downloadId);
+                    notifyDownloadProgress(entry);
                 }
             }
         };
     }
 
+    /**
+     * @param digestVerified whether the download was already found to match
+     *                       the digest given by the manifest or the server
+     */
     @SuppressLint("SetWorldReadable")
-    private void verifyUpdateAsync(final String downloadId) {
+    private void verifyUpdateAsync(final String downloadId, boolean digestVerified) {
         mVerifyingUpdates.add(downloadId);
         new Thread(() -> {
             DownloadEntry entry = mDownloads.get(downloadId);
             if (entry != null) {
                 Update update = entry.mUpdate;
                 File file = update.getFile();
-                if (file.exists() && verifyPackage(file)) {
+                // A package matching the digest of the manifest is the one that
+                // was published, its signature is checked anyway by the
+                // installer, so don't read it all again just for that
+                if (file.exists() && (digestVerified ||
+                        verifyPackage(file, Utils.isLowCacheIo(mContext)))) {
                     //noinspection ResultOfMethodCallIgnored
                     file.setReadable(true, false);
                     update.setPersistentStatus(UpdateStatus.Persistent.VERIFIED);
                     mUpdatesDbHelper.changeUpdateStatus(update);
                     update.setStatus(UpdateStatus.VERIFIED);
+                    mPeerSharing.share(downloadId);
                 } else {
                     update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
                     mUpdatesDbHelper.removeUpdate(downloadId);
@@ -273,9 +433,31 @@ public class UpdaterController {
         }).start();
     }
 
-    private boolean verifyPackage(File file) {
+    /**
+     * @param lowCacheMode pace the reads instead of streaming the whole
+     *                     package into the page cache as fast as the storage
+     *                     allows, which would push the pages of foreground
+     *                     apps out at once. There is no way to drop the pages
+     *                     read from Java, the kernel has to reclaim them.
+     */
+    private boolean verifyPackage(File file, boolean lowCacheMode) {
         try {
-            android.os.RecoverySystem.verifyPackage(file, null, null);
+            PageCache.Snapshot snapshot = PageCache.snapshot(file);
+            android.os.RecoverySystem.ProgressListener listener = null;
+            if (lowCacheMode) {
+                final long start = SystemClock.elapsedRealtime();
+                final long length = file.length();
+                // Called after every percent of the package is read
+                listener = progress -> {
+                    long due = start + length / 100 * progress / LOW_CACHE_VERIFY_BYTES_PER_MS;
+                    long wait = due - SystemClock.elapsedRealtime();
+                    if (wait > 0) {
+                        SystemClock.sleep(wait);
+                    }
+                };
+            }
+            android.os.RecoverySystem.verifyPackage(file, listener, null);
+            snapshot.log("Verification");
             Log.e(TAG, "Verification successful");
             return true;
         } catch (Exception e) {
@@ -301,7 +483,8 @@ public class UpdaterController {
                 } else if (update.getFileSize() > 0) {
                     update.setStatus(UpdateStatus.PAUSED);
                     int progress = Math.round(
-                            update.getFile().length() * 100f / update.getFileSize());
+                            SegmentState.getDownloadedBytes(update.getFile()) * 100f /
+                                    update.getFileSize());
                     update.setProgress(progress);
                 }
                 break;
@@ -339,6 +522,15 @@ public class UpdaterController {
                 Update updateAdded = entry.mUpdate;
                 updateAdded.setAvailableOnline(availableOnline && updateAdded.getAvailableOnline());
                 updateAdded.setDownloadUrl(updateInfo.getDownloadUrl());
+                if (updateInfo.getChunkHashes() != null) {
+                    updateAdded.setChunkHashes(updateInfo.getChunkHashes());
+                }
+                if (updateInfo.getSha256() != null) {
+                    updateAdded.setSha256(updateInfo.getSha256());
+                }
+                if (updateInfo.getBlockChecksumsUrl() != null) {
+                    updateAdded.setBlockChecksumsUrl(updateInfo.getBlockChecksumsUrl());
+                }
             }
             return false;
         }
@@ -372,14 +564,34 @@ public class UpdaterController {
             Log.d(TAG, "Changing name with " + destination.getName());
         }
         update.setFile(destination);
+        // Reserved once the client saved its journal, from onResponse()
+        if (!FileUtils.hasSpaceFor(destination, update.getFileSize())) {
+            Log.e(TAG, "Not enough space to download " + downloadId);
+            update.setStatus(UpdateStatus.PAUSED_NO_SPACE);
+            notifyUpdateChange(downloadId);
+            return;
+        }
+        updateBandwidthLimit();
         DownloadClient downloadClient;
         try {
             downloadClient = new DownloadClient.Builder()
                     .setUrl(update.getDownloadUrl())
                     .setDestination(update.getFile())
                     .setDownloadCallback(getDownloadCallback(downloadId))
-                    .setProgressListener(getProgressListener(downloadId))
+                    .setProgressListener(getProgressListener(entry))
                     .setUseDuplicateLinks(true)
+                    .setMirrorScoreboard(mMirrorScoreboard)
+                    .setEngine(Utils.getDownloadEngine())
+                    .setLowCacheMode(Utils.isLowCacheIo(mContext))
+                    .setRetryPolicy(Utils.getDownloadRetryPolicy())
+                    .setChunkHashes(update.getChunkHashes())
+                    .setSha256(update.getSha256())
+                    .setRateLimiter(mRateLimiter)
+                    .setBlockReuse(update.getBlockChecksumsUrl(),
+                            Utils.getDownloadPath(mContext))
+                    .setPeers(mPeerSharing.getPeerUrls(downloadId))
+                    .setNetworkPaths(Utils.getNetworkPaths(mContext))
+                    .setSegmented(true)
                     .build();
         } catch (IOException exception) {
             Log.e(TAG, "Could not build download client");
@@ -397,6 +609,7 @@ public class UpdaterController {
     @SuppressLint("WakelockTimeout")
     public void resumeDownload(String downloadId) {
         Log.d(TAG, "Resuming " + downloadId);
+        mWaitingDownloads.remove(downloadId);
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return;
         }
@@ -413,20 +626,34 @@ public class UpdaterController {
             notifyUpdateChange(downloadId);
             return;
         }
-        if (file.exists() && update.getFileSize() > 0 && file.length() >= update.getFileSize()) {
+        if (file.exists() && update.getFileSize() > 0 &&
+                SegmentState.getDownloadedBytes(file) >= update.getFileSize()) {
             Log.d(TAG, "File already downloaded, starting verification");
             update.setStatus(UpdateStatus.VERIFYING);
-            verifyUpdateAsync(downloadId);
+            verifyUpdateAsync(downloadId, false);
             notifyUpdateChange(downloadId);
         } else {
+            updateBandwidthLimit();
             DownloadClient downloadClient;
             try {
                 downloadClient = new DownloadClient.Builder()
                         .setUrl(update.getDownloadUrl())
                         .setDestination(update.getFile())
                         .setDownloadCallback(getDownloadCallback(downloadId))
-                        .setProgressListener(getProgressListener(downloadId))
+                        .setProgressListener(getProgressListener(entry))
                         .setUseDuplicateLinks(true)
+                        .setMirrorScoreboard(mMirrorScoreboard)
+                        .setEngine(Utils.getDownloadEngine())
+                        .setLowCacheMode(Utils.isLowCacheIo(mContext))
+                        .setRetryPolicy(Utils.getDownloadRetryPolicy())
+                        .setChunkHashes(update.getChunkHashes())
+                        .setSha256(update.getSha256())
+                        .setRateLimiter(mRateLimiter)
+                        .setBlockReuse(update.getBlockChecksumsUrl(),
+                                Utils.getDownloadPath(mContext))
+                        .setPeers(mPeerSharing.getPeerUrls(downloadId))
+                        .setNetworkPaths(Utils.getNetworkPaths(mContext))
+                        .setSegmented(true)
                         .build();
             } catch (IOException exception) {
                 Log.e(TAG, "Could not build download client");
@@ -444,6 +671,16 @@ public class UpdaterController {
 
     public void pauseDownload(String downloadId) {
         Log.d(TAG, "Pausing " + downloadId);
+        mWaitingDownloads.remove(downloadId);
+        if (mMigratingDownloads.remove(downloadId)) {
+            // Already stopped, just not resumed yet
+            DownloadEntry entry = mDownloads.get(downloadId);
+            if (entry != null) {
+                entry.mUpdate.setStatus(UpdateStatus.PAUSED);
+                notifyUpdateChange(downloadId);
+            }
+            return;
+        }
         if (!isDownloading(downloadId)) {
             return;
         }
@@ -465,12 +702,15 @@ public class UpdaterController {
             if (file.exists() && !file.delete()) {
                 Log.e(TAG, "Could not delete " + file.getAbsolutePath());
             }
+            SegmentState.delete(file);
             mUpdatesDbHelper.removeUpdate(update.getDownloadId());
         }).start();
     }
 
     public void deleteUpdate(String downloadId) {
         Log.d(TAG, "Cancelling " + downloadId);
+        mWaitingDownloads.remove(downloadId);
+        mMigratingDownloads.remove(downloadId);
         if (!mDownloads.containsKey(downloadId) || isDownloading(downloadId)) {
             return;
         }
@@ -481,6 +721,9 @@ public class UpdaterController {
             update.setProgress(0);
             update.setPersistentStatus(UpdateStatus.Persistent.UNKNOWN);
             deleteUpdateAsync(update);
+            if (downloadId.equals(mPeerSharing.getSharedId())) {
+                mPeerSharing.share(null);
+            }
 
             if (!update.getAvailableOnline()) {
                 Log.d(TAG, "Download no longer available online, removing");
@@ -492,6 +735,171 @@ public class UpdaterController {
         }
     }
 
+    /**
+     * Follow the default network: move the downloads to the new network when
+     * it changes, pause them on metered networks the user didn't agree to
+     * and resume them once a network they may use is back.
+     */
+    public void startNetworkMonitoring() {
+        if (mNetworkCallback != null) {
+            return;
+        }
+        mNetworkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(Network network,
+                    NetworkCapabilities capabilities) {
+                if (capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) {
+                    onNetworkChanged(network, !capabilities.hasCapability(
+                            NetworkCapabilities.NET_CAPABILITY_NOT_METERED));
+                }
+            }
+
+            @Override
+            public void onLost(Network network) {
+                if (network.equals(mNetwork)) {
+                    mNetwork = null;
+                }
+            }
+        };
+        ConnectivityManager cm = mContext.getSystemService(ConnectivityManager.class);
+        cm.registerDefaultNetworkCallback(mNetworkCallback, mHandler);
+    }
+
+    public void stopNetworkMonitoring() {
+        if (mNetworkCallback == null) {
+            return;
+        }
+        ConnectivityManager cm = mContext.getSystemService(ConnectivityManager.class);
+        cm.unregisterNetworkCallback(mNetworkCallback);
+        mNetworkCallback = null;
+        mNetwork = null;
+    }
+
+    private boolean mustPauseOnMeteredNetwork(DownloadEntry entry) {
+        if (!mNetworkMetered || entry.mMeteredAllowed) {
+            return false;
+        }
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(mContext);
+        return preferences.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true);
+    }
+
+    private void onNetworkChanged(Network network, boolean metered) {
+        if (network.equals(mNetwork) && metered == mNetworkMetered) {
+            return;
+        }
+        Log.d(TAG, "Default network is now " + network + (metered ? " (metered)" : ""));
+        mNetwork = network;
+        mNetworkMetered = metered;
+        updateBandwidthLimit();
+        for (DownloadEntry entry : new ArrayList<>(mDownloads.values())) {
+            String downloadId = entry.mUpdate.getDownloadId();
+            if (isDownloading(downloadId)) {
+                if (mustPauseOnMeteredNetwork(entry)) {
+                    Log.d(TAG, "Pausing " + downloadId + " until an unmetered network is back");
+                    pauseDownload(downloadId);
+                    mWaitingDownloads.add(downloadId);
+                } else if (!network.equals(entry.mNetwork)) {
+                    // The connections are bound to the previous network, start
+                    // over from where the download is once they're closed
+                    Log.d(TAG, "Moving " + downloadId + " to " + network);
+                    entry.mInterruptedMillis = SystemClock.elapsedRealtime();
+                    entry.mDownloadClient.cancel();
+                    removeDownloadClient(entry);
+                    mMigratingDownloads.add(downloadId);
+                    entry.mUpdate.setStatus(UpdateStatus.STARTING);
+                    notifyUpdateChange(downloadId);
+                }
+            } else if (mWaitingDownloads.contains(downloadId) &&
+                    !mustPauseOnMeteredNetwork(entry)) {
+                resumeDownload(downloadId);
+            }
+        }
+    }
+
+    /**
+     * Resume the download on the new network if it lost its connection because
+     * the network changed, or once the network changes otherwise. Downloads
+     * that failed for other reasons wait for the user.
+     *
+     * @param network the network the download was using
+     */
+    private void onConnectionLost(DownloadEntry entry, Network network) {
+        if (mNetworkCallback == null) {
+            return;
+        }
+        String downloadId = entry.mUpdate.getDownloadId();
+        entry.mInterruptedMillis = SystemClock.elapsedRealtime();
+        if (mNetwork != null && !mNetwork.equals(network) && !mustPauseOnMeteredNetwork(entry)) {
+            Log.d(TAG, "Resuming " + downloadId + " on " + mNetwork);
+            resumeDownload(downloadId);
+        } else {
+            // The network may be about to be lost
+            mWaitingDownloads.add(downloadId);
+        }
+    }
+
+    /**
+     * Share the most recent verified package with the devices of the local
+     * network and look for the ones sharing packages, if enabled.
+     */
+    public void startPeerSharing() {
+        if (!Utils.isPeerSharingEnabled()) {
+            return;
+        }
+        Update shared = null;
+        for (DownloadEntry entry : mDownloads.values()) {
+            Update update = entry.mUpdate;
+            if (update.getPersistentStatus() == UpdateStatus.Persistent.VERIFIED &&
+                    (shared == null || update.getTimestamp() > shared.getTimestamp())) {
+                shared = update;
+            }
+        }
+        if (shared != null) {
+            mPeerSharing.share(shared.getDownloadId());
+        }
+        mPeerSharing.start();
+    }
+
+    public void stopPeerSharing() {
+        mPeerSharing.stop();
+    }
+
+    /**
+     * @return the package with the given download ID if it was verified, or null
+     */
+    private File getVerifiedPackage(String downloadId) {
+        String selection = UpdatesDbHelper.UpdateEntry.COLUMN_NAME_DOWNLOAD_ID + " = ? AND " +
+                UpdatesDbHelper.UpdateEntry.COLUMN_NAME_STATUS + " = ?";
+        String[] selectionArgs = { downloadId,
+                String.valueOf(UpdateStatus.Persistent.VERIFIED) };
+        for (Update update : mUpdatesDbHelper.getUpdates(selection, selectionArgs)) {
+            if (update.getFile().isFile()) {
+                return update.getFile();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Connect to the server of the update ahead of time, for when it's about
+     * to be downloaded.
+     */
+    public void preconnect(String downloadId) {
+        UpdateInfo update = getUpdate(downloadId);
+        if (update == null || !update.getAvailableOnline() || isDownloading(downloadId)) {
+            return;
+        }
+        switch (update.getStatus()) {
+            case UNKNOWN:
+            case PAUSED:
+            case PAUSED_ERROR:
+                ConnectionPool.preconnect(update.getDownloadUrl());
+                break;
+            default:
+                break;
+        }
+    }
+
     public List<UpdateInfo> getUpdates() {
         List<UpdateInfo> updates = new ArrayList<>();
         for (DownloadEntry entry : mDownloads.values()) {
@@ -520,6 +928,13 @@ public class UpdaterController {
         return mActiveDownloads > 0;
     }
 
+    /**
+     * Whether downloads are waiting for the network to resume them.
+     */
+    public boolean hasWaitingDownloads() {
+        return !mWaitingDownloads.isEmpty() || !mMigratingDownloads.isEmpty();
+    }
+
     public boolean isVerifyingUpdate() {
         return mVerifyingUpdates.size() > 0;
     }
@@ -62,6 +62,15 @@ public class UpdaterService extends Service {
     public static final String ACTION_INSTALL_SUSPEND = "action_install_suspend";
     public static final String ACTION_INSTALL_RESUME = "action_install_resume";
 
+    // Bandwidth limits in KiB/s, 0 removing the limit, and the hours of the
+    // day the peak limit applies between, -1 disabling it
+    public static final String ACTION_SET_BANDWIDTH_LIMITS = "action_set_bandwidth_limits";
+    public static final String EXTRA_LIMIT_METERED = "extra_limit_metered";
+    public static final String EXTRA_LIMIT_UNMETERED = "extra_limit_unmetered";
+    public static final String EXTRA_PEAK_LIMIT = "extra_peak_limit";
+    public static final String EXTRA_PEAK_START = "extra_peak_start";
+    public static final String EXTRA_PEAK_END = "extra_peak_end";
+
     private static final String ONGOING_NOTIFICATION_CHANNEL =
             "ongoing_notification_channel";
 
@@ -85,6 +94,8 @@ public class UpdaterService extends Service {
         super.onCreate();
 
         mUpdaterController = UpdaterController.getInstance(this);
+        mUpdaterController.startPeerSharing();
+        mUpdaterController.startNetworkMonitoring();
 
         mNotificationManager = getSystemService(NotificationManager.class);
         NotificationChannel notificationChannel = new NotificationChannel(
@@ -146,6 +157,8 @@ public class UpdaterService extends Service {
     @Override
     public void onDestroy() {
         LocalBroadcastManager.getInstance(this).unregisterReceiver(mBroadcastReceiver);
+        mUpdaterController.stopPeerSharing();
+        mUpdaterController.stopNetworkMonitoring();
         super.onDestroy();
     }
 
@@ -236,16 +249,36 @@ public class UpdaterService extends Service {
                 installer.reconnect();
                 installer.resume();
             }
+        } else if (ACTION_SET_BANDWIDTH_LIMITS.equals(intent.getAction())) {
+            SharedPreferences.Editor editor =
+                    PreferenceManager.getDefaultSharedPreferences(this).edit();
+            copyIntExtra(intent, EXTRA_LIMIT_METERED, editor,
+                    Constants.PREF_BANDWIDTH_LIMIT_METERED);
+            copyIntExtra(intent, EXTRA_LIMIT_UNMETERED, editor,
+                    Constants.PREF_BANDWIDTH_LIMIT_UNMETERED);
+            copyIntExtra(intent, EXTRA_PEAK_LIMIT, editor, Constants.PREF_BANDWIDTH_PEAK_LIMIT);
+            copyIntExtra(intent, EXTRA_PEAK_START, editor, Constants.PREF_BANDWIDTH_PEAK_START);
+            copyIntExtra(intent, EXTRA_PEAK_END, editor, Constants.PREF_BANDWIDTH_PEAK_END);
+            editor.apply();
+            mUpdaterController.updateBandwidthLimit();
         }
         return ABUpdateInstaller.isInstallingUpdate(this) ? START_STICKY : START_NOT_STICKY;
     }
 
+    private static void copyIntExtra(Intent intent, String extra,
+            SharedPreferences.Editor editor, String key) {
+        if (intent.hasExtra(extra)) {
+            editor.putInt(key, intent.getIntExtra(extra, 0));
+        }
+    }
+
     public UpdaterController getUpdaterController() {
         return mUpdaterController;
     }
 
     private void tryStopSelf() {
         if (!mHasClients && !mUpdaterController.hasActiveDownloads() &&
+                !mUpdaterController.hasWaitingDownloads() &&
                 !mUpdaterController.isInstallingUpdate()) {
             Log.d(TAG, "Service no longer needed, stopping");
             stopSelf();
@@ -310,19 +343,26 @@ public class UpdaterService extends Service {
                 tryStopSelf();
                 break;
             }
-            case PAUSED_ERROR: {
+            case PAUSED_ERROR:
+            case PAUSED_NO_SPACE: {
                 stopForeground(STOP_FOREGROUND_DETACH);
                 int progress = update.getProgress();
                 // In case we pause before the first progress update
                 mNotificationBuilder.setProgress(progress > 0 ? 100 : 0, progress, false);
                 mNotificationBuilder.mActions.clear();
-                String text = getString(R.string.download_paused_error_notification);
+                String text = getString(update.getStatus() == UpdateStatus.PAUSED_NO_SPACE ?
+                        R.string.download_paused_no_space_notification :
+                        R.string.download_paused_error_notification);
                 mNotificationStyle.bigText(text);
                 mNotificationBuilder.setStyle(mNotificationStyle);
                 mNotificationBuilder.setSmallIcon(android.R.drawable.stat_sys_warning);
-                mNotificationBuilder.addAction(android.R.drawable.ic_media_play,
-                        getString(R.string.resume_button),
-                        getResumePendingIntent(update.getDownloadId()));
+                // There's nothing to resume if the download was refused upfront
+                if (update.getStatus() == UpdateStatus.PAUSED_ERROR ||
+                        update.getPersistentStatus() == UpdateStatus.Persistent.INCOMPLETE) {
+                    mNotificationBuilder.addAction(android.R.drawable.ic_media_play,
+                            getString(R.string.resume_button),
+                            getResumePendingIntent(update.getDownloadId()));
+                }
                 mNotificationBuilder.setTicker(text);
                 mNotificationBuilder.setOngoing(false);
                 mNotificationBuilder.setAutoCancel(false);
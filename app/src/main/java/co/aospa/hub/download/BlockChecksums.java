@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Checksums of the consecutive blocks of a file, published next to it so
+ * that the blocks it shares with older files that are already here don't
+ * have to be downloaded, the way zsync does. Every block has a weak rolling
+ * checksum, cheap enough to compute at every offset of an older file, and
+ * the start of its SHA-256 to confirm the candidates.
+ *
+ * The file starts with the magic "HUBBLK1\n", the block size as an int and
+ * the length of the file as a long. Then comes, for every block, its rolling
+ * checksum as an int and the first STRONG_LENGTH bytes of its SHA-256. The
+ * last block may be shorter. Everything is big endian.
+ */
+final class BlockChecksums {
+
+    private static final byte[] MAGIC = "HUBBLK1\n".getBytes(StandardCharsets.US_ASCII);
+
+    static final int STRONG_LENGTH = 16;
+
+    private static final int MIN_BLOCK_SIZE = 1024;
+    private static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    // Keeps the checksums of even the largest packages in a few tens of MB
+    private static final int MAX_BLOCKS = 2 * 1024 * 1024;
+
+    // Bits of the filter per full block, few enough for the filter to stay
+    // in the cache and enough for most offsets to be ruled out by it alone
+    private static final int FILTER_BITS_PER_BLOCK = 16;
+    private static final int MAX_FILTER_BITS = 1 << 24;
+
+    private final int mBlockSize;
+    private final long mLength;
+    private final int mCount;
+    private final int[] mWeak;
+    private final byte[] mStrong;
+
+    // The full blocks by weak checksum, as chains of indexes plus one
+    private final int[] mHeads;
+    private final int[] mNext;
+    private final int mHeadShift;
+    private final long[] mFilter;
+    private final int mFilterShift;
+
+    private BlockChecksums(int blockSize, long length, int[] weak, byte[] strong) {
+        mBlockSize = blockSize;
+        mLength = length;
+        mCount = weak.length;
+        mWeak = weak;
+        mStrong = strong;
+
+        final int fullBlocks = (int) (length / blockSize);
+        int tableBits = 32 - Integer.numberOfLeadingZeros(Math.max(fullBlocks, 1));
+        mHeads = new int[1 << tableBits];
+        mHeadShift = 32 - tableBits;
+        mNext = new int[fullBlocks];
+        int filterBits = Integer.numberOfTrailingZeros(Math.min(MAX_FILTER_BITS,
+                Integer.highestOneBit(Math.max(fullBlocks, 64) * FILTER_BITS_PER_BLOCK)));
+        mFilter = new long[(1 << filterBits) / 64];
+        mFilterShift = 32 - filterBits;
+        // Chained backwards, so that the first block comes first
+        for (int i = fullBlocks - 1; i >= 0; i--) {
+            int hash = mix(weak[i]);
+            int bucket = hash >>> mHeadShift;
+            mNext[i] = mHeads[bucket];
+            mHeads[bucket] = i + 1;
+            int bit = hash >>> mFilterShift;
+            mFilter[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    static BlockChecksums read(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(inputStream);
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a block checksums file");
+        }
+        final int blockSize = in.readInt();
+        final long length = in.readLong();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE || length <= 0 ||
+                (length + blockSize - 1) / blockSize > MAX_BLOCKS) {
+            throw new IOException("Invalid block checksums, " + length + " bytes in blocks of " +
+                    blockSize);
+        }
+        final int count = (int) ((length + blockSize - 1) / blockSize);
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * STRONG_LENGTH];
+        for (int i = 0; i < count; i++) {
+            weak[i] = in.readInt();
+            in.readFully(strong, i * STRONG_LENGTH, STRONG_LENGTH);
+        }
+        if (in.read() != -1) {
+            throw new IOException("Trailing data after the block checksums");
+        }
+        return new BlockChecksums(blockSize, length, weak, strong);
+    }
+
+    /**
+     * The weak checksum of rsync: the sum of the bytes and the sum of these
+     * sums, 16 bits each.
+     */
+    static int checksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            a += data[offset + i] & 0xff;
+            b += a;
+        }
+        return (b << 16) | (a & 0xffff);
+    }
+
+    /**
+     * Move the block a weak checksum was computed for forward by one byte.
+     *
+     * @param out the first byte of the block
+     * @param in the byte following the block
+     */
+    static int roll(int checksum, byte out, byte in, int blockSize) {
+        final int a = (checksum & 0xffff) - (out & 0xff) + (in & 0xff);
+        final int b = (checksum >>> 16) - blockSize * (out & 0xff) + a;
+        return (b << 16) | (a & 0xffff);
+    }
+
+    private static int mix(int weak) {
+        return weak * 0x9e3779b9;
+    }
+
+    int getBlockSize() {
+        return mBlockSize;
+    }
+
+    long getLength() {
+        return mLength;
+    }
+
+    int getCount() {
+        return mCount;
+    }
+
+    long getStart(int index) {
+        return (long) index * mBlockSize;
+    }
+
+    long getEnd(int index) {
+        return Math.min(getStart(index) + mBlockSize, mLength);
+    }
+
+    /**
+     * Whether a full block may have the weak checksum. Most of the checksums
+     * that don't match are ruled out without looking at the blocks.
+     */
+    boolean mayContain(int weak) {
+        int bit = mix(weak) >>> mFilterShift;
+        return (mFilter[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /**
+     * @return the first full block with the weak checksum, or -1
+     */
+    int first(int weak) {
+        return find(mHeads[mix(weak) >>> mHeadShift] - 1, weak);
+    }
+
+    /**
+     * @return the next full block with the same weak checksum, or -1
+     */
+    int next(int index) {
+        return find(mNext[index] - 1, mWeak[index]);
+    }
+
+    private int find(int index, int weak) {
+        while (index >= 0 && mWeak[index] != weak) {
+            index = mNext[index] - 1;
+        }
+        return index;
+    }
+
+    /**
+     * Whether the block has the given SHA-256.
+     */
+    boolean matches(int index, byte[] sha256) {
+        final int offset = index * STRONG_LENGTH;
+        for (int i = 0; i < STRONG_LENGTH; i++) {
+            if (mStrong[offset + i] != sha256[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
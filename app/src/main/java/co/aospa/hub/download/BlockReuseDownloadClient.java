@@ -0,0 +1,479 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Download client reusing the blocks an update shares with older packages
+ * that are still on the device, as found with the BlockChecksums published
+ * by the server. The blocks found are copied from the older packages, then
+ * the ranges still missing are written to the journal of a segmented
+ * download, which is resumed to fetch them.
+ *
+ * When there is no older package, the server publishes no checksums or too
+ * little can be reused, the segmented download is simply started.
+ */
+class BlockReuseDownloadClient implements DownloadClient {
+
+    private final static String TAG = "BlockReuseDownloadClient";
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    // Scanning a package takes a few seconds, only try the most recent ones
+    private static final int MAX_SEEDS = 2;
+    private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+    // Download the blocks between two missing ranges again rather than
+    // sending another request for less than this
+    private static final long MERGE_GAP = 256 * 1024;
+
+    // Below this fraction of the file, scanning costs more than it saves
+    private static final int MIN_REUSE_PERCENT = 5;
+
+    private final URL mChecksumsUrl;
+    private final File mDestination;
+    private final File mSeedDirectory;
+    private final DownloadClient.ProgressListener mProgressListener;
+    private final DownloadClient.DownloadCallback mCallback;
+    private final SegmentedDownloadClient mSegmentedClient;
+
+    private DownloadThread mDownloadThread;
+    // Whether the download was handed to mSegmentedClient, guarded by this
+    private boolean mHandedOver;
+    private boolean mCancelled;
+
+    BlockReuseDownloadClient(String url, String checksumsUrl, File destination,
+            File seedDirectory, DownloadClient.ProgressListener progressListener,
+            DownloadClient.DownloadCallback callback, SegmentedDownloadClient segmentedClient)
+            throws IOException {
+        mChecksumsUrl = new URL(new URL(url), checksumsUrl);
+        mDestination = destination;
+        mSeedDirectory = seedDirectory;
+        mProgressListener = progressListener;
+        mCallback = callback;
+        mSegmentedClient = segmentedClient;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mDownloadThread != null || mHandedOver) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        mDownloadThread = new DownloadThread();
+        mDownloadThread.start();
+    }
+
+    @Override
+    public synchronized void resume() {
+        // The journal knows what's left, whoever wrote it
+        mHandedOver = true;
+        mSegmentedClient.resume();
+    }
+
+    @Override
+    public boolean isDigestVerified() {
+        return mSegmentedClient.isDigestVerified();
+    }
+
+    @Override
+    public boolean isJournaled() {
+        return true;
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return mSegmentedClient.isConnectionLost();
+    }
+
+    @Override
+    public synchronized void cancel() {
+        mCancelled = true;
+        if (mHandedOver) {
+            mSegmentedClient.cancel();
+            return;
+        }
+        if (mDownloadThread == null) {
+            Log.e(TAG, "Not downloading");
+            return;
+        }
+        mDownloadThread.interrupt();
+        // Reads don't notice the interruption, close the connection under them
+        mDownloadThread.mConnections.cancel();
+        mDownloadThread = null;
+    }
+
+    /**
+     * Let the segmented client download the rest of the file, resuming it if
+     * there's a journal for it.
+     *
+     * @return false if the download was cancelled meanwhile
+     */
+    private synchronized boolean handOver(boolean resume) {
+        if (mCancelled) {
+            return false;
+        }
+        mHandedOver = true;
+        mDownloadThread = null;
+        if (resume) {
+            mSegmentedClient.resume();
+        } else {
+            mSegmentedClient.start();
+        }
+        return true;
+    }
+
+    private static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Get the packages of the seed directory other than the destination, the
+     * most recent first.
+     */
+    private List<File> findSeeds() {
+        List<File> seeds = new ArrayList<>();
+        File[] files = mSeedDirectory.listFiles();
+        if (files == null) {
+            return seeds;
+        }
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(".zip") &&
+                    !file.equals(mDestination)) {
+                seeds.add(file);
+            }
+        }
+        seeds.sort(Comparator.comparingLong(File::lastModified).reversed());
+        return new ArrayList<>(seeds.subList(0, Math.min(seeds.size(), MAX_SEEDS)));
+    }
+
+    private class DownloadThread extends Thread {
+
+        private final ConnectionGroup mConnections = new ConnectionGroup();
+        private List<File> mSeeds;
+        private BlockChecksums mChecksums;
+        // Offset in a seed of every block, or -1 if it wasn't found
+        private long[] mSources;
+        private byte[] mSeedIndexes;
+        private long mTotalBytesCopied;
+
+        private void checkInterrupted() throws InterruptedIOException {
+            if (isInterrupted()) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * @return the checksums, or null if the server has none
+         */
+        private BlockChecksums fetchChecksums() throws IOException {
+            HttpURLConnection connection = mConnections.add(
+                    (HttpURLConnection) mChecksumsUrl.openConnection());
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(StallWatchdog.STALL_TIMEOUT_MS);
+            try {
+                int responseCode = connection.getResponseCode();
+                if (responseCode != HttpURLConnection.HTTP_OK) {
+                    Log.d(TAG, "The server replied with " + responseCode + " for the checksums");
+                    return null;
+                }
+                try (InputStream in = new BufferedInputStream(connection.getInputStream())) {
+                    return BlockChecksums.read(in);
+                }
+            } catch (IOException e) {
+                checkInterrupted();
+                Log.e(TAG, "Could not get the block checksums", e);
+                return null;
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean reused;
+            try {
+                // Listing the directory can take a while, it's done here
+                // rather than by whoever starts the download
+                mSeeds = findSeeds();
+                if (mSeeds.isEmpty()) {
+                    Log.d(TAG, "No older package to reuse the blocks of");
+                    reused = false;
+                } else {
+                    mChecksums = fetchChecksums();
+                    reused = mChecksums != null && reuse();
+                }
+            } catch (IOException e) {
+                if (isInterrupted()) {
+                    mCallback.onFailure(true);
+                    return;
+                }
+                Log.e(TAG, "Could not reuse the blocks of older packages", e);
+                // Whatever was copied is described by the journal
+                reused = SegmentState.getStateFile(mDestination).exists();
+            }
+            if (!handOver(reused)) {
+                mCallback.onFailure(true);
+            }
+        }
+
+        /**
+         * Copy the blocks found in the seeds to the destination and write the
+         * journal of the ranges left to download.
+         *
+         * @return false if too little can be reused to bother
+         */
+        private boolean reuse() throws IOException {
+            final long length = mChecksums.getLength();
+            mSources = new long[mChecksums.getCount()];
+            mSeedIndexes = new byte[mChecksums.getCount()];
+            Arrays.fill(mSources, -1);
+
+            long found = 0;
+            for (int i = 0; i < mSeeds.size() && found < length; i++) {
+                try {
+                    found += scan(mSeeds.get(i), i);
+                } catch (FileNotFoundException e) {
+                    Log.e(TAG, "Could not scan " + mSeeds.get(i), e);
+                }
+                checkInterrupted();
+            }
+            Log.d(TAG, "Reusing " + found + " bytes out of " + length);
+            if (found * 100 < length * MIN_REUSE_PERCENT) {
+                return false;
+            }
+
+            // Until the blocks are copied everything is missing, which the
+            // journal must say before the file grows
+            saveJournal(false);
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                file.setLength(0);
+                file.setLength(length);
+                copyBlocks(file.getChannel());
+                file.getFD().sync();
+            }
+            saveJournal(true);
+            return true;
+        }
+
+        private void saveJournal(boolean copied) throws IOException {
+            final long length = mChecksums.getLength();
+            SegmentState state = SegmentState.create(mDestination, length);
+            state.setLength(length);
+            if (copied) {
+                for (long[] range : getMissingRanges()) {
+                    state.addPending(range[0], range[1]);
+                }
+            } else {
+                state.addPending(0, length);
+            }
+            state.save();
+        }
+
+        /**
+         * Look for the missing blocks at every offset of the seed, rolling the
+         * weak checksum along and skipping the blocks found.
+         *
+         * @return the size of the blocks found
+         */
+        private long scan(File seed, int seedIndex) throws IOException {
+            final int blockSize = mChecksums.getBlockSize();
+            final MessageDigest digest = newDigest();
+            final byte[] buffer = new byte[SCAN_BUFFER_SIZE + blockSize];
+            long found = 0;
+            try (InputStream in = new FileInputStream(seed)) {
+                long base = 0;
+                int length = 0;
+                int position = 0;
+                boolean eof = false;
+                boolean rolling = false;
+                int weak = 0;
+                for (;;) {
+                    if (position + blockSize >= length && !eof) {
+                        checkInterrupted();
+                        // Keep the current block and the bytes after it
+                        System.arraycopy(buffer, position, buffer, 0, length - position);
+                        base += position;
+                        length -= position;
+                        position = 0;
+                        while (length < buffer.length) {
+                            int count = in.read(buffer, length, buffer.length - length);
+                            if (count < 0) {
+                                eof = true;
+                                break;
+                            }
+                            length += count;
+                        }
+                    }
+                    if (position + blockSize > length) {
+                        break;
+                    }
+                    if (!rolling) {
+                        weak = BlockChecksums.checksum(buffer, position, blockSize);
+                        rolling = true;
+                    }
+                    if (mChecksums.mayContain(weak)) {
+                        long size = match(weak, buffer, position, base + position, seedIndex,
+                                digest);
+                        if (size > 0) {
+                            found += size;
+                            position += blockSize;
+                            rolling = false;
+                            continue;
+                        }
+                    }
+                    if (position + blockSize == length) {
+                        break;
+                    }
+                    weak = BlockChecksums.roll(weak, buffer[position],
+                            buffer[position + blockSize], blockSize);
+                    position++;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Take the data at the offset of the seed for all the missing blocks
+         * it matches.
+         *
+         * @return the size of these blocks
+         */
+        private long match(int weak, byte[] buffer, int position, long offset, int seedIndex,
+                MessageDigest digest) {
+            byte[] sha256 = null;
+            long found = 0;
+            for (int i = mChecksums.first(weak); i >= 0; i = mChecksums.next(i)) {
+                if (mSources[i] >= 0) {
+                    continue;
+                }
+                if (sha256 == null) {
+                    digest.update(buffer, position, mChecksums.getBlockSize());
+                    sha256 = digest.digest();
+                }
+                if (mChecksums.matches(i, sha256)) {
+                    mSources[i] = offset;
+                    mSeedIndexes[i] = (byte) seedIndex;
+                    found += mChecksums.getBlockSize();
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Copy the blocks found in the seeds to the destination, reading runs
+         * of blocks that follow each other at once.
+         */
+        private void copyBlocks(FileChannel channel) throws IOException {
+            final int blockSize = mChecksums.getBlockSize();
+            final ByteBuffer buffer = ByteBuffer.allocate(
+                    Math.max(COPY_BUFFER_SIZE, blockSize));
+            RandomAccessFile[] seeds = new RandomAccessFile[mSeeds.size()];
+            try {
+                for (int i = 0; i < mSources.length; ) {
+                    if (mSources[i] < 0) {
+                        i++;
+                        continue;
+                    }
+                    final int seedIndex = mSeedIndexes[i];
+                    int end = i + 1;
+                    while (end < mSources.length && mSeedIndexes[end] == seedIndex &&
+                            mSources[end] == mSources[i] + (long) (end - i) * blockSize &&
+                            (end - i + 1) * (long) blockSize <= buffer.capacity()) {
+                        end++;
+                    }
+                    if (seeds[seedIndex] == null) {
+                        seeds[seedIndex] = new RandomAccessFile(mSeeds.get(seedIndex), "r");
+                    }
+                    FileChannel seed = seeds[seedIndex].getChannel();
+                    buffer.clear().limit((end - i) * blockSize);
+                    long position = mSources[i];
+                    while (buffer.hasRemaining()) {
+                        int count = seed.read(buffer, position);
+                        if (count < 0) {
+                            throw new IOException(mSeeds.get(seedIndex) + " shrank");
+                        }
+                        position += count;
+                    }
+                    buffer.flip();
+                    position = mChecksums.getStart(i);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    mTotalBytesCopied += buffer.limit();
+                    if (mProgressListener != null) {
+                        mProgressListener.update(mTotalBytesCopied, mChecksums.getLength(),
+                                -1, -1);
+                    }
+                    checkInterrupted();
+                    i = end;
+                }
+            } finally {
+                for (RandomAccessFile seed : seeds) {
+                    if (seed != null) {
+                        seed.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the byte ranges left to download, end exclusive
+         */
+        private List<long[]> getMissingRanges() {
+            List<long[]> ranges = new ArrayList<>();
+            for (int i = 0; i < mSources.length; i++) {
+                if (mSources[i] >= 0) {
+                    continue;
+                }
+                long start = mChecksums.getStart(i);
+                long end = mChecksums.getEnd(i);
+                long[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                if (last != null && start - last[1] < MERGE_GAP) {
+                    last[1] = end;
+                } else {
+                    ranges.add(new long[] {start, end});
+                }
+            }
+            return ranges;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Source of the body of a response, filling the buffers of a WriteBehindStage.
+ */
+interface BodyReader {
+
+    /**
+     * Read some bytes into the buffer, between its position and its limit,
+     * advancing its position.
+     *
+     * @return the number of bytes read, or -1 if the end of the stream was
+     *         reached
+     */
+    int read(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Get a reader copying the stream to heap buffers, one read at a time.
+     */
+    static BodyReader fromStream(InputStream inputStream) {
+        return buffer -> {
+            int count = inputStream.read(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (count > 0) {
+                buffer.position(buffer.position() + count);
+            }
+            return count;
+        };
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a response body in large chunks into direct buffers, so that they
+ * can be handed to a FileChannel without any further copy. The body only
+ * comes as a stream, so each chunk is read into a heap array first and
+ * copied once into the buffer. The size of the chunks follows the speed of
+ * the link: a chunk should take around TARGET_FILL_MS to arrive, keeping
+ * progress updates frequent on slow links and system calls rare on fast ones.
+ */
+class ChannelReader implements BodyReader {
+
+    static final int MIN_READ_SIZE = 16 * 1024;
+    static final int MAX_READ_SIZE = WriteBehindStage.BUFFER_SIZE;
+
+    private static final long TARGET_FILL_MS = 100;
+
+    private final InputStream mInputStream;
+    // A chunk is read here in as few calls as the stream allows
+    private final byte[] mChunk = new byte[MAX_READ_SIZE];
+    private int mReadSize = MIN_READ_SIZE;
+
+    ChannelReader(InputStream inputStream) {
+        mInputStream = inputStream;
+    }
+
+    /**
+     * Read the next chunk of the body, up to the limit of the buffer.
+     */
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        final int length = Math.min(buffer.remaining(), mReadSize);
+        final long startMillis = SystemClock.elapsedRealtime();
+        int count = 0;
+        try {
+            while (count < length) {
+                int read = mInputStream.read(mChunk, count, length - count);
+                if (read < 0) {
+                    break;
+                }
+                count += read;
+            }
+        } finally {
+            // What was read before an error is still written
+            buffer.put(mChunk, 0, count);
+        }
+        if (count == 0) {
+            return -1;
+        }
+        adapt(count, SystemClock.elapsedRealtime() - startMillis);
+        return count;
+    }
+
+    private void adapt(int count, long millis) {
+        if (count < mReadSize) {
+            return;
+        }
+        if (millis < TARGET_FILL_MS / 2) {
+            mReadSize = Math.min(mReadSize * 2, MAX_READ_SIZE);
+        } else if (millis > TARGET_FILL_MS * 2) {
+            mReadSize = Math.max(mReadSize / 2, MIN_READ_SIZE);
+        }
+    }
+}
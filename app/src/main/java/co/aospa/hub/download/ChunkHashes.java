@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * SHA-256 hashes of consecutive fixed size chunks of a file, the last one
+ * possibly shorter. They let segmented downloads check every chunk as soon
+ * as it is in the file and download again only the damaged ones.
+ */
+public final class ChunkHashes {
+
+    static final String ALGORITHM = "SHA-256";
+    static final int HASH_LENGTH = 32;
+
+    // Smaller chunks would make the manifest huge for no real gain
+    private static final long MIN_CHUNK_SIZE = 64 * 1024;
+
+    private final long mChunkSize;
+    private final byte[][] mHashes;
+
+    private ChunkHashes(long chunkSize, byte[][] hashes) {
+        mChunkSize = chunkSize;
+        mHashes = hashes;
+    }
+
+    /**
+     * @param chunkSize the size of every chunk but the last one
+     * @param hashes the hex encoded SHA-256 hashes of the chunks, in order
+     * @throws IllegalArgumentException if the size or a hash is invalid
+     */
+    public static ChunkHashes parse(long chunkSize, List<String> hashes) {
+        if (chunkSize < MIN_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size too small: " + chunkSize);
+        } else if (hashes.isEmpty()) {
+            throw new IllegalArgumentException("No chunk hash");
+        }
+        byte[][] decoded = new byte[hashes.size()][];
+        for (int i = 0; i < decoded.length; i++) {
+            decoded[i] = decodeHex(hashes.get(i));
+        }
+        return new ChunkHashes(chunkSize, decoded);
+    }
+
+    static byte[] decodeHex(String hex) {
+        if (hex.length() != HASH_LENGTH * 2) {
+            throw new IllegalArgumentException("Invalid hash " + hex);
+        }
+        byte[] bytes = new byte[HASH_LENGTH];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(i * 2), 16);
+            int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IllegalArgumentException("Invalid hash " + hex);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+
+    static ChunkHashes read(DataInputStream in) throws IOException {
+        long chunkSize = in.readLong();
+        int count = in.readInt();
+        if (chunkSize < MIN_CHUNK_SIZE || count <= 0) {
+            throw new IOException("Invalid chunk hashes");
+        }
+        byte[][] hashes = new byte[count][HASH_LENGTH];
+        for (byte[] hash : hashes) {
+            in.readFully(hash);
+        }
+        return new ChunkHashes(chunkSize, hashes);
+    }
+
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(mChunkSize);
+        out.writeInt(mHashes.length);
+        for (byte[] hash : mHashes) {
+            out.write(hash);
+        }
+    }
+
+    public long getChunkSize() {
+        return mChunkSize;
+    }
+
+    public int getCount() {
+        return mHashes.length;
+    }
+
+    /**
+     * Whether the hashes cover exactly a file of the given length.
+     */
+    boolean fits(long length) {
+        return length > 0 && (length + mChunkSize - 1) / mChunkSize == mHashes.length;
+    }
+
+    long getStart(int index) {
+        return index * mChunkSize;
+    }
+
+    long getEnd(int index, long length) {
+        return Math.min(getStart(index) + mChunkSize, length);
+    }
+
+    int getIndex(long position) {
+        return (int) (position / mChunkSize);
+    }
+
+    boolean matches(int index, byte[] hash) {
+        return Arrays.equals(mHashes[index], hash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ChunkHashes)) {
+            return false;
+        }
+        ChunkHashes other = (ChunkHashes) o;
+        return mChunkSize == other.mChunkSize && Arrays.deepEquals(mHashes, other.mHashes);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Long.hashCode(mChunkSize) + Arrays.deepHashCode(mHashes);
+    }
+}
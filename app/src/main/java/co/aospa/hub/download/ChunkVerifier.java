@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Checks the chunks of a segmented download against their hashes on all
+ * cores as soon as they are complete in the file. Damaged chunks are given
+ * back to the segment state to be downloaded again.
+ */
+class ChunkVerifier implements Closeable {
+
+    private static final String TAG = "ChunkVerifier";
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    // A chunk that is still damaged after being downloaded this many times
+    // doesn't match its hash anywhere
+    private static final int MAX_ATTEMPTS = 3;
+
+    /**
+     * A chunk doesn't match its hash no matter how many times it's downloaded.
+     */
+    static class MismatchException extends IOException {
+        private MismatchException(String message) {
+            super(message);
+        }
+    }
+
+    private final ChunkHashes mHashes;
+    private final FileChannel mChannel;
+    private final SegmentState mState;
+    private final long mLength;
+    private final ExecutorService mExecutor;
+    private final Runnable mListener;
+
+    // Chunks being checked and how many times each one was damaged
+    private final boolean[] mQueued;
+    private final int[] mFailures;
+    private int mPending;
+    private boolean mClosed;
+    private IOException mError;
+
+    private long mVerifiedBytes;
+    private long mVerifyMillis;
+    private int mRepairs;
+
+    /**
+     * @param listener called after a chunk was found valid
+     */
+    ChunkVerifier(ChunkHashes hashes, FileChannel channel, SegmentState state,
+            Runnable listener) {
+        mHashes = hashes;
+        mListener = listener;
+        mChannel = channel;
+        mState = state;
+        mLength = state.getLength();
+        mQueued = new boolean[hashes.getCount()];
+        mFailures = new int[hashes.getCount()];
+        mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Check the chunks downloaded in previous attempts that weren't checked.
+     */
+    void scan() {
+        for (int i = 0; i < mHashes.getCount(); i++) {
+            schedule(i);
+        }
+    }
+
+    /**
+     * Called once the given range is in the file, to check the chunks it
+     * completes.
+     */
+    void onWritten(long start, long end) {
+        final int last = mHashes.getIndex(end - 1);
+        for (int i = mHashes.getIndex(start); i <= last; i++) {
+            schedule(i);
+        }
+    }
+
+    private void schedule(int chunk) {
+        if (mState.isVerified(chunk) ||
+                !mState.isDownloaded(mHashes.getStart(chunk), mHashes.getEnd(chunk, mLength))) {
+            return;
+        }
+        synchronized (this) {
+            if (mClosed || mQueued[chunk]) {
+                return;
+            }
+            mQueued[chunk] = true;
+            mPending++;
+        }
+        mExecutor.execute(() -> verify(chunk));
+    }
+
+    private void verify(int chunk) {
+        final long startMillis = SystemClock.elapsedRealtime();
+        final long start = mHashes.getStart(chunk);
+        final long end = mHashes.getEnd(chunk, mLength);
+        boolean valid = false;
+        IOException error = null;
+        try {
+            valid = !isClosed() && mHashes.matches(chunk, digest(start, end));
+        } catch (IOException e) {
+            error = e;
+        }
+        synchronized (this) {
+            mVerifyMillis += SystemClock.elapsedRealtime() - startMillis;
+            mQueued[chunk] = false;
+            if (mClosed) {
+                // The result doesn't matter anymore
+            } else if (error != null) {
+                Log.e(TAG, "Could not check chunk " + chunk, error);
+                mError = error;
+            } else if (valid) {
+                mState.setVerified(chunk);
+                mVerifiedBytes += end - start;
+            } else if (++mFailures[chunk] >= MAX_ATTEMPTS) {
+                mError = new MismatchException("Chunk " + chunk + " doesn't match its hash");
+            } else {
+                Log.e(TAG, "Chunk " + chunk + " is damaged, downloading it again");
+                mState.addPending(start, end);
+                mRepairs++;
+            }
+            mPending--;
+            notifyAll();
+        }
+        if (valid) {
+            mListener.run();
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    private byte[] digest(long start, long end) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(ChunkHashes.ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        for (long position = start; position < end; ) {
+            buffer.clear();
+            if (buffer.remaining() > end - position) {
+                buffer.limit((int) (end - position));
+            }
+            int count = mChannel.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            buffer.flip();
+            digest.update(buffer);
+            position += count;
+        }
+        return digest.digest();
+    }
+
+    /**
+     * @throws IOException if a chunk can't be checked or can't be repaired
+     */
+    synchronized void throwIfFailed() throws IOException {
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    /**
+     * Wait for every chunk of the complete file to be checked.
+     *
+     * @return true if the whole file is valid, false if some chunks must be
+     *         downloaded again
+     */
+    boolean verifyAll() throws IOException, InterruptedException {
+        scan();
+        synchronized (this) {
+            while (mPending > 0) {
+                wait();
+            }
+        }
+        throwIfFailed();
+        for (int i = 0; i < mHashes.getCount(); i++) {
+            if (!mState.isVerified(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+        }
+        // Interrupting the threads would close the channel under the writer
+        mExecutor.shutdown();
+        synchronized (this) {
+            Log.d(TAG, "Checked " + mVerifiedBytes + " bytes taking " + mVerifyMillis +
+                    " ms over " + Runtime.getRuntime().availableProcessors() + " threads, " +
+                    mRepairs + " chunks downloaded again");
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * The connections opened by a download, so that cancelling it can close
+ * them from another thread. A thread blocked reading a socket doesn't
+ * notice Thread.interrupt(), it only stops once something is received or
+ * the read times out, which takes forever on a stalled link.
+ */
+final class ConnectionGroup {
+
+    private static final String TAG = "ConnectionGroup";
+
+    // Weak, the connections that were dropped meanwhile don't matter
+    private final Set<HttpURLConnection> mConnections =
+            Collections.newSetFromMap(new WeakHashMap<>());
+    private boolean mCancelled;
+
+    /**
+     * Add the connection to the group, disconnecting it right away if the
+     * group was cancelled already.
+     *
+     * @return the connection
+     */
+    HttpURLConnection add(HttpURLConnection connection) {
+        synchronized (this) {
+            if (!mCancelled) {
+                mConnections.add(connection);
+                return connection;
+            }
+        }
+        connection.disconnect();
+        return connection;
+    }
+
+    /**
+     * Disconnect all the connections of the group, and the ones added later.
+     * The socket of the call is closed under the blocked reads and writes,
+     * which fail right away. That happens on another thread, so that the
+     * caller never waits for the network.
+     */
+    void cancel() {
+        final List<HttpURLConnection> connections;
+        synchronized (this) {
+            mCancelled = true;
+            connections = new ArrayList<>(mConnections);
+            mConnections.clear();
+        }
+        if (connections.isEmpty()) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            for (HttpURLConnection connection : connections) {
+                connection.disconnect();
+            }
+        }, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
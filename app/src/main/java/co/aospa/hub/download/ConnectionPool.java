@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Connections kept alive between the transfers of EventLoopDownloadClient,
+ * along with the addresses of the hosts they were made to. Connections can
+ * be opened ahead of time, so that the first request to a server doesn't
+ * wait for the name resolution and the TCP and TLS handshakes. The TLS
+ * sessions negotiated along the way are resumed by the other connections
+ * to the same server, including the ones of HttpsURLConnection.
+ */
+public final class ConnectionPool {
+
+    private static final String TAG = "ConnectionPool";
+
+    // How long idle connections are kept, most servers close them sooner
+    private static final long KEEP_ALIVE_MS = 60000;
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+
+    // Reuse the resolved addresses for a while, hosts serving updates
+    // don't move around much more often
+    private static final long ADDRESS_TTL_MS = 60000;
+
+    private static class CachedAddress {
+        private final InetAddress mAddress;
+        private final long mExpiry;
+
+        private CachedAddress(InetAddress address, long expiry) {
+            mAddress = address;
+            mExpiry = expiry;
+        }
+    }
+
+    private static ConnectionPool sInstance;
+
+    private final EventLoop mLoop;
+    // Only accessed from the loop thread, most recently used first
+    private final ArrayDeque<EventLoopConnection> mIdle = new ArrayDeque<>();
+    private final Map<String, CachedAddress> mAddresses = new HashMap<>();
+
+    static synchronized ConnectionPool getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new ConnectionPool(EventLoop.getInstance());
+        }
+        return sInstance;
+    }
+
+    private ConnectionPool(EventLoop loop) {
+        mLoop = loop;
+    }
+
+    /**
+     * Resolve the host of the URL and connect to it in the background, for
+     * a request about to be sent there. Failures are only logged.
+     */
+    public static void preconnect(String url) {
+        if (Transports.get(url) != null) {
+            // Not downloaded over HTTP
+            return;
+        }
+        final URL target;
+        final ConnectionPool pool;
+        try {
+            target = new URL(url);
+            pool = getInstance();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not connect to " + url, e);
+            return;
+        }
+        pool.mLoop.execute(() -> pool.preconnect(target));
+    }
+
+    private void preconnect(URL url) {
+        final String route = EventLoopConnection.getRoute(url);
+        for (EventLoopConnection connection : mIdle) {
+            if (connection.mRoute.equals(route)) {
+                return;
+            }
+        }
+        resolve(url.getHost(), new EventLoop.ResolveCallback() {
+            @Override
+            public void onResolved(InetAddress address) {
+                try {
+                    Log.d(TAG, "Connecting to " + route + " ahead of time");
+                    release(EventLoopConnection.open(mLoop, ConnectionPool.this, url, address,
+                            null));
+                } catch (IOException e) {
+                    onError(e);
+                }
+            }
+
+            @Override
+            public void onError(IOException e) {
+                Log.e(TAG, "Could not connect to " + route, e);
+            }
+        });
+    }
+
+    /**
+     * Resolve the host, reusing a recent result. The callback is run on the
+     * loop thread.
+     */
+    void resolve(String host, EventLoop.ResolveCallback callback) {
+        synchronized (mAddresses) {
+            CachedAddress cached = mAddresses.get(host);
+            if (cached != null && cached.mExpiry > SystemClock.elapsedRealtime()) {
+                mLoop.execute(() -> callback.onResolved(cached.mAddress));
+                return;
+            }
+        }
+        mLoop.resolve(host, new EventLoop.ResolveCallback() {
+            @Override
+            public void onResolved(InetAddress address) {
+                synchronized (mAddresses) {
+                    mAddresses.put(host, new CachedAddress(address,
+                            SystemClock.elapsedRealtime() + ADDRESS_TTL_MS));
+                }
+                callback.onResolved(address);
+            }
+
+            @Override
+            public void onError(IOException e) {
+                callback.onError(e);
+            }
+        });
+    }
+
+    /**
+     * Forget the address of the host, after connecting to it failed.
+     */
+    void invalidate(String host) {
+        synchronized (mAddresses) {
+            mAddresses.remove(host);
+        }
+    }
+
+    /**
+     * Take an idle connection to the server of the URL, must be called on
+     * the loop thread.
+     *
+     * @return the connection, possibly still connecting, or null if none
+     */
+    EventLoopConnection take(URL url) {
+        final String route = EventLoopConnection.getRoute(url);
+        Iterator<EventLoopConnection> iterator = mIdle.iterator();
+        while (iterator.hasNext()) {
+            EventLoopConnection connection = iterator.next();
+            if (!connection.isOpen()) {
+                iterator.remove();
+            } else if (connection.mRoute.equals(route)) {
+                iterator.remove();
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Keep the connection for a later request, must be called on the loop
+     * thread.
+     */
+    void release(EventLoopConnection connection) {
+        mIdle.addFirst(connection);
+        while (mIdle.size() > MAX_IDLE_CONNECTIONS) {
+            mIdle.removeLast().close();
+        }
+        connection.park(SystemClock.elapsedRealtime() + KEEP_ALIVE_MS);
+    }
+
+    /**
+     * Forget the idle connection, must be called on the loop thread.
+     */
+    void remove(EventLoopConnection connection) {
+        mIdle.remove(connection);
+    }
+}
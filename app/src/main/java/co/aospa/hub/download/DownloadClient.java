@@ -17,9 +17,37 @@ package co.aospa.hub.download;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 public interface DownloadClient {
 
+    /**
+     * Copy the response through an InputStream and a heap buffer.
+     */
+    int ENGINE_STREAM = 0;
+
+    /**
+     * Copy the response once, in chunks sized after the speed of the link,
+     * into pooled direct buffers that the destination FileChannel writes as
+     * they are.
+     */
+    int ENGINE_NIO = 1;
+
+    /**
+     * Drive the transfer from the single thread shared by all the downloads
+     * using this engine. Not supported by segmented downloads, which keep a
+     * thread per connection.
+     */
+    int ENGINE_EVENT_LOOP = 2;
+
+    /**
+     * Send the requests as streams of a shared HTTP/2 connection, splitting
+     * large files in ranges downloaded at once over it. Takes the place of
+     * segmented downloads, and of HttpURLConnection for servers that only
+     * speak HTTP/1.1.
+     */
+    int ENGINE_HTTP2 = 3;
+
     interface DownloadCallback {
         void onResponse(Headers headers);
 
@@ -54,12 +82,50 @@ public interface DownloadClient {
      */
     void cancel();
 
+    /**
+     * Whether the downloaded file was found to match the SHA-256 given by
+     * setSha256(). The one sent by the server doesn't count, since it comes
+     * from whichever mirror or peer answered. Only supported by segmented
+     * downloads.
+     */
+    boolean isDigestVerified();
+
+    /**
+     * Whether the ranges that were downloaded are kept in a journal next to
+     * the destination, which can then be longer than what was downloaded.
+     * Only the destination of such downloads can be preallocated, the others
+     * take its length for what was downloaded.
+     */
+    boolean isJournaled();
+
+    /**
+     * Whether the download failed because the server couldn't be reached or
+     * the connection to it was lost, which resuming on a working network may
+     * fix. Not when the server refused the request or the file was corrupt.
+     */
+    boolean isConnectionLost();
+
     final class Builder {
         private String mUrl;
         private File mDestination;
         private DownloadClient.DownloadCallback mCallback;
         private DownloadClient.ProgressListener mProgressListener;
         private boolean mUseDuplicateLinks;
+        private boolean mSegmented;
+        private int mMaxSegments = SegmentedDownloadClient.DEFAULT_MAX_SEGMENTS;
+        private MirrorScoreboard mMirrorScoreboard;
+        private int mEngine = ENGINE_STREAM;
+        private boolean mLowCacheMode;
+        private RetryPolicy mRetryPolicy = RetryPolicy.NONE;
+        private ChunkHashes mChunkHashes;
+        private String mSha256;
+        private RateLimiter mRateLimiter;
+        private String mBlockChecksumsUrl;
+        private File mSeedDirectory;
+        private List<String> mPeers;
+        private List<NetworkPath> mNetworkPaths;
+        private String mHedgeUrl;
+        private LatencyHistory mLatencyHistory;
 
         public DownloadClient build() throws IOException {
             if (mUrl == null) {
@@ -69,8 +135,55 @@ public interface DownloadClient {
             } else if (mCallback == null) {
                 throw new IllegalStateException("No download callback defined");
             }
-            return new HttpURLConnectionClient(mUrl, mDestination, mProgressListener, mCallback,
-                    mUseDuplicateLinks);
+            if (mHedgeUrl != null) {
+                // On a connection of its own, a stream of the shared HTTP/2 one
+                // would stall along with the first request
+                final int hedgeEngine = mEngine == ENGINE_HTTP2 ? ENGINE_EVENT_LOOP : mEngine;
+                return new HedgedDownloadClient(mDestination, mCallback, mLatencyHistory,
+                        (destination, callback) -> buildClient(mUrl, destination, null,
+                                callback, mEngine),
+                        (destination, callback) -> buildClient(mHedgeUrl, destination, null,
+                                callback, hedgeEngine));
+            }
+            DownloadClient client = buildClient(mUrl, mDestination, mProgressListener, mCallback,
+                    mEngine);
+            if (mBlockChecksumsUrl != null && mSeedDirectory != null &&
+                    client instanceof SegmentedDownloadClient) {
+                return new BlockReuseDownloadClient(mUrl, mBlockChecksumsUrl, mDestination,
+                        mSeedDirectory, mProgressListener, mCallback,
+                        (SegmentedDownloadClient) client);
+            }
+            return client;
+        }
+
+        private DownloadClient buildClient(String url, File destination,
+                DownloadClient.ProgressListener progressListener,
+                DownloadClient.DownloadCallback callback, int engine) throws IOException {
+            Transport transport = Transports.get(url);
+            if (transport != null) {
+                return new TransportDownloadClient(transport, url, destination,
+                        progressListener, callback, mLowCacheMode, mRateLimiter);
+            }
+            if (engine == ENGINE_HTTP2) {
+                return new Http2DownloadClient(url, destination, progressListener, callback,
+                        mUseDuplicateLinks, mLowCacheMode, mRateLimiter, mMaxSegments);
+            }
+            if (mSegmented) {
+                return new SegmentedDownloadClient(url, destination, progressListener,
+                        callback, mUseDuplicateLinks, mMaxSegments, mMirrorScoreboard, engine,
+                        mLowCacheMode, mRetryPolicy, mChunkHashes, mSha256, mRateLimiter, mPeers,
+                        mNetworkPaths);
+            }
+            if (engine == ENGINE_EVENT_LOOP) {
+                return new EventLoopDownloadClient(url, destination, progressListener,
+                        callback, mUseDuplicateLinks);
+            }
+            if (engine == ENGINE_NIO) {
+                return new NioDownloadClient(url, destination, progressListener, callback,
+                        mUseDuplicateLinks, mLowCacheMode, mRateLimiter);
+            }
+            return new HttpURLConnectionClient(url, destination, progressListener, callback,
+                    mUseDuplicateLinks, mLowCacheMode, mRateLimiter);
         }
 
         public Builder setUrl(String url) {
@@ -97,5 +210,140 @@ public interface DownloadClient {
             mUseDuplicateLinks = useDuplicateLinks;
             return this;
         }
+
+        /**
+         * Download the file in multiple byte ranges over parallel connections.
+         * The progress of each range is kept next to the destination so that
+         * the download can be resumed.
+         */
+        public Builder setSegmented(boolean segmented) {
+            mSegmented = segmented;
+            return this;
+        }
+
+        /**
+         * Limit the number of byte ranges downloaded at once, by segmented
+         * downloads or by ENGINE_HTTP2.
+         */
+        public Builder setMaxSegments(int maxSegments) {
+            mMaxSegments = maxSegments;
+            return this;
+        }
+
+        /**
+         * Rank the duplicate links of segmented downloads and cache the mirrors
+         * the URL redirects to. Only used along with setUseDuplicateLinks().
+         */
+        public Builder setMirrorScoreboard(MirrorScoreboard scoreboard) {
+            mMirrorScoreboard = scoreboard;
+            return this;
+        }
+
+        /**
+         * Select how the response is copied to the destination, one of
+         * ENGINE_STREAM (default), ENGINE_NIO, ENGINE_EVENT_LOOP or ENGINE_HTTP2.
+         */
+        public Builder setEngine(int engine) {
+            mEngine = engine;
+            return this;
+        }
+
+        /**
+         * Write the downloaded data back to storage every few megabytes, so
+         * that the destination doesn't fill the page cache with dirty pages.
+         * Not supported by ENGINE_EVENT_LOOP and ENGINE_HTTP2.
+         */
+        public Builder setLowCacheMode(boolean lowCacheMode) {
+            mLowCacheMode = lowCacheMode;
+            return this;
+        }
+
+        /**
+         * Resume the download automatically when it fails for a transient
+         * reason. Only supported by segmented downloads.
+         */
+        public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+            mRetryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Check every chunk of the file against its hash as soon as it is
+         * downloaded and download the damaged ones again. Only supported by
+         * segmented downloads, which keep the hashes to check resumed downloads.
+         */
+        public Builder setChunkHashes(ChunkHashes chunkHashes) {
+            mChunkHashes = chunkHashes;
+            return this;
+        }
+
+        /**
+         * Compute the SHA-256 of segmented downloads while they are written and
+         * check it against the given hex encoded one. Without it, the digest
+         * sent by the server with Repr-Digest, if any, is checked instead, but
+         * only to catch corrupted downloads: it doesn't make isDigestVerified()
+         * true.
+         */
+        public Builder setSha256(String sha256) {
+            mSha256 = sha256;
+            return this;
+        }
+
+        /**
+         * Cap the throughput of the download with a limiter that can be
+         * shared with other downloads. Not supported by ENGINE_EVENT_LOOP.
+         */
+        public Builder setRateLimiter(RateLimiter rateLimiter) {
+            mRateLimiter = rateLimiter;
+            return this;
+        }
+
+        /**
+         * Copy the blocks the file shares with older packages from them and
+         * download the rest only, as described by the block checksums at the
+         * given URL, relative to the download URL. The packages are looked up
+         * in the given directory once the download starts. Only supported by
+         * segmented downloads, which fetch the missing ranges.
+         */
+        public Builder setBlockReuse(String checksumsUrl, File seedDirectory) {
+            mBlockChecksumsUrl = checksumsUrl;
+            mSeedDirectory = seedDirectory;
+            return this;
+        }
+
+        /**
+         * Download the file from the given peers of the local network first,
+         * falling back to the URL once none of them is left. Only supported by
+         * segmented downloads.
+         */
+        public Builder setPeers(List<String> peers) {
+            mPeers = peers;
+            return this;
+        }
+
+        /**
+         * Download segments over the given networks too, in addition to the
+         * default one, each network getting more or fewer of them depending on
+         * its throughput. Only supported by segmented downloads.
+         */
+        public Builder setNetworkPaths(List<NetworkPath> networkPaths) {
+            mNetworkPaths = networkPaths;
+            return this;
+        }
+
+        /**
+         * Send a second request, to the given URL, if the first one didn't
+         * complete after most of the requests recorded by the history did,
+         * keeping whichever completes first. Meant for small files, the
+         * progress isn't reported.
+         *
+         * @param latencyHistory the requests for the file so far, updated
+         *                       with the new one, or null to wait a second
+         */
+        public Builder setHedge(String url, LatencyHistory latencyHistory) {
+            mHedgeUrl = url;
+            mLatencyHistory = latencyHistory;
+            return this;
+        }
     }
 }
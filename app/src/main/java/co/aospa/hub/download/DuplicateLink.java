@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A mirror of the requested file advertised by the server with a
+ * "Link: &lt;url&gt;; rel=duplicate" header.
+ */
+class DuplicateLink {
+
+    private static final String TAG = "DuplicateLink";
+
+    // https://tools.ietf.org/html/rfc6249
+    // https://tools.ietf.org/html/rfc5988#section-5
+    private static final Pattern PATTERN =
+            Pattern.compile("(?i)<(.+)>\\s*;\\s*rel=duplicate(?:.*pri=([0-9]+).*|.*)?");
+
+    final String mUrl;
+    final int mPriority;
+
+    private DuplicateLink(String url, int priority) {
+        mUrl = url;
+        mPriority = priority;
+    }
+
+    /**
+     * Get the duplicate links of the given response headers.
+     *
+     * @return the links sorted by priority, the most preferred first
+     */
+    static List<DuplicateLink> parse(Map<String, List<String>> headers) {
+        List<DuplicateLink> duplicates = new ArrayList<>();
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if ("Link".equalsIgnoreCase((entry.getKey()))) {
+                duplicates.clear();
+                for (String field : entry.getValue()) {
+                    Matcher matcher = PATTERN.matcher(field);
+                    if (matcher.matches()) {
+                        String url = matcher.group(1);
+                        String pri = matcher.group(2);
+                        int priority = pri != null ? Integer.parseInt(pri) : 999999;
+                        duplicates.add(new DuplicateLink(url, priority));
+                        Log.d(TAG, "Adding duplicate link " + url);
+                    } else {
+                        Log.d(TAG, "Ignoring link " + field);
+                    }
+                }
+            }
+        }
+        duplicates.sort(Comparator.comparingInt(d -> d.mPriority));
+        return duplicates;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A single thread multiplexing the sockets of all the transfers run by
+ * EventLoopDownloadClient. Host names are resolved on a second thread since
+ * there's no non-blocking resolver, so two threads serve any number of
+ * transfers.
+ */
+final class EventLoop implements Runnable {
+
+    private static final String TAG = "EventLoop";
+
+    private static final long TICK_MS = 1000;
+
+    interface Handler {
+        /**
+         * Called on the loop thread when the channel is ready for one of the
+         * operations of its interest set.
+         */
+        void onReady(SelectionKey key) throws IOException;
+
+        /**
+         * Called on the loop thread when onReady() threw or the deadline passed.
+         */
+        void onError(IOException e);
+
+        /**
+         * @return the SystemClock.elapsedRealtime() after which the handler
+         *         is considered stalled, or 0 if none
+         */
+        long getDeadline();
+    }
+
+    interface ResolveCallback {
+        void onResolved(InetAddress address);
+
+        void onError(IOException e);
+    }
+
+    private static EventLoop sInstance;
+
+    private final Selector mSelector;
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>();
+    private final ExecutorService mResolver = Executors.newSingleThreadExecutor();
+
+    static synchronized EventLoop getInstance() throws IOException {
+        if (sInstance == null) {
+            sInstance = new EventLoop(Selector.open());
+            Thread thread = new Thread(sInstance, TAG);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return sInstance;
+    }
+
+    private EventLoop(Selector selector) {
+        mSelector = selector;
+    }
+
+    /**
+     * Run the task on the loop thread.
+     */
+    void execute(Runnable task) {
+        mTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    /**
+     * Resolve the host without blocking the loop. The callback is run on the
+     * loop thread.
+     */
+    void resolve(String host, ResolveCallback callback) {
+        mResolver.execute(() -> {
+            try {
+                InetAddress address = InetAddress.getByName(host);
+                execute(() -> callback.onResolved(address));
+            } catch (UnknownHostException e) {
+                execute(() -> callback.onError(e));
+            }
+        });
+    }
+
+    /**
+     * Register the channel, must be called on the loop thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler)
+            throws IOException {
+        channel.configureBlocking(false);
+        return channel.register(mSelector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        long lastTick = SystemClock.elapsedRealtime();
+        for (;;) {
+            try {
+                mSelector.select(TICK_MS);
+            } catch (IOException e) {
+                Log.e(TAG, "Select failed", e);
+            }
+
+            List<SelectionKey> ready = new ArrayList<>(mSelector.selectedKeys());
+            mSelector.selectedKeys().clear();
+            for (SelectionKey key : ready) {
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid()) {
+                        handler.onReady(key);
+                    }
+                } catch (IOException e) {
+                    handler.onError(e);
+                } catch (RuntimeException e) {
+                    // SSLEngine reports some failures as unchecked exceptions
+                    handler.onError(new IOException(e));
+                }
+            }
+
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Task failed", e);
+                }
+            }
+
+            final long now = SystemClock.elapsedRealtime();
+            if (now - lastTick >= TICK_MS) {
+                lastTick = now;
+                for (SelectionKey key : new ArrayList<>(mSelector.keys())) {
+                    Handler handler = (Handler) key.attachment();
+                    long deadline = handler.getDeadline();
+                    if (key.isValid() && deadline > 0 && now > deadline) {
+                        handler.onError(new IOException("Timed out"));
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * A socket of the EventLoop along with its TLS engine for https, moving
+ * data between the network and an application buffer. The transfer using
+ * it is the handler of its key. While it waits in the ConnectionPool, the
+ * connection is its own handler: it completes the handshake of connections
+ * opened ahead of time and drops the connection if the server closes it.
+ */
+final class EventLoopConnection implements EventLoop.Handler {
+
+    private static final String TAG = "EventLoopConnection";
+
+    static final int PLAIN_BUFFER_SIZE = 16 * 1024;
+    private static final int APP_BUFFER_SIZE = 128 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    final String mRoute;
+    private final ConnectionPool mPool;
+    private final SocketChannel mChannel;
+    private final SSLEngine mSsl;
+    private SelectionKey mKey;
+    private ByteBuffer mNetIn;
+    private final ByteBuffer mNetOut;
+    ByteBuffer mAppIn;
+    boolean mEof;
+    private boolean mHandshakeStarted;
+    private long mDeadline;
+
+    private EventLoopConnection(String route, ConnectionPool pool, SocketChannel channel,
+            SSLEngine ssl) {
+        mRoute = route;
+        mPool = pool;
+        mChannel = channel;
+        mSsl = ssl;
+        if (ssl != null) {
+            int packetSize = ssl.getSession().getPacketBufferSize();
+            mNetIn = ByteBuffer.allocate(packetSize);
+            mNetOut = ByteBuffer.allocate(packetSize);
+            mAppIn = ByteBuffer.allocate(Math.max(APP_BUFFER_SIZE,
+                    ssl.getSession().getApplicationBufferSize()));
+        } else {
+            mNetOut = ByteBuffer.allocate(0);
+            mAppIn = ByteBuffer.allocate(PLAIN_BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Get the key identifying the server a connection to the URL goes to.
+     */
+    static String getRoute(URL url) {
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        return url.getProtocol() + "://" + url.getHost() + ":" + port;
+    }
+
+    /**
+     * Start connecting to the server of the URL, must be called on the loop
+     * thread. The handler is told once connected, unless isConnected()
+     * already returns true.
+     *
+     * @param handler the handler of the connection, or null for it to
+     *                handle itself until it is taken from the pool
+     */
+    static EventLoopConnection open(EventLoop loop, ConnectionPool pool, URL url,
+            InetAddress address, EventLoop.Handler handler) throws IOException {
+        String host = url.getHost();
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        SSLEngine ssl;
+        if ("https".equals(url.getProtocol())) {
+            try {
+                // Engines of the same context with the same peer resume its
+                // sessions, like the sockets of HttpsURLConnection
+                ssl = SSLContext.getDefault().createSSLEngine(host, port);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException(e);
+            }
+            ssl.setUseClientMode(true);
+            SSLParameters parameters = ssl.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            ssl.setSSLParameters(parameters);
+        } else if ("http".equals(url.getProtocol())) {
+            ssl = null;
+        } else {
+            throw new IOException("Unsupported protocol " + url.getProtocol());
+        }
+
+        SocketChannel channel = SocketChannel.open();
+        EventLoopConnection connection =
+                new EventLoopConnection(getRoute(url), pool, channel, ssl);
+        try {
+            connection.mKey = loop.register(channel, SelectionKey.OP_CONNECT,
+                    handler != null ? handler : connection);
+            channel.connect(new InetSocketAddress(address, port));
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    boolean isOpen() {
+        return mChannel.isOpen();
+    }
+
+    boolean isConnected() {
+        return mChannel.isConnected();
+    }
+
+    /**
+     * Make the given handler, or the connection itself if null, receive
+     * the events of the connection.
+     */
+    void attach(EventLoop.Handler handler) {
+        mKey.attach(handler != null ? handler : this);
+    }
+
+    boolean finishConnect() throws IOException {
+        return mChannel.finishConnect();
+    }
+
+    void onConnected() throws IOException {
+        if (mSsl != null && !mHandshakeStarted) {
+            mHandshakeStarted = true;
+            mSsl.beginHandshake();
+        }
+    }
+
+    /**
+     * Move as much data as possible between the socket and the TLS engine,
+     * sending what's left of the request and receiving into mAppIn.
+     *
+     * @return whether anything was moved
+     */
+    boolean transfer(ByteBuffer request) throws IOException {
+        if (mSsl != null) {
+            return flush() | wrap(request) | unwrap();
+        }
+        boolean progress = false;
+        if (request.hasRemaining()) {
+            progress = mChannel.write(request) > 0;
+        }
+        return read(mAppIn) | progress;
+    }
+
+    /**
+     * Wait for the socket to be ready for what is left to do.
+     */
+    void updateInterest(ByteBuffer request) {
+        int ops = SelectionKey.OP_READ;
+        if (mNetOut.position() > 0 || (mSsl == null && request.hasRemaining())) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        mKey.interestOps(ops);
+    }
+
+    /**
+     * Whether nothing was received beyond what was consumed, so that the
+     * connection can carry another request.
+     */
+    boolean isDrained() {
+        return !mEof && !mAppIn.hasRemaining() && (mNetIn == null || mNetIn.position() == 0);
+    }
+
+    private boolean read(ByteBuffer buffer) throws IOException {
+        if (mEof || !buffer.hasRemaining()) {
+            return false;
+        }
+        int count = mChannel.read(buffer);
+        if (count < 0) {
+            mEof = true;
+            return true;
+        }
+        return count > 0;
+    }
+
+    private boolean flush() throws IOException {
+        if (mNetOut.position() == 0) {
+            return false;
+        }
+        mNetOut.flip();
+        int count = mChannel.write(mNetOut);
+        mNetOut.compact();
+        return count > 0;
+    }
+
+    private boolean wrap(ByteBuffer request) throws IOException {
+        SSLEngineResult.HandshakeStatus status = mSsl.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            Runnable task;
+            while ((task = mSsl.getDelegatedTask()) != null) {
+                task.run();
+            }
+            return true;
+        }
+        if (status != SSLEngineResult.HandshakeStatus.NEED_WRAP &&
+                (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING ||
+                        !request.hasRemaining())) {
+            return false;
+        }
+        SSLEngineResult result = mSsl.wrap(request, mNetOut);
+        if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new IOException("Connection closed");
+        }
+        return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+
+    private boolean unwrap() throws IOException {
+        boolean progress = read(mNetIn);
+        SSLEngineResult.HandshakeStatus status = mSsl.getHandshakeStatus();
+        if (status != SSLEngineResult.HandshakeStatus.NEED_UNWRAP &&
+                status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            return progress;
+        }
+        mNetIn.flip();
+        SSLEngineResult result = mSsl.unwrap(mNetIn, mAppIn);
+        mNetIn.compact();
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                if (mAppIn.position() == 0) {
+                    mAppIn = ByteBuffer.allocate(
+                            mSsl.getSession().getApplicationBufferSize());
+                    return true;
+                }
+                break;
+            case BUFFER_UNDERFLOW:
+                if (!mNetIn.hasRemaining()) {
+                    ByteBuffer netIn = ByteBuffer.allocate(Math.max(mNetIn.capacity() * 2,
+                            mSsl.getSession().getPacketBufferSize()));
+                    mNetIn.flip();
+                    netIn.put(mNetIn);
+                    mNetIn = netIn;
+                    return true;
+                }
+                break;
+            case CLOSED:
+                mEof = true;
+                break;
+            default:
+                break;
+        }
+        return progress || result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+    }
+
+    /**
+     * Wait in the pool until the given time, handling the connection
+     * itself meanwhile.
+     */
+    void park(long deadline) {
+        mDeadline = deadline;
+        mAppIn.clear();
+        attach(null);
+        if (mChannel.isConnectionPending()) {
+            mKey.interestOps(SelectionKey.OP_CONNECT);
+            return;
+        }
+        try {
+            onConnected();
+            pump();
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            if (!finishConnect()) {
+                return;
+            }
+            onConnected();
+        }
+        pump();
+    }
+
+    private void pump() throws IOException {
+        // Complete the handshake and take the session tickets the server
+        // sends after it, anything else means the connection is unusable
+        boolean progress = true;
+        while (progress) {
+            progress = transfer(EMPTY);
+            if (mEof || mAppIn.position() > 0) {
+                throw new IOException("Closed by the server");
+            }
+        }
+        updateInterest(EMPTY);
+    }
+
+    @Override
+    public void onError(IOException e) {
+        Log.d(TAG, "Dropping idle connection to " + mRoute + ": " + e.getMessage());
+        mPool.remove(this);
+        close();
+    }
+
+    @Override
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    void close() {
+        if (mKey != null) {
+            mKey.cancel();
+        }
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close the connection", e);
+        }
+    }
+}
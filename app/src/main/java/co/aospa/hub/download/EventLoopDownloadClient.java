@@ -0,0 +1,670 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Download client driven by the shared EventLoop instead of a thread of its
+ * own. It speaks plain HTTP/1.1 over non-blocking sockets, using an SSLEngine
+ * for https, so any number of transfers only costs a few buffers each. The
+ * connections are kept alive in the ConnectionPool between transfers.
+ */
+class EventLoopDownloadClient implements DownloadClient {
+
+    private final static String TAG = "EventLoopDownloadClient";
+
+    private static final int MAX_REDIRECTS = 5;
+    private static final long TIMEOUT_MS = 30000;
+
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private static final int STATE_STATUS = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_BODY = 2;
+    private static final int STATE_CHUNK_SIZE = 3;
+    private static final int STATE_CHUNK_DATA = 4;
+    private static final int STATE_CHUNK_END = 5;
+    private static final int STATE_TRAILERS = 6;
+    private static final int STATE_DONE = 7;
+
+    private final URL mUrl;
+    private final File mDestination;
+    private final DownloadClient.ProgressListener mProgressListener;
+    private final DownloadClient.DownloadCallback mCallback;
+    private final boolean mUseDuplicateLinks;
+
+    private Transfer mTransfer;
+    private volatile boolean mConnectionLost;
+
+    EventLoopDownloadClient(String url, File destination,
+            DownloadClient.ProgressListener progressListener,
+            DownloadClient.DownloadCallback callback,
+            boolean useDuplicateLinks) throws IOException {
+        mUrl = new URL(url);
+        mDestination = destination;
+        mProgressListener = progressListener;
+        mCallback = callback;
+        mUseDuplicateLinks = useDuplicateLinks;
+    }
+
+    @Override
+    public void start() {
+        if (mTransfer != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        startTransfer(false);
+    }
+
+    @Override
+    public void resume() {
+        if (mTransfer != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        if (!mDestination.exists()) {
+            mCallback.onFailure(false);
+            return;
+        }
+        startTransfer(true);
+    }
+
+    @Override
+    public boolean isDigestVerified() {
+        return false;
+    }
+
+    @Override
+    public boolean isJournaled() {
+        return false;
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return mConnectionLost;
+    }
+
+    @Override
+    public void cancel() {
+        if (mTransfer == null) {
+            Log.e(TAG, "Not downloading");
+            return;
+        }
+        Transfer transfer = mTransfer;
+        transfer.mLoop.execute(transfer::cancel);
+        mTransfer = null;
+    }
+
+    private void startTransfer(boolean resume) {
+        EventLoop loop;
+        ConnectionPool pool;
+        try {
+            loop = EventLoop.getInstance();
+            pool = ConnectionPool.getInstance();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not start the event loop", e);
+            mCallback.onFailure(false);
+            return;
+        }
+        Transfer transfer = new Transfer(loop, pool, resume);
+        mTransfer = transfer;
+        loop.execute(() -> transfer.connect(mUrl));
+    }
+
+    private static boolean isSuccessCode(int statusCode) {
+        return (statusCode / 100) == 2;
+    }
+
+    private static boolean isRedirectCode(int statusCode) {
+        return (statusCode / 100) == 3;
+    }
+
+    private static boolean isPartialContentCode(int statusCode) {
+        return statusCode == 206;
+    }
+
+    private class Transfer implements EventLoop.Handler {
+
+        private final EventLoop mLoop;
+        private final ConnectionPool mPool;
+        private final boolean mResume;
+        private final long mOffset;
+
+        private URL mCurrentUrl;
+        private int mRedirects;
+        private Queue<String> mDuplicates;
+        private boolean mFinished;
+
+        private EventLoopConnection mConnection;
+        private boolean mReused;
+        // Changed whenever the request being handled is, as the connection
+        // can be the same
+        private int mExchange;
+        private ByteBuffer mRequest;
+        private long mDeadline;
+
+        private int mState;
+        private final StringBuilder mLine = new StringBuilder();
+        private int mStatusCode;
+        private boolean mKeepAlive;
+        private final Map<String, List<String>> mHeaders = new HashMap<>();
+        private long mRemaining;
+        private FileChannel mFile;
+
+        private long mTotalBytes = 0;
+        private long mTotalBytesRead = 0;
+
+        private long mCurSampleBytes = 0;
+        private long mLastMillis = 0;
+        private long mSpeed = -1;
+        private long mEta = -1;
+        private boolean mJustResumed;
+
+        private Transfer(EventLoop loop, ConnectionPool pool, boolean resume) {
+            mLoop = loop;
+            mPool = pool;
+            mResume = resume;
+            mOffset = resume ? mDestination.length() : 0;
+        }
+
+        private void calculateSpeed() {
+            final long millis = SystemClock.elapsedRealtime();
+            if (mJustResumed) {
+                // Start over after resumption, the samples would be meaningless
+                mLastMillis = millis;
+                mSpeed = -1;
+                mCurSampleBytes = mTotalBytesRead;
+                return;
+            }
+            final long delta = millis - mLastMillis;
+            if (delta > 500) {
+                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
+                if (mSpeed == -1) {
+                    mSpeed = curSpeed;
+                } else {
+                    mSpeed = ((mSpeed * 3) + curSpeed) / 4;
+                }
+
+                mLastMillis = millis;
+                mCurSampleBytes = mTotalBytesRead;
+            }
+        }
+
+        private void calculateEta() {
+            if (mSpeed > 0) {
+                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+            }
+        }
+
+        private void touch() {
+            mDeadline = SystemClock.elapsedRealtime() + TIMEOUT_MS;
+        }
+
+        @Override
+        public long getDeadline() {
+            return mDeadline;
+        }
+
+        private String getHeader(String name) {
+            List<String> values = mHeaders.get(name.toLowerCase(Locale.ROOT));
+            return values == null ? null : values.get(values.size() - 1);
+        }
+
+        private void connect(URL url) {
+            if (mFinished) {
+                return;
+            }
+            mCurrentUrl = url;
+            EventLoopConnection connection = mPool.take(url);
+            if (connection == null) {
+                open(url);
+                return;
+            }
+            Log.d(TAG, "Reusing connection to " + connection.mRoute);
+            mConnection = connection;
+            mReused = true;
+            connection.attach(this);
+            prepareRequest();
+            try {
+                // Otherwise it's still connecting and onReady() follows
+                if (connection.isConnected()) {
+                    pump();
+                }
+            } catch (IOException e) {
+                onError(e);
+            }
+        }
+
+        private void open(URL url) {
+            mPool.resolve(url.getHost(), new EventLoop.ResolveCallback() {
+                @Override
+                public void onResolved(InetAddress address) {
+                    if (mFinished) {
+                        return;
+                    }
+                    try {
+                        mConnection = EventLoopConnection.open(mLoop, mPool, url, address,
+                                Transfer.this);
+                        mReused = false;
+                        prepareRequest();
+                        if (mConnection.isConnected()) {
+                            onConnected();
+                        }
+                    } catch (IOException e) {
+                        mPool.invalidate(url.getHost());
+                        onError(e);
+                    }
+                }
+
+                @Override
+                public void onError(IOException e) {
+                    Transfer.this.onError(e);
+                }
+            });
+        }
+
+        private void prepareRequest() {
+            mExchange++;
+            mRequest = buildRequest();
+            mState = STATE_STATUS;
+            mLine.setLength(0);
+            mHeaders.clear();
+            touch();
+        }
+
+        private ByteBuffer buildRequest() {
+            String file = mCurrentUrl.getFile();
+            StringBuilder request = new StringBuilder()
+                    .append("GET ").append(file.isEmpty() ? "/" : file).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(mCurrentUrl.getHost());
+            if (mCurrentUrl.getPort() != -1) {
+                request.append(':').append(mCurrentUrl.getPort());
+            }
+            request.append("\r\n");
+            String userAgent = System.getProperty("http.agent");
+            if (userAgent != null) {
+                request.append("User-Agent: ").append(userAgent).append("\r\n");
+            }
+            if (mResume) {
+                request.append("Range: bytes=").append(mOffset).append("-\r\n");
+            }
+            request.append("Accept-Encoding: identity\r\n\r\n");
+            return ByteBuffer.wrap(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        private void onConnected() throws IOException {
+            mConnection.onConnected();
+            pump();
+        }
+
+        @Override
+        public void onReady(SelectionKey key) throws IOException {
+            touch();
+            if (key.isConnectable()) {
+                if (mConnection.finishConnect()) {
+                    onConnected();
+                }
+                return;
+            }
+            pump();
+        }
+
+        /**
+         * Move as much data as possible between the socket, the TLS engine
+         * and the destination without blocking.
+         */
+        private void pump() throws IOException {
+            final EventLoopConnection connection = mConnection;
+            final int exchange = mExchange;
+            boolean progress = true;
+            while (progress && !mFinished && exchange == mExchange) {
+                progress = connection.transfer(mRequest);
+                // Wait for more data before writing to the disk, unless it stopped coming
+                ByteBuffer appIn = connection.mAppIn;
+                if (appIn.position() > 0 &&
+                        (!progress || appIn.remaining() < EventLoopConnection.PLAIN_BUFFER_SIZE)) {
+                    appIn.flip();
+                    int remaining = appIn.remaining();
+                    consume(appIn);
+                    if (exchange != mExchange) {
+                        // Given back to the pool or replaced
+                        return;
+                    }
+                    progress |= appIn.remaining() < remaining;
+                    appIn.compact();
+                }
+            }
+            if (mFinished || exchange != mExchange) {
+                return;
+            }
+            if (connection.mEof && connection.mAppIn.position() == 0) {
+                onEndOfStream();
+                return;
+            }
+            connection.updateInterest(mRequest);
+        }
+
+        /**
+         * Read a CRLF terminated line, returning null if it isn't complete yet.
+         */
+        private String readLine(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                char c = (char) (data.get() & 0xff);
+                if (c == '\n') {
+                    int length = mLine.length();
+                    if (length > 0 && mLine.charAt(length - 1) == '\r') {
+                        mLine.setLength(length - 1);
+                    }
+                    String line = mLine.toString();
+                    mLine.setLength(0);
+                    return line;
+                }
+                if (mLine.length() >= MAX_LINE_LENGTH) {
+                    throw new IOException("Line too long");
+                }
+                mLine.append(c);
+            }
+            return null;
+        }
+
+        private void consume(ByteBuffer data) throws IOException {
+            final int exchange = mExchange;
+            while (data.hasRemaining() && !mFinished && exchange == mExchange) {
+                String line;
+                switch (mState) {
+                    case STATE_STATUS:
+                        if ((line = readLine(data)) != null) {
+                            String[] status = line.split(" ", 3);
+                            if (status.length < 2 || !status[0].startsWith("HTTP/")) {
+                                throw new IOException("Invalid status line: " + line);
+                            }
+                            mKeepAlive = !"HTTP/1.0".equals(status[0]);
+                            try {
+                                mStatusCode = Integer.parseInt(status[1]);
+                            } catch (NumberFormatException e) {
+                                throw new IOException("Invalid status line: " + line);
+                            }
+                            mState = STATE_HEADERS;
+                        }
+                        break;
+                    case STATE_HEADERS:
+                        if ((line = readLine(data)) != null) {
+                            if (line.isEmpty()) {
+                                onHeaders();
+                            } else {
+                                int colon = line.indexOf(':');
+                                if (colon > 0) {
+                                    String name = line.substring(0, colon).trim()
+                                            .toLowerCase(Locale.ROOT);
+                                    List<String> values = mHeaders.get(name);
+                                    if (values == null) {
+                                        values = new ArrayList<>();
+                                        mHeaders.put(name, values);
+                                    }
+                                    values.add(line.substring(colon + 1).trim());
+                                }
+                            }
+                        }
+                        break;
+                    case STATE_BODY:
+                        writeBody(data, mRemaining < 0 ?
+                                data.remaining() : (int) Math.min(data.remaining(), mRemaining));
+                        if (mRemaining == 0) {
+                            onComplete();
+                        }
+                        break;
+                    case STATE_CHUNK_SIZE:
+                        if ((line = readLine(data)) != null) {
+                            int extension = line.indexOf(';');
+                            String size = extension >= 0 ? line.substring(0, extension) : line;
+                            try {
+                                mRemaining = Long.parseLong(size.trim(), 16);
+                            } catch (NumberFormatException e) {
+                                throw new IOException("Invalid chunk size: " + line);
+                            }
+                            mState = mRemaining == 0 ? STATE_TRAILERS : STATE_CHUNK_DATA;
+                        }
+                        break;
+                    case STATE_CHUNK_DATA:
+                        writeBody(data, (int) Math.min(data.remaining(), mRemaining));
+                        if (mRemaining == 0) {
+                            mState = STATE_CHUNK_END;
+                        }
+                        break;
+                    case STATE_CHUNK_END:
+                        if ((line = readLine(data)) != null) {
+                            if (!line.isEmpty()) {
+                                throw new IOException("Invalid chunk terminator");
+                            }
+                            mState = STATE_CHUNK_SIZE;
+                        }
+                        break;
+                    case STATE_TRAILERS:
+                        if ((line = readLine(data)) != null && line.isEmpty()) {
+                            onComplete();
+                        }
+                        break;
+                    default:
+                        // Ignore anything after the body
+                        data.position(data.limit());
+                        break;
+                }
+            }
+        }
+
+        private void onHeaders() throws IOException {
+            String connection = getHeader("Connection");
+            if (connection != null && connection.toLowerCase(Locale.ROOT).contains("close")) {
+                mKeepAlive = false;
+            }
+
+            if (isRedirectCode(mStatusCode) && getHeader("Location") != null) {
+                if (++mRedirects > MAX_REDIRECTS) {
+                    throw new IOException("Too many redirects");
+                }
+                if (mUseDuplicateLinks && mDuplicates == null) {
+                    mDuplicates = new ArrayDeque<>();
+                    for (DuplicateLink link : DuplicateLink.parse(mHeaders)) {
+                        mDuplicates.add(link.mUrl);
+                    }
+                }
+                URL url = new URL(mCurrentUrl, getHeader("Location"));
+                if (!url.getProtocol().equals(mCurrentUrl.getProtocol())) {
+                    throw new IOException("Protocol changes are not allowed");
+                }
+                Log.d(TAG, "Downloading from " + url);
+                // Keep the connection if there's no body to skip
+                if (mKeepAlive && "0".equals(getHeader("Content-Length")) &&
+                        mConnection.isDrained()) {
+                    mPool.release(mConnection);
+                    mConnection = null;
+                }
+                closeConnection();
+                connect(url);
+                return;
+            }
+
+            mCallback.onResponse(this::getHeader);
+
+            if (mResume && isPartialContentCode(mStatusCode)) {
+                mJustResumed = true;
+                mTotalBytesRead = mOffset;
+                Log.d(TAG, "The server fulfilled the partial content request");
+            } else if (mResume) {
+                Log.e(TAG, "The server replied with code " + mStatusCode);
+                finish();
+                mCallback.onFailure(false);
+                return;
+            } else if (!isSuccessCode(mStatusCode)) {
+                throw new IOException("Server replied with " + mStatusCode);
+            }
+
+            long contentLength = -1;
+            String length = getHeader("Content-Length");
+            if (length != null) {
+                try {
+                    contentLength = Long.parseLong(length);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid Content-Length: " + length);
+                }
+            }
+            mTotalBytes = contentLength + mTotalBytesRead;
+            mFile = new FileOutputStream(mDestination, mResume).getChannel();
+
+            String transferEncoding = getHeader("Transfer-Encoding");
+            if (transferEncoding != null &&
+                    transferEncoding.toLowerCase(Locale.ROOT).contains("chunked")) {
+                mState = STATE_CHUNK_SIZE;
+            } else {
+                // Without a length, the body ends with the connection
+                mKeepAlive &= contentLength >= 0;
+                mRemaining = contentLength;
+                mState = STATE_BODY;
+                if (mRemaining == 0) {
+                    onComplete();
+                }
+            }
+        }
+
+        private void writeBody(ByteBuffer data, int count) throws IOException {
+            int limit = data.limit();
+            data.limit(data.position() + count);
+            while (data.hasRemaining()) {
+                mFile.write(data);
+            }
+            data.limit(limit);
+            if (mRemaining > 0) {
+                mRemaining -= count;
+            }
+            mTotalBytesRead += count;
+            calculateSpeed();
+            calculateEta();
+            mJustResumed = false;
+            if (mProgressListener != null) {
+                mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+            }
+        }
+
+        private void onEndOfStream() throws IOException {
+            if (mState == STATE_BODY && mRemaining < 0) {
+                // The body was delimited by the end of the connection
+                onComplete();
+                return;
+            }
+            throw new IOException("Unexpected end of stream");
+        }
+
+        private void onComplete() {
+            mState = STATE_DONE;
+            if (mProgressListener != null) {
+                mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+            }
+            // Called while consuming the received data, so anything left
+            // belongs to no request
+            if (mKeepAlive && mConnection.isDrained()) {
+                mPool.release(mConnection);
+                mConnection = null;
+            }
+            finish();
+            mCallback.onSuccess();
+        }
+
+        @Override
+        public void onError(IOException e) {
+            if (mFinished) {
+                return;
+            }
+            if (mReused && mState == STATE_STATUS && mLine.length() == 0) {
+                // The server closed the idle connection before getting the
+                // request, send it again over a new one
+                Log.d(TAG, "Reused connection failed: " + e.getMessage());
+                closeConnection();
+                open(mCurrentUrl);
+                return;
+            }
+            // Like HttpURLConnectionClient, fall back to the next duplicate
+            // link as long as we haven't received anything
+            if (mFile == null && mDuplicates != null && !mDuplicates.isEmpty()) {
+                String newUrl = mDuplicates.poll();
+                Log.e(TAG, "Using duplicate link " + newUrl, e);
+                closeConnection();
+                try {
+                    URL url = new URL(newUrl);
+                    if (!url.getProtocol().equals(mCurrentUrl.getProtocol())) {
+                        throw new IOException("Protocol changes are not allowed");
+                    }
+                    connect(url);
+                } catch (IOException ex) {
+                    onError(ex);
+                }
+                return;
+            }
+            Log.e(TAG, "Error downloading file", e);
+            finish();
+            mConnectionLost = NetworkErrors.isConnectionLost(e);
+            mCallback.onFailure(false);
+        }
+
+        private void cancel() {
+            if (mFinished) {
+                return;
+            }
+            finish();
+            mCallback.onFailure(true);
+        }
+
+        private void closeConnection() {
+            if (mConnection != null) {
+                mConnection.close();
+                mConnection = null;
+            }
+            mExchange++;
+            mReused = false;
+            mDeadline = 0;
+        }
+
+        private void finish() {
+            mFinished = true;
+            closeConnection();
+            if (mFile != null) {
+                try {
+                    mFile.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close " + mDestination.getName(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+/**
+ * Transport for file:// URLs, for instance of a mounted USB drive.
+ */
+final class FileTransport implements Transport {
+
+    private static File getFile(String url) throws IOException {
+        try {
+            return new File(new URI(url));
+        } catch (IllegalArgumentException | URISyntaxException e) {
+            throw new IOException("Invalid file URL " + url, e);
+        }
+    }
+
+    @Override
+    public long getLength(String url) throws IOException {
+        File file = getFile(url);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getPath());
+        }
+        return file.length();
+    }
+
+    @Override
+    public InputStream open(String url, long offset) throws IOException {
+        FileInputStream in = new FileInputStream(getFile(url));
+        try {
+            in.getChannel().position(offset);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+}
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Download client for small files, sending a second request to another URL
+ * when the first one takes longer than most requests used to. Whichever
+ * completes first is kept and the other one is cancelled, so that a slow
+ * server or connection doesn't hold up the download for long.
+ */
+class HedgedDownloadClient implements DownloadClient {
+
+    private final static String TAG = "HedgedDownloadClient";
+
+    // Hedge the slowest tenth of the requests, for a tenth more of them
+    private static final int HEDGE_PERCENTILE = 90;
+    private static final long DEFAULT_HEDGE_DELAY_MS = 1000;
+    private static final long MIN_HEDGE_DELAY_MS = 200;
+    private static final long MAX_HEDGE_DELAY_MS = 5000;
+
+    private static final int PRIMARY = 0;
+    private static final int HEDGE = 1;
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_RUNNING = 1;
+    private static final int STATE_FAILED = 2;
+
+    private static final ScheduledExecutorService sTimer =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /**
+     * Builds the client of one of the requests, to the given destination.
+     */
+    interface Request {
+        DownloadClient build(File destination, DownloadClient.DownloadCallback callback)
+                throws IOException;
+    }
+
+    private final File mDestination;
+    private final DownloadClient.DownloadCallback mCallback;
+    private final LatencyHistory mLatencyHistory;
+    private final Request[] mRequests;
+
+    private final DownloadClient[] mClients = new DownloadClient[2];
+    private final int[] mStates = new int[2];
+    private final long[] mStartMillis = new long[2];
+    private ScheduledFuture<?> mHedgeTimer;
+    private boolean mStarted;
+    private boolean mResponded;
+    private boolean mDone;
+    private boolean mCancelled;
+    // Whether every request that failed lost its connection
+    private boolean mConnectionLost = true;
+
+    HedgedDownloadClient(File destination, DownloadClient.DownloadCallback callback,
+            LatencyHistory latencyHistory, Request primary, Request hedge) {
+        mDestination = destination;
+        mCallback = callback;
+        mLatencyHistory = latencyHistory;
+        mRequests = new Request[] { primary, hedge };
+    }
+
+    private File getFile(int index) {
+        return new File(mDestination.getAbsolutePath() + (index == PRIMARY ? ".0" : ".1"));
+    }
+
+    private long getHedgeDelay() {
+        if (mLatencyHistory == null) {
+            return DEFAULT_HEDGE_DELAY_MS;
+        }
+        long delay = mLatencyHistory.getPercentile(HEDGE_PERCENTILE, DEFAULT_HEDGE_DELAY_MS);
+        return Math.min(Math.max(delay, MIN_HEDGE_DELAY_MS), MAX_HEDGE_DELAY_MS);
+    }
+
+    @Override
+    public void start() {
+        synchronized (this) {
+            if (mStarted) {
+                Log.e(TAG, "Already downloading");
+                return;
+            }
+            mStarted = true;
+            // The history may have to be read from storage first, which
+            // the caller's thread shouldn't wait for
+            mHedgeTimer = sTimer.schedule(this::scheduleHedge, 0, TimeUnit.MILLISECONDS);
+        }
+        startRequest(PRIMARY);
+    }
+
+    private void scheduleHedge() {
+        final long delay = getHedgeDelay();
+        synchronized (this) {
+            if (mDone || mCancelled) {
+                return;
+            }
+            mHedgeTimer = sTimer.schedule(this::onHedgeTimer, delay, TimeUnit.MILLISECONDS);
+        }
+        Log.d(TAG, "Hedging after " + delay + " ms");
+    }
+
+    @Override
+    public void resume() {
+        // Nothing worth resuming in a small file, and either URL may complete
+        start();
+    }
+
+    @Override
+    public boolean isDigestVerified() {
+        return false;
+    }
+
+    @Override
+    public boolean isJournaled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isConnectionLost() {
+        return mConnectionLost;
+    }
+
+    @Override
+    public void cancel() {
+        final DownloadClient[] clients;
+        synchronized (this) {
+            if (!mStarted || mDone) {
+                Log.e(TAG, "Not downloading");
+                return;
+            }
+            mCancelled = true;
+            clients = stopOthers(-1);
+        }
+        cancel(clients);
+        onRequestFinished();
+    }
+
+    private void onHedgeTimer() {
+        synchronized (this) {
+            if (mDone || mStates[HEDGE] != STATE_PENDING) {
+                return;
+            }
+            Log.d(TAG, "No response after " +
+                    (SystemClock.elapsedRealtime() - mStartMillis[PRIMARY]) + " ms, hedging");
+        }
+        startRequest(HEDGE);
+    }
+
+    private void startRequest(int index) {
+        final File file = getFile(index);
+        synchronized (this) {
+            if (mDone || mCancelled || mStates[index] != STATE_PENDING) {
+                return;
+            }
+            mStates[index] = STATE_RUNNING;
+            mStartMillis[index] = SystemClock.elapsedRealtime();
+        }
+        final DownloadClient client;
+        try {
+            client = mRequests[index].build(file, new RequestCallback(index));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not build the client of request " + index, e);
+            onRequestFailed(index);
+            return;
+        }
+        final boolean stopped;
+        synchronized (this) {
+            stopped = mCancelled || mDone;
+            if (stopped) {
+                mStates[index] = STATE_FAILED;
+            } else {
+                mClients[index] = client;
+            }
+        }
+        if (stopped) {
+            onRequestFinished();
+        } else {
+            client.start();
+        }
+    }
+
+    /**
+     * Stop the requests other than the given one, or all if -1.
+     *
+     * @return the clients to cancel outside of the lock
+     */
+    private DownloadClient[] stopOthers(int index) {
+        if (mHedgeTimer != null) {
+            mHedgeTimer.cancel(false);
+            mHedgeTimer = null;
+        }
+        DownloadClient[] clients = new DownloadClient[2];
+        for (int i = 0; i < 2; i++) {
+            if (i == index) {
+                continue;
+            }
+            if (mStates[i] == STATE_PENDING) {
+                mStates[i] = STATE_FAILED;
+            }
+            clients[i] = mClients[i];
+            mClients[i] = null;
+        }
+        return clients;
+    }
+
+    private static void cancel(DownloadClient[] clients) {
+        for (DownloadClient client : clients) {
+            if (client != null) {
+                client.cancel();
+            }
+        }
+    }
+
+    private void onRequestSucceeded(int index) {
+        final DownloadClient[] clients;
+        final long latency;
+        final boolean won;
+        synchronized (this) {
+            mClients[index] = null;
+            won = !mDone && !mCancelled;
+            if (won) {
+                mDone = true;
+                // What the caller waited for, which is what the hedge delay
+                // is meant to bound, even when the hedge won
+                latency = SystemClock.elapsedRealtime() - mStartMillis[PRIMARY];
+                clients = stopOthers(index);
+            } else {
+                // Lost the race, or cancelled too late to stop it
+                mStates[index] = STATE_FAILED;
+                deleteFile(index);
+                latency = 0;
+                clients = null;
+            }
+        }
+        if (!won) {
+            onRequestFinished();
+            return;
+        }
+        cancel(clients);
+        Log.d(TAG, "Request " + index + " completed " + latency + " ms after the first one");
+        if (mLatencyHistory != null) {
+            mLatencyHistory.record(latency);
+        }
+        if (getFile(index).renameTo(mDestination)) {
+            mCallback.onSuccess();
+        } else {
+            Log.e(TAG, "Could not move the response to " + mDestination);
+            deleteFile(index);
+            mCallback.onFailure(false);
+        }
+    }
+
+    private void onRequestFailed(int index) {
+        synchronized (this) {
+            if (mClients[index] == null || !mClients[index].isConnectionLost()) {
+                mConnectionLost = false;
+            }
+            mClients[index] = null;
+            mStates[index] = STATE_FAILED;
+            deleteFile(index);
+        }
+        if (index == PRIMARY) {
+            // Don't wait for the timer to try the other URL
+            startRequest(HEDGE);
+        }
+        onRequestFinished();
+    }
+
+    private void onRequestFinished() {
+        final boolean cancelled;
+        synchronized (this) {
+            if (mDone || mStates[PRIMARY] != STATE_FAILED || mStates[HEDGE] != STATE_FAILED) {
+                return;
+            }
+            mDone = true;
+            cancelled = mCancelled;
+        }
+        mCallback.onFailure(cancelled);
+    }
+
+    private void deleteFile(int index) {
+        File file = getFile(index);
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Could not delete " + file);
+        }
+    }
+
+    private class RequestCallback implements DownloadClient.DownloadCallback {
+
+        private final int mIndex;
+
+        private RequestCallback(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public void onResponse(DownloadClient.Headers headers) {
+            synchronized (HedgedDownloadClient.this) {
+                if (mResponded || mDone) {
+                    return;
+                }
+                mResponded = true;
+            }
+            mCallback.onResponse(headers);
+        }
+
+        @Override
+        public void onSuccess() {
+            onRequestSucceeded(mIndex);
+        }
+
+        @Override
+        public void onFailure(boolean cancelled) {
+            onRequestFailed(mIndex);
+        }
+    }
+}
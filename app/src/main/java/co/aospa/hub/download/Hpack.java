@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HPACK header compression (RFC 7541) as needed by Http2Connection. Requests
+ * are encoded with literals only, which keeps the encoder stateless, while
+ * responses can use everything the format allows. Headers are lists of
+ * alternating names and values.
+ */
+final class Hpack {
+
+    static final int DEFAULT_TABLE_SIZE = 4096;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""},
+            {":method", "GET"},
+            {":method", "POST"},
+            {":path", "/"},
+            {":path", "/index.html"},
+            {":scheme", "http"},
+            {":scheme", "https"},
+            {":status", "200"},
+            {":status", "204"},
+            {":status", "206"},
+            {":status", "304"},
+            {":status", "400"},
+            {":status", "404"},
+            {":status", "500"},
+            {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""},
+            {"accept-ranges", ""},
+            {"accept", ""},
+            {"access-control-allow-origin", ""},
+            {"age", ""},
+            {"allow", ""},
+            {"authorization", ""},
+            {"cache-control", ""},
+            {"content-disposition", ""},
+            {"content-encoding", ""},
+            {"content-language", ""},
+            {"content-length", ""},
+            {"content-location", ""},
+            {"content-range", ""},
+            {"content-type", ""},
+            {"cookie", ""},
+            {"date", ""},
+            {"etag", ""},
+            {"expect", ""},
+            {"expires", ""},
+            {"from", ""},
+            {"host", ""},
+            {"if-match", ""},
+            {"if-modified-since", ""},
+            {"if-none-match", ""},
+            {"if-range", ""},
+            {"if-unmodified-since", ""},
+            {"last-modified", ""},
+            {"link", ""},
+            {"location", ""},
+            {"max-forwards", ""},
+            {"proxy-authenticate", ""},
+            {"proxy-authorization", ""},
+            {"range", ""},
+            {"referer", ""},
+            {"refresh", ""},
+            {"retry-after", ""},
+            {"server", ""},
+            {"set-cookie", ""},
+            {"strict-transport-security", ""},
+            {"transfer-encoding", ""},
+            {"user-agent", ""},
+            {"vary", ""},
+            {"via", ""},
+            {"www-authenticate", ""},
+    };
+
+    // Static table indexes used to encode requests
+    private static final int INDEX_AUTHORITY = 1;
+    private static final int INDEX_METHOD_GET = 2;
+    private static final int INDEX_PATH = 4;
+    private static final int INDEX_SCHEME_HTTP = 6;
+    private static final int INDEX_SCHEME_HTTPS = 7;
+
+    // Length of the Huffman code of every byte and of EOS, the code being
+    // canonical it can be built from them alone
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30,
+    };
+    private static final int EOS = 256;
+    private static final int MAX_CODE_LENGTH = 30;
+
+    // Canonical decoding: the symbols sorted by code, and for each length
+    // the first code, how many codes have it and where they start
+    private static final int[] SORTED_SYMBOLS = new int[HUFFMAN_LENGTHS.length];
+    private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] CODE_OFFSET = new int[MAX_CODE_LENGTH + 1];
+
+    static {
+        int index = 0;
+        int code = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            FIRST_CODE[length] = code;
+            CODE_OFFSET[length] = index;
+            for (int symbol = 0; symbol < HUFFMAN_LENGTHS.length; symbol++) {
+                if (HUFFMAN_LENGTHS[symbol] == length) {
+                    SORTED_SYMBOLS[index++] = symbol;
+                    code++;
+                }
+            }
+            CODE_COUNT[length] = index - CODE_OFFSET[length];
+            code <<= 1;
+        }
+    }
+
+    private Hpack() {
+    }
+
+    /**
+     * Encode a GET request.
+     *
+     * @param headers the regular headers, with lower case names
+     */
+    static byte[] encodeRequest(String scheme, String authority, String path,
+            List<String> headers) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInt(out, 0x80, 7, INDEX_METHOD_GET);
+        writeInt(out, 0x80, 7, "https".equals(scheme) ? INDEX_SCHEME_HTTPS : INDEX_SCHEME_HTTP);
+        writeLiteral(out, INDEX_AUTHORITY, authority);
+        writeLiteral(out, INDEX_PATH, path);
+        for (int i = 0; i < headers.size(); i += 2) {
+            out.write(0);
+            writeString(out, headers.get(i));
+            writeString(out, headers.get(i + 1));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write a literal header field without indexing whose name is in the
+     * static table.
+     */
+    private static void writeLiteral(ByteArrayOutputStream out, int nameIndex, String value) {
+        writeInt(out, 0, 4, nameIndex);
+        writeString(out, value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+        writeInt(out, 0, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits,
+            int value) {
+        final int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Decodes the header blocks of a connection, which must all go through
+     * it in order to keep the dynamic table in sync with the peer.
+     */
+    static final class Decoder {
+
+        // Entries are name and value pairs, the most recent first
+        private final ArrayDeque<String[]> mTable = new ArrayDeque<>();
+        private final int mMaxTableSize;
+        private int mTableLimit;
+        private int mTableSize;
+
+        private byte[] mBlock;
+        private int mPosition;
+        private int mEnd;
+
+        /**
+         * @param maxTableSize the table size advertised to the peer
+         */
+        Decoder(int maxTableSize) {
+            mMaxTableSize = maxTableSize;
+            mTableLimit = maxTableSize;
+        }
+
+        List<String> decode(byte[] block, int length) throws IOException {
+            mBlock = block;
+            mPosition = 0;
+            mEnd = length;
+            List<String> headers = new ArrayList<>();
+            while (mPosition < mEnd) {
+                final int b = mBlock[mPosition] & 0xff;
+                if ((b & 0x80) != 0) {
+                    String[] entry = getEntry(readInt(7));
+                    headers.add(entry[0]);
+                    headers.add(entry[1]);
+                } else if ((b & 0x40) != 0) {
+                    String[] entry = readLiteral(6);
+                    add(entry);
+                    headers.add(entry[0]);
+                    headers.add(entry[1]);
+                } else if ((b & 0x20) != 0) {
+                    int limit = readInt(5);
+                    if (limit > mMaxTableSize) {
+                        throw new IOException("Invalid table size " + limit);
+                    }
+                    mTableLimit = limit;
+                    evict();
+                } else {
+                    // Without indexing or never indexed, which only matters
+                    // to intermediaries
+                    String[] entry = readLiteral(4);
+                    headers.add(entry[0]);
+                    headers.add(entry[1]);
+                }
+            }
+            mBlock = null;
+            return headers;
+        }
+
+        private String[] readLiteral(int prefixBits) throws IOException {
+            int index = readInt(prefixBits);
+            String name = index == 0 ? readString() : getEntry(index)[0];
+            return new String[] {name, readString()};
+        }
+
+        private String[] getEntry(int index) throws IOException {
+            if (index <= 0) {
+                throw new IOException("Invalid header index " + index);
+            } else if (index <= STATIC_TABLE.length) {
+                return STATIC_TABLE[index - 1];
+            }
+            index -= STATIC_TABLE.length + 1;
+            if (index >= mTable.size()) {
+                throw new IOException("Invalid header index " + index);
+            }
+            for (String[] entry : mTable) {
+                if (index-- == 0) {
+                    return entry;
+                }
+            }
+            throw new IllegalStateException();
+        }
+
+        private void add(String[] entry) {
+            int size = entrySize(entry);
+            if (size > mTableLimit) {
+                // Adding an entry larger than the table empties it
+                mTable.clear();
+                mTableSize = 0;
+                return;
+            }
+            mTable.addFirst(entry);
+            mTableSize += size;
+            evict();
+        }
+
+        private void evict() {
+            while (mTableSize > mTableLimit) {
+                mTableSize -= entrySize(mTable.removeLast());
+            }
+        }
+
+        private static int entrySize(String[] entry) {
+            return entry[0].length() + entry[1].length() + 32;
+        }
+
+        private int readByte() throws IOException {
+            if (mPosition >= mEnd) {
+                throw new IOException("Truncated header block");
+            }
+            return mBlock[mPosition++] & 0xff;
+        }
+
+        private int readInt(int prefixBits) throws IOException {
+            final int max = (1 << prefixBits) - 1;
+            int value = readByte() & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; shift < 28; shift += 7) {
+                int b = readByte();
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Integer too large");
+        }
+
+        private String readString() throws IOException {
+            if (mPosition >= mEnd) {
+                throw new IOException("Truncated header block");
+            }
+            final boolean huffman = (mBlock[mPosition] & 0x80) != 0;
+            final int length = readInt(7);
+            if (length > mEnd - mPosition) {
+                throw new IOException("Truncated header block");
+            }
+            final int start = mPosition;
+            mPosition += length;
+            if (!huffman) {
+                return new String(mBlock, start, length, StandardCharsets.ISO_8859_1);
+            }
+            return decodeHuffman(mBlock, start, length);
+        }
+    }
+
+    private static String decodeHuffman(byte[] data, int start, int length)
+            throws IOException {
+        StringBuilder decoded = new StringBuilder(length * 8 / 5);
+        int code = 0;
+        int codeLength = 0;
+        for (int i = start; i < start + length; i++) {
+            for (int bit = 7; bit >= 0; bit--) {
+                code = (code << 1) | ((data[i] >> bit) & 1);
+                codeLength++;
+                int rank = code - FIRST_CODE[codeLength];
+                if (rank >= 0 && rank < CODE_COUNT[codeLength]) {
+                    int symbol = SORTED_SYMBOLS[CODE_OFFSET[codeLength] + rank];
+                    if (symbol == EOS) {
+                        throw new IOException("EOS in Huffman string");
+                    }
+                    decoded.append((char) symbol);
+                    code = 0;
+                    codeLength = 0;
+                } else if (codeLength == MAX_CODE_LENGTH) {
+                    throw new IOException("Invalid Huffman code");
+                }
+            }
+        }
+        // The padding is the beginning of EOS, all ones and shorter than a byte
+        if (codeLength > 7 || code != (1 << codeLength) - 1) {
+            throw new IOException("Invalid Huffman padding");
+        }
+        return decoded.toString();
+    }
+}
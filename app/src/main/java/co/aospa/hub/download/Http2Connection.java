@@ -0,0 +1,788 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Client side of an HTTP/2 connection (RFC 9113), carrying any number of
+ * GET requests as concurrent streams. A thread reads the frames and queues
+ * the body of every stream until it is consumed, and only then lets the
+ * server send more, so that a slow consumer holds back its stream alone.
+ * The flow control windows are large enough to keep a fast link busy
+ * across the round trip. Connections are shared by all the requests to the
+ * same server and negotiated with ALPN, so only https is supported.
+ */
+final class Http2Connection implements Runnable {
+
+    private static final String TAG = "Http2Connection";
+
+    private static final byte[] PREFACE =
+            "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private static final int TYPE_DATA = 0x0;
+    private static final int TYPE_HEADERS = 0x1;
+    private static final int TYPE_RST_STREAM = 0x3;
+    private static final int TYPE_SETTINGS = 0x4;
+    private static final int TYPE_PUSH_PROMISE = 0x5;
+    private static final int TYPE_PING = 0x6;
+    private static final int TYPE_GOAWAY = 0x7;
+    private static final int TYPE_WINDOW_UPDATE = 0x8;
+    private static final int TYPE_CONTINUATION = 0x9;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+    private static final int FLAG_PRIORITY = 0x20;
+
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+    private static final int ERROR_NO_ERROR = 0x0;
+    private static final int ERROR_PROTOCOL = 0x1;
+    private static final int ERROR_CANCEL = 0x8;
+
+    private static final int FRAME_HEADER_SIZE = 9;
+    private static final int DEFAULT_WINDOW = 65535;
+    private static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+    // Enough in flight for a fast link with a long round trip, which is
+    // also how much can end up queued when the consumers fall behind
+    private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+    private static final int STREAM_WINDOW = 4 * 1024 * 1024;
+    // Larger frames mean fewer of them to handle for the same data
+    private static final int MAX_FRAME_SIZE = 64 * 1024;
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    // Ping the server when it's silent for this long while streams are
+    // open, and give up if it's still silent after as long
+    private static final int PING_INTERVAL_MS = StallWatchdog.STALL_TIMEOUT_MS / 2;
+    // Close the connection after this many intervals without streams
+    private static final int MAX_IDLE_INTERVALS = 4;
+
+    // Servers known to not negotiate HTTP/2, so that they aren't asked again
+    private static final Set<String> sHttp1Routes = new HashSet<>();
+    private static final Map<String, Http2Connection> sConnections = new HashMap<>();
+
+    /**
+     * Told when a stream has something new: the response headers, data, its
+     * end or an error. Called on the reader thread, it must return quickly.
+     */
+    interface StreamListener {
+        void onReadable(Stream stream);
+    }
+
+    final class Stream {
+        final int mId;
+        private final StreamListener mListener;
+
+        // Guarded by the connection
+        private final ArrayDeque<ByteBuffer> mData = new ArrayDeque<>();
+        private List<String> mHeaders;
+        private int mStatus;
+        private boolean mEnded;
+        private boolean mCancelled;
+        private IOException mError;
+        private int mUnacknowledged;
+
+        private Stream(int id, StreamListener listener) {
+            mId = id;
+            mListener = listener;
+        }
+
+        /**
+         * @return the status of the final response, or 0 if it isn't there yet
+         */
+        int getStatus() throws IOException {
+            synchronized (Http2Connection.this) {
+                if (mStatus == 0 && mError != null) {
+                    throw mError;
+                }
+                return mStatus;
+            }
+        }
+
+        /**
+         * @return the last value of the response header with the given name
+         */
+        String getHeader(String name) {
+            final String lowerName = name.toLowerCase(Locale.ROOT);
+            synchronized (Http2Connection.this) {
+                String value = null;
+                for (int i = 0; mHeaders != null && i < mHeaders.size(); i += 2) {
+                    if (mHeaders.get(i).equals(lowerName)) {
+                        value = mHeaders.get(i + 1);
+                    }
+                }
+                return value;
+            }
+        }
+
+        /**
+         * @return the values of every response header
+         */
+        Map<String, List<String>> getHeaders() {
+            Map<String, List<String>> headers = new HashMap<>();
+            synchronized (Http2Connection.this) {
+                for (int i = 0; mHeaders != null && i < mHeaders.size(); i += 2) {
+                    List<String> values = headers.get(mHeaders.get(i));
+                    if (values == null) {
+                        values = new ArrayList<>();
+                        headers.put(mHeaders.get(i), values);
+                    }
+                    values.add(mHeaders.get(i + 1));
+                }
+            }
+            return headers;
+        }
+
+        /**
+         * Take the next part of the body. Its size must be given back to
+         * consumed() once it was handled, for the server to send more.
+         *
+         * @return the data, or null if none was received yet
+         * @throws IOException if the stream failed
+         */
+        ByteBuffer poll() throws IOException {
+            synchronized (Http2Connection.this) {
+                ByteBuffer data = mData.poll();
+                if (data == null && mError != null) {
+                    throw mError;
+                }
+                return data;
+            }
+        }
+
+        /**
+         * @return whether the whole body was taken
+         */
+        boolean isFinished() {
+            synchronized (Http2Connection.this) {
+                return mEnded && mData.isEmpty();
+            }
+        }
+
+        void consumed(int count) {
+            int streamIncrement = 0;
+            synchronized (Http2Connection.this) {
+                mUnacknowledged += count;
+                if (!mEnded && !mCancelled && mUnacknowledged >= STREAM_WINDOW / 2) {
+                    streamIncrement = mUnacknowledged;
+                    mUnacknowledged = 0;
+                }
+            }
+            if (streamIncrement > 0) {
+                sendWindowUpdate(mId, streamIncrement);
+            }
+            consumedConnection(count);
+        }
+
+        /**
+         * Stop receiving the response, the server being told to stop sending it.
+         */
+        void cancel() {
+            int queued = 0;
+            synchronized (Http2Connection.this) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+                for (ByteBuffer data : mData) {
+                    queued += data.remaining();
+                }
+                mData.clear();
+                if (!mEnded && mError == null) {
+                    mStreams.remove(mId);
+                } else {
+                    return;
+                }
+            }
+            consumedConnection(queued);
+            try {
+                writeFrame(TYPE_RST_STREAM, 0, mId, intBytes(ERROR_CANCEL));
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private final String mRoute;
+    private final Socket mSocket;
+    private final DataInputStream mIn;
+    private final OutputStream mOut;
+    private final Hpack.Decoder mDecoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+    // Guarded by this
+    private final Map<Integer, Stream> mStreams = new HashMap<>();
+    private int mNextStreamId = 1;
+    private int mMaxStreams = Integer.MAX_VALUE;
+    private int mPeerMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int mConnectionUnacknowledged;
+    private boolean mShutdown;
+    private IOException mError;
+
+    // Only used by the reader thread
+    private final byte[] mFrame = new byte[MAX_FRAME_SIZE];
+    private boolean mPingSent;
+    private int mIdleIntervals;
+
+    private Http2Connection(String route, Socket socket) throws IOException {
+        mRoute = route;
+        mSocket = socket;
+        mIn = new DataInputStream(socket.getInputStream());
+        mOut = new BufferedOutputStream(socket.getOutputStream(), MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Get a connection to the server of the URL, opening one if there's no
+     * usable one. Blocks while connecting.
+     *
+     * @return the connection, or null if the server doesn't support HTTP/2
+     */
+    static Http2Connection get(URL url) throws IOException {
+        final String route = EventLoopConnection.getRoute(url);
+        synchronized (sConnections) {
+            if (!"https".equals(url.getProtocol()) || sHttp1Routes.contains(route)) {
+                return null;
+            }
+            Http2Connection connection = sConnections.get(route);
+            if (connection != null && connection.isUsable()) {
+                return connection;
+            }
+            connection = open(url, route);
+            if (connection == null) {
+                Log.d(TAG, route + " doesn't support HTTP/2");
+                sHttp1Routes.add(route);
+                return null;
+            }
+            sConnections.put(route, connection);
+            return connection;
+        }
+    }
+
+    private static Http2Connection open(URL url, String route) throws IOException {
+        final String host = url.getHost();
+        final int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        Socket plain = new Socket();
+        plain.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        SSLSocket socket = null;
+        try {
+            // Same factory as HttpsURLConnection, sharing its TLS sessions
+            socket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault())
+                    .createSocket(plain, host, port, true);
+            SSLParameters parameters = socket.getSSLParameters();
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+            parameters.setApplicationProtocols(new String[] {"h2", "http/1.1"});
+            socket.setSSLParameters(parameters);
+            socket.setSoTimeout(StallWatchdog.STALL_TIMEOUT_MS);
+            socket.startHandshake();
+            if (!"h2".equals(socket.getApplicationProtocol())) {
+                socket.close();
+                return null;
+            }
+            socket.setSoTimeout(PING_INTERVAL_MS);
+            Http2Connection connection = new Http2Connection(route, socket);
+            connection.start();
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            if (socket != null) {
+                socket.close();
+            } else {
+                plain.close();
+            }
+            throw e;
+        }
+    }
+
+    private void start() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(18);
+        settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+        settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW);
+        settings.putShort((short) SETTINGS_MAX_FRAME_SIZE).putInt(MAX_FRAME_SIZE);
+        synchronized (mOut) {
+            mOut.write(PREFACE);
+            writeFrameLocked(TYPE_SETTINGS, 0, 0, settings.array(), settings.array().length);
+            writeFrameLocked(TYPE_WINDOW_UPDATE, 0, 0,
+                    intBytes(CONNECTION_WINDOW - DEFAULT_WINDOW), 4);
+            mOut.flush();
+        }
+        Thread thread = new Thread(this, TAG + " " + mRoute);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private synchronized boolean isUsable() {
+        return !mShutdown && mNextStreamId > 0;
+    }
+
+    /**
+     * @return how many more streams the server accepts
+     */
+    synchronized int getAvailableStreams() {
+        return mShutdown ? 0 : Math.max(0, mMaxStreams - mStreams.size());
+    }
+
+    /**
+     * Send a GET request for the URL as a new stream.
+     *
+     * @param headers additional request headers, as names and values
+     */
+    Stream newStream(URL url, List<String> headers, StreamListener listener)
+            throws IOException {
+        String authority = url.getPort() != -1 ? url.getHost() + ":" + url.getPort() :
+                url.getHost();
+        String path = url.getFile().isEmpty() ? "/" : url.getFile();
+        List<String> requestHeaders = new ArrayList<>(headers);
+        String userAgent = System.getProperty("http.agent");
+        if (userAgent != null) {
+            requestHeaders.add("user-agent");
+            requestHeaders.add(userAgent);
+        }
+        byte[] block = Hpack.encodeRequest(url.getProtocol(), authority, path, requestHeaders);
+        Stream stream;
+        // Streams must be opened in the order of their ids
+        synchronized (mOut) {
+            synchronized (this) {
+                if (mError != null) {
+                    throw new IOException("Connection failed", mError);
+                } else if (!isUsable()) {
+                    throw new IOException("Connection shutting down");
+                }
+                stream = new Stream(mNextStreamId, listener);
+                mNextStreamId += 2;
+                mStreams.put(stream.mId, stream);
+            }
+            try {
+                int frameSize;
+                synchronized (this) {
+                    frameSize = mPeerMaxFrameSize;
+                }
+                int offset = 0;
+                do {
+                    int length = Math.min(frameSize, block.length - offset);
+                    boolean last = offset + length == block.length;
+                    byte[] fragment = new byte[length];
+                    System.arraycopy(block, offset, fragment, 0, length);
+                    writeFrameLocked(offset == 0 ? TYPE_HEADERS : TYPE_CONTINUATION,
+                            (offset == 0 ? FLAG_END_STREAM : 0) | (last ? FLAG_END_HEADERS : 0),
+                            stream.mId, fragment, length);
+                    offset += length;
+                } while (offset < block.length);
+                mOut.flush();
+            } catch (IOException e) {
+                fail(e);
+                throw e;
+            }
+        }
+        return stream;
+    }
+
+    private void writeFrame(int type, int flags, int streamId, byte[] payload)
+            throws IOException {
+        synchronized (mOut) {
+            writeFrameLocked(type, flags, streamId, payload, payload.length);
+            mOut.flush();
+        }
+    }
+
+    private void writeFrameLocked(int type, int flags, int streamId, byte[] payload,
+            int length) throws IOException {
+        mOut.write(length >>> 16);
+        mOut.write(length >>> 8);
+        mOut.write(length);
+        mOut.write(type);
+        mOut.write(flags);
+        mOut.write(intBytes(streamId));
+        mOut.write(payload, 0, length);
+    }
+
+    private static byte[] intBytes(int value) {
+        return new byte[] {
+                (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value
+        };
+    }
+
+    private void sendWindowUpdate(int streamId, int increment) {
+        try {
+            writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, intBytes(increment));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void consumedConnection(int count) {
+        int increment = 0;
+        synchronized (this) {
+            mConnectionUnacknowledged += count;
+            if (mConnectionUnacknowledged >= CONNECTION_WINDOW / 2) {
+                increment = mConnectionUnacknowledged;
+                mConnectionUnacknowledged = 0;
+            }
+        }
+        if (increment > 0) {
+            sendWindowUpdate(0, increment);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            for (;;) {
+                int length;
+                try {
+                    length = mIn.readUnsignedByte() << 16;
+                } catch (SocketTimeoutException e) {
+                    if (onSilence()) {
+                        continue;
+                    }
+                    break;
+                }
+                mPingSent = false;
+                mIdleIntervals = 0;
+                length |= mIn.readUnsignedShort();
+                final int type = mIn.readUnsignedByte();
+                final int flags = mIn.readUnsignedByte();
+                final int streamId = mIn.readInt() & 0x7fffffff;
+                if (length > MAX_FRAME_SIZE) {
+                    throw new IOException("Frame too large: " + length);
+                }
+                mIn.readFully(mFrame, 0, length);
+                onFrame(type, flags, streamId, length);
+            }
+        } catch (EOFException e) {
+            fail(new IOException("Connection closed by the server"));
+        } catch (IOException e) {
+            fail(e);
+        }
+        closeSocket();
+    }
+
+    /**
+     * Called when nothing was received for a while.
+     *
+     * @return false to close the connection
+     */
+    private boolean onSilence() throws IOException {
+        boolean idle;
+        synchronized (this) {
+            idle = mStreams.isEmpty();
+        }
+        if (idle) {
+            if (++mIdleIntervals < MAX_IDLE_INTERVALS) {
+                return true;
+            }
+            synchronized (this) {
+                if (!mStreams.isEmpty()) {
+                    return true;
+                }
+                mShutdown = true;
+            }
+            removeConnection();
+            writeFrame(TYPE_GOAWAY, 0, 0, new byte[8]);
+            return false;
+        }
+        if (mPingSent) {
+            throw new SocketTimeoutException("Nothing received for " +
+                    PING_INTERVAL_MS * 2 + " ms");
+        }
+        mPingSent = true;
+        writeFrame(TYPE_PING, 0, 0, new byte[8]);
+        return true;
+    }
+
+    private void onFrame(int type, int flags, int streamId, int length) throws IOException {
+        switch (type) {
+            case TYPE_DATA:
+                onData(flags, streamId, length);
+                break;
+            case TYPE_HEADERS:
+                onHeaders(flags, streamId, length);
+                break;
+            case TYPE_RST_STREAM:
+                if (length != 4) {
+                    throw new IOException("Invalid RST_STREAM");
+                }
+                onReset(streamId, ByteBuffer.wrap(mFrame).getInt());
+                break;
+            case TYPE_SETTINGS:
+                if ((flags & FLAG_ACK) == 0) {
+                    onSettings(length);
+                }
+                break;
+            case TYPE_PING:
+                if ((flags & FLAG_ACK) == 0) {
+                    byte[] payload = new byte[8];
+                    System.arraycopy(mFrame, 0, payload, 0, Math.min(length, 8));
+                    writeFrame(TYPE_PING, FLAG_ACK, 0, payload);
+                }
+                break;
+            case TYPE_GOAWAY:
+                onGoAway(length);
+                break;
+            case TYPE_PUSH_PROMISE:
+                throw new IOException("Unexpected PUSH_PROMISE");
+            case TYPE_CONTINUATION:
+                throw new IOException("Unexpected CONTINUATION");
+            default:
+                // Nothing to send means the windows given by the server and
+                // PRIORITY don't matter, and unknown frames are ignored
+                break;
+        }
+    }
+
+    /**
+     * @return the length of the payload without its padding
+     */
+    private int unpad(int flags, int length, int offset) throws IOException {
+        if ((flags & FLAG_PADDED) == 0) {
+            return length;
+        }
+        int padding = mFrame[0] & 0xff;
+        if (padding > length - offset) {
+            throw new IOException("Invalid padding");
+        }
+        return length - padding;
+    }
+
+    private void onData(int flags, int streamId, int length) throws IOException {
+        final int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        final int end = unpad(flags, length, offset);
+        Stream stream;
+        synchronized (this) {
+            stream = mStreams.get(streamId);
+            if (stream != null && !stream.mCancelled) {
+                ByteBuffer data = ByteBuffer.allocate(end - offset);
+                data.put(mFrame, offset, end - offset).flip();
+                if (data.hasRemaining()) {
+                    stream.mData.add(data);
+                }
+                // The padding counts in the windows too
+                stream.mUnacknowledged += length - data.remaining();
+                if ((flags & FLAG_END_STREAM) != 0) {
+                    stream.mEnded = true;
+                    mStreams.remove(streamId);
+                }
+            } else {
+                stream = null;
+            }
+        }
+        if (stream == null) {
+            consumedConnection(length);
+            return;
+        }
+        consumedConnection(0);
+        stream.mListener.onReadable(stream);
+    }
+
+    private void onHeaders(int flags, int streamId, int length) throws IOException {
+        int offset = (flags & FLAG_PADDED) != 0 ? 1 : 0;
+        final int end = unpad(flags, length, offset);
+        if ((flags & FLAG_PRIORITY) != 0) {
+            offset += 5;
+        }
+        if (offset > end) {
+            throw new IOException("Invalid HEADERS");
+        }
+        byte[] block = new byte[end - offset];
+        System.arraycopy(mFrame, offset, block, 0, block.length);
+        int blockLength = block.length;
+        int continuationFlags = flags;
+        while ((continuationFlags & FLAG_END_HEADERS) == 0) {
+            int fragmentLength = mIn.readUnsignedByte() << 16 | mIn.readUnsignedShort();
+            int type = mIn.readUnsignedByte();
+            continuationFlags = mIn.readUnsignedByte();
+            int id = mIn.readInt() & 0x7fffffff;
+            if (type != TYPE_CONTINUATION || id != streamId ||
+                    fragmentLength > MAX_FRAME_SIZE) {
+                throw new IOException("Expected CONTINUATION");
+            }
+            if (blockLength + fragmentLength > block.length) {
+                byte[] larger = new byte[Math.max(block.length * 2,
+                        blockLength + fragmentLength)];
+                System.arraycopy(block, 0, larger, 0, blockLength);
+                block = larger;
+            }
+            mIn.readFully(block, blockLength, fragmentLength);
+            blockLength += fragmentLength;
+        }
+        // Decoded even for streams that are gone, to keep the table in sync
+        List<String> headers = mDecoder.decode(block, blockLength);
+
+        Stream stream;
+        synchronized (this) {
+            stream = mStreams.get(streamId);
+            if (stream == null || stream.mCancelled) {
+                return;
+            }
+            if (stream.mStatus == 0) {
+                int status = 0;
+                if (headers.size() >= 2 && headers.get(0).equals(":status")) {
+                    try {
+                        status = Integer.parseInt(headers.get(1));
+                    } catch (NumberFormatException e) {
+                        // Handled below
+                    }
+                }
+                if (status < 100 || status > 999) {
+                    throw new IOException("Invalid response status");
+                }
+                // Informational responses come before the final one
+                if (status >= 200) {
+                    stream.mStatus = status;
+                    stream.mHeaders = headers;
+                }
+            }
+            if ((flags & FLAG_END_STREAM) != 0) {
+                stream.mEnded = true;
+                mStreams.remove(streamId);
+                if (stream.mStatus == 0) {
+                    stream.mError = new IOException("No final response");
+                }
+            }
+        }
+        stream.mListener.onReadable(stream);
+    }
+
+    private void onReset(int streamId, int errorCode) {
+        Stream stream;
+        synchronized (this) {
+            stream = mStreams.remove(streamId);
+            if (stream == null) {
+                return;
+            }
+            stream.mError = new IOException("Stream reset by the server, error " + errorCode);
+        }
+        stream.mListener.onReadable(stream);
+    }
+
+    private void onSettings(int length) throws IOException {
+        if (length % 6 != 0) {
+            throw new IOException("Invalid SETTINGS");
+        }
+        ByteBuffer settings = ByteBuffer.wrap(mFrame, 0, length);
+        synchronized (this) {
+            while (settings.hasRemaining()) {
+                int id = settings.getShort() & 0xffff;
+                long value = settings.getInt() & 0xffffffffL;
+                if (id == SETTINGS_MAX_CONCURRENT_STREAMS) {
+                    mMaxStreams = (int) Math.min(value, Integer.MAX_VALUE);
+                } else if (id == SETTINGS_MAX_FRAME_SIZE) {
+                    if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                        throw new IOException("Invalid max frame size " + value);
+                    }
+                    mPeerMaxFrameSize = (int) value;
+                }
+                // Requests are encoded without the dynamic table, so the
+                // size the server allows for it doesn't matter either
+            }
+        }
+        writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0]);
+    }
+
+    private void onGoAway(int length) throws IOException {
+        if (length < 8) {
+            throw new IOException("Invalid GOAWAY");
+        }
+        ByteBuffer payload = ByteBuffer.wrap(mFrame, 0, length);
+        final int lastStreamId = payload.getInt() & 0x7fffffff;
+        final int errorCode = payload.getInt();
+        Log.d(TAG, mRoute + " is going away, error " + errorCode);
+        List<Stream> refused = new ArrayList<>();
+        synchronized (this) {
+            mShutdown = true;
+            for (Stream stream : new ArrayList<>(mStreams.values())) {
+                if (stream.mId > lastStreamId) {
+                    stream.mError = new IOException("Stream refused by the server");
+                    mStreams.remove(stream.mId);
+                    refused.add(stream);
+                }
+            }
+        }
+        removeConnection();
+        for (Stream stream : refused) {
+            stream.mListener.onReadable(stream);
+        }
+    }
+
+    private void removeConnection() {
+        synchronized (sConnections) {
+            if (sConnections.get(mRoute) == this) {
+                sConnections.remove(mRoute);
+            }
+        }
+    }
+
+    /**
+     * Fail all the streams, the connection can't be used anymore.
+     */
+    private void fail(IOException error) {
+        List<Stream> streams;
+        synchronized (this) {
+            if (mError != null) {
+                return;
+            }
+            mError = error;
+            mShutdown = true;
+            streams = new ArrayList<>(mStreams.values());
+            mStreams.clear();
+            for (Stream stream : streams) {
+                stream.mError = error;
+            }
+        }
+        Log.e(TAG, "Connection to " + mRoute + " failed", error);
+        removeConnection();
+        closeSocket();
+        for (Stream stream : streams) {
+            stream.mListener.onReadable(stream);
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            mSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close the connection", e);
+        }
+    }
+}
@@ -0,0 +1,628 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Download client sending its requests as streams of a shared
+ * Http2Connection. Once the server told it supports ranges, the rest of the
+ * file is requested in a few ranges at once over the same connection, which
+ * gets the speed of parallel connections without their handshakes or their
+ * competition for the link. The ranges still missing are kept in a
+ * SegmentState journal, since they don't complete in order. Servers that
+ * don't negotiate HTTP/2 are left to HttpURLConnectionClient.
+ */
+class Http2DownloadClient implements DownloadClient {
+
+    private final static String TAG = "Http2DownloadClient";
+
+    private static final int MAX_REDIRECTS = 5;
+
+    // Smaller ranges aren't worth a stream of their own
+    private static final long MIN_PART_LENGTH = 4 * 1024 * 1024;
+
+    private static final long SAVE_INTERVAL_MS = 5000;
+
+    private final URL mUrl;
+    private final File mDestination;
+    private final DownloadClient.ProgressListener mProgressListener;
+    private final DownloadClient.DownloadCallback mCallback;
+    private final boolean mUseDuplicateLinks;
+    private final boolean mLowCacheMode;
+    private final RateLimiter mRateLimiter;
+    private final int mMaxStreams;
+
+    private DownloadThread mDownloadThread;
+    // Guarded by this, the client taking over for servers without HTTP/2
+    private DownloadClient mFallback;
+    private boolean mCancelled;
+    private volatile boolean mConnectionLost;
+
+    Http2DownloadClient(String url, File destination,
+            DownloadClient.ProgressListener progressListener,
+            DownloadClient.DownloadCallback callback,
+            boolean useDuplicateLinks, boolean lowCacheMode, RateLimiter rateLimiter,
+            int maxStreams) throws IOException {
+        mUrl = new URL(url);
+        mDestination = destination;
+        mProgressListener = progressListener;
+        mCallback = callback;
+        mUseDuplicateLinks = useDuplicateLinks;
+        mLowCacheMode = lowCacheMode;
+        mRateLimiter = rateLimiter;
+        mMaxStreams = maxStreams;
+    }
+
+    @Override
+    public void start() {
+        if (mDownloadThread != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        mDownloadThread = new DownloadThread(false);
+        mDownloadThread.start();
+    }
+
+    @Override
+    public void resume() {
+        if (mDownloadThread != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        if (!mDestination.exists()) {
+            mCallback.onFailure(false);
+            return;
+        }
+        mDownloadThread = new DownloadThread(true);
+        mDownloadThread.start();
+    }
+
+    @Override
+    public boolean isDigestVerified() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isJournaled() {
+        // Not when it falls back to HttpURLConnection
+        return mFallback == null;
+    }
+
+    @Override
+    public synchronized boolean isConnectionLost() {
+        return mFallback != null ? mFallback.isConnectionLost() : mConnectionLost;
+    }
+
+    @Override
+    public void cancel() {
+        if (mDownloadThread == null) {
+            Log.e(TAG, "Not downloading");
+            return;
+        }
+        synchronized (this) {
+            mCancelled = true;
+            if (mFallback != null) {
+                mFallback.cancel();
+            }
+        }
+        mDownloadThread.interrupt();
+        mDownloadThread = null;
+    }
+
+    private static boolean isSuccessCode(int statusCode) {
+        return (statusCode / 100) == 2;
+    }
+
+    private static boolean isRedirectCode(int statusCode) {
+        return (statusCode / 100) == 3;
+    }
+
+    private static boolean isPartialContentCode(int statusCode) {
+        return statusCode == 206;
+    }
+
+    private static long parseLength(String value) {
+        try {
+            return value != null ? Long.parseLong(value.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class Headers implements DownloadClient.Headers {
+        private final Http2Connection.Stream mStream;
+
+        private Headers(Http2Connection.Stream stream) {
+            mStream = stream;
+        }
+
+        @Override
+        public String get(String name) {
+            return mStream.getHeader(name);
+        }
+    }
+
+    /**
+     * A byte range of the file received by a stream, one of the segments of
+     * the journal.
+     */
+    private class Part {
+        private final Http2Connection.Stream mStream;
+        private final SegmentState.Segment mSegment;
+        private final long mStart;
+        // Exclusive, or -1 to take the whole response
+        private final long mEnd;
+        private long mPosition;
+        private boolean mStatusChecked;
+
+        private Part(Http2Connection.Stream stream, SegmentState.Segment segment, long start,
+                long end, boolean statusChecked) {
+            mStream = stream;
+            mSegment = segment;
+            mStart = start;
+            mEnd = end;
+            mPosition = start;
+            mStatusChecked = statusChecked;
+        }
+    }
+
+    private class DownloadThread extends Thread implements Http2Connection.StreamListener {
+
+        private long mTotalBytes = 0;
+        private long mTotalBytesRead = 0;
+
+        private long mCurSampleBytes = 0;
+        private long mLastMillis = 0;
+        private long mSpeed = -1;
+        private long mEta = -1;
+
+        private final boolean mResume;
+        private boolean mJustResumed;
+
+        private final StallWatchdog mWatchdog = new StallWatchdog();
+        private SegmentState mState;
+        // The parts being received, over the connection to mPartUrl
+        private final List<Part> mParts = new ArrayList<>();
+        private Http2Connection mConnection;
+        private URL mPartUrl;
+        private String mValidator;
+        private String mEtag;
+
+        private final Object mLock = new Object();
+        // Guarded by mLock
+        private boolean mReadable;
+
+        private DownloadThread(boolean resume) {
+            mResume = resume;
+        }
+
+        @Override
+        public void onReadable(Http2Connection.Stream stream) {
+            synchronized (mLock) {
+                mReadable = true;
+                mLock.notifyAll();
+            }
+        }
+
+        /**
+         * Wait for a stream to have something new, at most as long as a
+         * connection may stay silent.
+         */
+        private void waitReadable() throws IOException {
+            synchronized (mLock) {
+                try {
+                    if (!mReadable) {
+                        mLock.wait(StallWatchdog.STALL_TIMEOUT_MS);
+                    }
+                } catch (InterruptedException e) {
+                    interrupt();
+                    throw new InterruptedIOException();
+                }
+                mReadable = false;
+            }
+        }
+
+        private void calculateSpeed() {
+            final long millis = SystemClock.elapsedRealtime();
+            if (mJustResumed) {
+                // Start over after resumption, the delta would be huge otherwise
+                mLastMillis = millis;
+                mSpeed = -1;
+                mCurSampleBytes = mTotalBytesRead;
+                return;
+            }
+            final long delta = millis - mLastMillis;
+            if (delta > 500) {
+                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
+                if (mSpeed == -1) {
+                    mSpeed = curSpeed;
+                } else {
+                    mSpeed = ((mSpeed * 3) + curSpeed) / 4;
+                }
+
+                mLastMillis = millis;
+                mCurSampleBytes = mTotalBytesRead;
+            }
+        }
+
+        private void calculateEta() {
+            if (mSpeed > 0) {
+                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+            }
+        }
+
+        private void onTransferred(int count) {
+            mTotalBytesRead += count;
+            calculateSpeed();
+            calculateEta();
+            mJustResumed = false;
+            if (mProgressListener != null) {
+                mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+            }
+        }
+
+        /**
+         * Hand the download over to HttpURLConnectionClient.
+         *
+         * @param redirected whether the URL is the target of a redirect
+         */
+        private void fallBack(URL url, boolean redirected) throws IOException {
+            Log.d(TAG, "Downloading " + url + " over HTTP/1.1");
+            if (mResume) {
+                // HttpURLConnectionClient resumes from the length of the file
+                try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                    file.setLength(mState.getDownloadedEnd(0));
+                }
+            }
+            SegmentState.delete(mDestination);
+            DownloadClient client = new HttpURLConnectionClient(url.toString(), mDestination,
+                    mProgressListener, mCallback, mUseDuplicateLinks && !redirected,
+                    mLowCacheMode, mRateLimiter);
+            synchronized (Http2DownloadClient.this) {
+                if (mCancelled) {
+                    mCallback.onFailure(true);
+                    return;
+                }
+                mFallback = client;
+                if (mResume) {
+                    client.resume();
+                } else {
+                    client.start();
+                }
+            }
+        }
+
+        private int awaitStatus(Http2Connection.Stream stream) throws IOException {
+            mWatchdog.restart(mTotalBytesRead);
+            for (;;) {
+                int status = stream.getStatus();
+                if (status != 0) {
+                    return status;
+                }
+                waitReadable();
+                mWatchdog.check(mTotalBytesRead, -1);
+            }
+        }
+
+        @Override
+        public void run() {
+            Http2Connection.Stream stream = null;
+            try {
+                mState = mResume ? SegmentState.load(mDestination) : null;
+                if (mState == null) {
+                    // Either a new download or one that was started without a journal
+                    mState = SegmentState.create(mDestination,
+                            mResume ? mDestination.length() : 0);
+                }
+                // The destination may be preallocated from onResponse(), it
+                // must not be taken for downloaded if we are killed
+                mState.save();
+                SegmentState.Segment first = mState.acquireFirst();
+                if (first == null) {
+                    Log.d(TAG, "Nothing left to download");
+                    SegmentState.delete(mDestination);
+                    mCallback.onSuccess();
+                    return;
+                }
+                // Ask for the rest of the file from the first missing byte,
+                // unless the parts already downloaded are from another file
+                final boolean ranged = mState.getDownloadedBytes() > 0;
+                final long offset = mState.getPosition(first);
+                URL url = mUrl;
+                Http2Connection connection;
+                int status;
+                int redirects = 0;
+                for (;;) {
+                    connection = Http2Connection.get(url);
+                    if (connection == null) {
+                        fallBack(url, redirects > 0);
+                        return;
+                    }
+                    List<String> headers = new ArrayList<>();
+                    if (ranged) {
+                        headers.add("range");
+                        headers.add("bytes=" + offset + "-");
+                        String validator = mState.getValidator(url);
+                        if (validator != null) {
+                            headers.add("if-range");
+                            headers.add(validator);
+                        }
+                    }
+                    stream = connection.newStream(url, headers, this);
+                    status = awaitStatus(stream);
+                    String location = stream.getHeader("Location");
+                    if (!isRedirectCode(status) || location == null) {
+                        break;
+                    }
+                    stream.cancel();
+                    stream = null;
+                    URL target = new URL(url, location);
+                    if (!target.getProtocol().equals(url.getProtocol())) {
+                        throw new IOException("Protocol changes are not allowed");
+                    } else if (++redirects > MAX_REDIRECTS) {
+                        throw new IOException("Too many redirects");
+                    }
+                    Log.d(TAG, "Redirected to " + target);
+                    url = target;
+                }
+
+                mCallback.onResponse(new Headers(stream));
+
+                final long contentLength = parseLength(stream.getHeader("Content-Length"));
+                final boolean resumed = ranged && isPartialContentCode(status);
+                if (resumed) {
+                    String contentRange = stream.getHeader("Content-Range");
+                    if (contentRange == null ||
+                            !contentRange.startsWith("bytes " + offset + "-")) {
+                        throw new IOException("Server replied to a range request with " +
+                                contentRange);
+                    }
+                    if (mState.getLength() == SegmentState.UNKNOWN_LENGTH) {
+                        int slash = contentRange.lastIndexOf('/');
+                        long length = slash < 0 ? -1 :
+                                parseLength(contentRange.substring(slash + 1));
+                        if (length >= 0) {
+                            mState.setLength(length);
+                        }
+                    }
+                    mJustResumed = true;
+                    Log.d(TAG, "The server fulfilled the partial content request");
+                } else if (isSuccessCode(status) && !isPartialContentCode(status)) {
+                    if (ranged) {
+                        // The file changed or the server ignored the range
+                        Log.d(TAG, "The server sent the whole file, downloading it again");
+                        mState = SegmentState.create(mDestination, 0);
+                        first = mState.acquireFirst();
+                    }
+                    if (contentLength >= 0) {
+                        mState.setLength(contentLength);
+                    }
+                    mState.setValidator(url, getValidator(stream));
+                } else {
+                    Log.e(TAG, "The server replied with code " + status);
+                    stream.cancel();
+                    mCallback.onFailure(isInterrupted());
+                    return;
+                }
+
+                mTotalBytesRead = mState.getDownloadedBytes();
+                mTotalBytes = mState.getLength() != SegmentState.UNKNOWN_LENGTH ?
+                        mState.getLength() : mTotalBytesRead + contentLength;
+                mValidator = getValidator(stream);
+                mEtag = stream.getHeader("ETag");
+                mConnection = connection;
+                mPartUrl = url;
+                try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                    if (!resumed) {
+                        // Only drop what is past the end, keeping the blocks
+                        // that may have been reserved for the file
+                        long length = mState.getLength();
+                        file.setLength(length != SegmentState.UNKNOWN_LENGTH ? length : 0);
+                    }
+                    mState.save();
+                    Http2Connection.Stream firstStream = stream;
+                    stream = null;
+                    try {
+                        split(first, firstStream, status);
+                        transfer(file.getChannel());
+                    } catch (IOException e) {
+                        for (Part part : mParts) {
+                            part.mStream.cancel();
+                        }
+                        throw e;
+                    }
+                }
+                SegmentState.delete(mDestination);
+                if (mProgressListener != null) {
+                    mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+                }
+                mCallback.onSuccess();
+            } catch (IOException e) {
+                if (stream != null) {
+                    stream.cancel();
+                }
+                Log.e(TAG, "Error downloading file", e);
+                if (mState != null) {
+                    try {
+                        mState.save();
+                    } catch (IOException saveError) {
+                        Log.e(TAG, "Could not save the journal", saveError);
+                    }
+                }
+                mConnectionLost = NetworkErrors.isConnectionLost(e);
+                mCallback.onFailure(isInterrupted());
+            }
+        }
+
+        private String getValidator(Http2Connection.Stream stream) {
+            String etag = stream.getHeader("ETag");
+            return etag != null ? etag : stream.getHeader("Last-Modified");
+        }
+
+        /**
+         * Let the stream of the response receive the first segment and, if
+         * the whole file is requested, the server supports ranges and the file
+         * is large enough, cut the rest in segments requested at once.
+         */
+        private void split(SegmentState.Segment first, Http2Connection.Stream stream,
+                int status) throws IOException {
+            final long length = mState.getLength();
+            if (status == 200 && length != SegmentState.UNKNOWN_LENGTH &&
+                    "bytes".equalsIgnoreCase(stream.getHeader("Accept-Ranges"))) {
+                int count = (int) Math.min(mMaxStreams, length / MIN_PART_LENGTH);
+                count = Math.min(count, mConnection.getAvailableStreams() + 1);
+                if (count > 1) {
+                    Log.d(TAG, "Downloading " + length + " bytes in " + count + " streams");
+                    final long partLength = length / count;
+                    for (int i = count - 1; i > 0; i--) {
+                        mState.split(first, i * partLength);
+                    }
+                }
+            }
+            final long end = mState.getEnd(first);
+            mParts.add(new Part(stream, first, mState.getPosition(first),
+                    end != Long.MAX_VALUE ? end : -1, true));
+        }
+
+        /**
+         * Request the segments nobody is downloading, as long as the server
+         * accepts more streams.
+         */
+        private void openParts() throws IOException {
+            while (mParts.size() < mMaxStreams && mConnection.getAvailableStreams() > 0) {
+                SegmentState.Segment segment = mState.acquireFirst();
+                if (segment == null) {
+                    return;
+                }
+                final long start = mState.getPosition(segment);
+                final long end = mState.getEnd(segment);
+                List<String> headers = new ArrayList<>(Arrays.asList(
+                        "range", "bytes=" + start + "-" + (end - 1)));
+                // Don't mix the parts of different files if it changes meanwhile
+                if (mEtag != null) {
+                    headers.add("if-match");
+                    headers.add(mEtag);
+                }
+                mParts.add(new Part(mConnection.newStream(mPartUrl, headers, this), segment,
+                        start, end, false));
+            }
+        }
+
+        private void checkPartStatus(Part part) throws IOException {
+            int status = part.mStream.getStatus();
+            String contentRange = part.mStream.getHeader("Content-Range");
+            if (!isPartialContentCode(status) || contentRange == null ||
+                    !contentRange.startsWith("bytes " + part.mStart + "-") ||
+                    !Objects.equals(mValidator, getValidator(part.mStream))) {
+                throw new IOException("Server replied to a range request with " + status +
+                        " " + contentRange);
+            }
+            part.mStatusChecked = true;
+        }
+
+        private void transfer(FileChannel channel) throws IOException {
+            mWatchdog.restart(mTotalBytesRead);
+            long lastSave = SystemClock.elapsedRealtime();
+            for (;;) {
+                for (Iterator<Part> it = mParts.iterator(); it.hasNext(); ) {
+                    if (drain(it.next(), channel)) {
+                        it.remove();
+                    }
+                }
+                openParts();
+                if (mParts.isEmpty()) {
+                    return;
+                }
+                if (isInterrupted()) {
+                    throw new InterruptedIOException();
+                }
+                final long now = SystemClock.elapsedRealtime();
+                if (now - lastSave >= SAVE_INTERVAL_MS) {
+                    mState.save();
+                    lastSave = now;
+                }
+                waitReadable();
+                mWatchdog.check(mTotalBytesRead, -1);
+            }
+        }
+
+        /**
+         * Write what the stream of the part received so far, recording it in
+         * the journal.
+         *
+         * @return whether the part is complete
+         */
+        private boolean drain(Part part, FileChannel channel) throws IOException {
+            if (!part.mStatusChecked) {
+                if (part.mStream.getStatus() == 0) {
+                    return false;
+                }
+                checkPartStatus(part);
+            }
+            ByteBuffer data;
+            while ((data = part.mStream.poll()) != null) {
+                final int received = data.remaining();
+                if (part.mEnd >= 0 && part.mPosition + received > part.mEnd) {
+                    // The first part is the rest of the file, cut short
+                    data.limit(data.position() + (int) (part.mEnd - part.mPosition));
+                }
+                final int count = data.remaining();
+                while (data.hasRemaining()) {
+                    part.mPosition += channel.write(data, part.mPosition);
+                }
+                mState.advance(part.mSegment, count);
+                part.mStream.consumed(received);
+                onTransferred(count);
+                if (mRateLimiter != null) {
+                    mWatchdog.pause();
+                    mRateLimiter.acquire(count);
+                    mWatchdog.resume();
+                }
+                if (part.mEnd >= 0 && part.mPosition >= part.mEnd) {
+                    part.mStream.cancel();
+                    mState.release(part.mSegment);
+                    return true;
+                }
+            }
+            if (part.mStream.isFinished()) {
+                if (part.mEnd < 0) {
+                    mState.finish(part.mSegment);
+                } else if (part.mPosition < part.mEnd) {
+                    throw new IOException("Stream ended " + (part.mEnd - part.mPosition) +
+                            " bytes early");
+                }
+                mState.release(part.mSegment);
+                return true;
+            }
+            return false;
+        }
+    }
+}
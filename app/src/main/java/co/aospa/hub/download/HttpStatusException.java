@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The server replied with a status code we can't use.
+ */
+class HttpStatusException extends IOException {
+
+    final int mCode;
+    final long mRetryAfterMs;
+
+    private HttpStatusException(int code, long retryAfterMs) {
+        super("Server replied with " + code);
+        mCode = code;
+        mRetryAfterMs = retryAfterMs;
+    }
+
+    static HttpStatusException from(HttpURLConnection connection) throws IOException {
+        return new HttpStatusException(connection.getResponseCode(),
+                parseRetryAfter(connection.getHeaderField("Retry-After")));
+    }
+
+    /**
+     * Whether the same request could succeed later.
+     */
+    boolean isTransient() {
+        return mCode == 408 || mCode == 429 || mCode >= 500;
+    }
+
+    /**
+     * Parse a Retry-After header, either a number of seconds or a date.
+     *
+     * @return the delay in milliseconds, or -1 if missing or invalid
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            // Not a delay, try with a date
+        }
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz",
+                Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(value);
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
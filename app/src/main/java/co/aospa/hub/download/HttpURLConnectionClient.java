@@ -19,31 +19,40 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 public class HttpURLConnectionClient implements DownloadClient {
 
     private final static String TAG = "HttpURLConnectionClient";
 
+    private static final int STAGE_BUFFERS = 4;
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
     private HttpURLConnection mClient;
 
     private final File mDestination;
     private final DownloadClient.ProgressListener mProgressListener;
     private final DownloadClient.DownloadCallback mCallback;
     private final boolean mUseDuplicateLinks;
+    private final boolean mLowCacheMode;
+    private final RateLimiter mRateLimiter;
 
     private DownloadThread mDownloadThread;
+    private volatile boolean mConnectionLost;
+
+    interface TransferListener {
+        void onTransferred(int count) throws IOException;
+    }
 
     public class Headers implements DownloadClient.Headers {
         @Override
@@ -56,12 +65,15 @@ public class HttpURLConnectionClient implements DownloadClient {
     HttpURLConnectionClient(String url, File destination,
             DownloadClient.ProgressListener progressListener,
             DownloadClient.DownloadCallback callback,
-            boolean useDuplicateLinks) throws IOException {
-        mClient = (HttpURLConnection) new URL(url).openConnection();
+            boolean useDuplicateLinks, boolean lowCacheMode, RateLimiter rateLimiter)
+            throws IOException {
+        mClient = openConnection(new URL(url));
         mDestination = destination;
         mProgressListener = progressListener;
         mCallback = callback;
         mUseDuplicateLinks = useDuplicateLinks;
+        mLowCacheMode = lowCacheMode;
+        mRateLimiter = rateLimiter;
     }
 
     @Override
@@ -82,6 +94,21 @@ public class HttpURLConnectionClient implements DownloadClient {
         downloadFileResumeInternal();
     }
 
+    @Override
+    public boolean isDigestVerified() {
+        return false;
+    }
+
+    @Override
+    public boolean isJournaled() {
+        return false;
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return mConnectionLost;
+    }
+
     @Override
     public void cancel() {
         if (mDownloadThread == null) {
@@ -89,6 +116,8 @@ public class HttpURLConnectionClient implements DownloadClient {
             return;
         }
         mDownloadThread.interrupt();
+        // Reads don't notice the interruption, close the connection under them
+        mDownloadThread.mConnections.cancel();
         mDownloadThread = null;
     }
 
@@ -112,6 +141,62 @@ public class HttpURLConnectionClient implements DownloadClient {
         mDownloadThread.start();
     }
 
+    private static HttpURLConnection openConnection(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        // Reads block, so this is what notices that nothing is received
+        connection.setReadTimeout(StallWatchdog.STALL_TIMEOUT_MS);
+        return connection;
+    }
+
+    BodyReader createReader(InputStream inputStream) {
+        return BodyReader.fromStream(inputStream);
+    }
+
+    boolean useDirectBuffers() {
+        return false;
+    }
+
+    /**
+     * Copy the response body to the destination from the given position until
+     * the end of the stream or until the download thread is interrupted. The
+     * file is written by a WriteBehindStage so that slow writes don't hold
+     * back the socket, and the watchdog is paused while waiting for it.
+     */
+    private void transfer(InputStream inputStream, FileChannel channel, long position,
+            StallWatchdog watchdog, TransferListener listener) throws IOException {
+        BodyReader reader = createReader(inputStream);
+        try (WriteBehindStage stage = new WriteBehindStage(channel, STAGE_BUFFERS,
+                useDirectBuffers(), mLowCacheMode)) {
+            boolean eof = false;
+            while (!eof && !Thread.currentThread().isInterrupted()) {
+                watchdog.pause();
+                ByteBuffer buffer = stage.acquire(position);
+                watchdog.resume();
+                try {
+                    while (buffer.hasRemaining() && !Thread.currentThread().isInterrupted()) {
+                        int count = reader.read(buffer);
+                        if (count < 0) {
+                            eof = true;
+                            break;
+                        }
+                        listener.onTransferred(count);
+                        if (mRateLimiter != null) {
+                            watchdog.pause();
+                            mRateLimiter.acquire(count);
+                            watchdog.resume();
+                        }
+                    }
+                } finally {
+                    buffer.flip();
+                    int count = buffer.remaining();
+                    stage.submit(buffer, position, null);
+                    position += count;
+                }
+            }
+        }
+    }
+
     private static boolean isSuccessCode(int statusCode) {
         return (statusCode / 100) == 2;
     }
@@ -135,14 +220,22 @@ public class HttpURLConnectionClient implements DownloadClient {
         private long mEta = -1;
 
         private final boolean mResume;
+        private boolean mJustResumed;
+
+        private Queue<DuplicateLink> mDuplicates = new ArrayDeque<>();
+        private final StallWatchdog mWatchdog = new StallWatchdog();
+        private final ConnectionGroup mConnections = new ConnectionGroup();
+        private long mPeakSpeed = -1;
+        private int mFailovers;
+        private long mLostMillis;
 
         private DownloadThread(boolean resume) {
             mResume = resume;
         }
 
-        private void calculateSpeed(boolean justResumed) {
+        private void calculateSpeed() {
             final long millis = SystemClock.elapsedRealtime();
-            if (justResumed) {
+            if (mJustResumed) {
                 // If we don't start over with these after resumption, we get huge numbers for
                 // ETA since the delta will grow, resulting in a very low speed
                 mLastMillis = millis;
@@ -177,7 +270,7 @@ public class HttpURLConnectionClient implements DownloadClient {
         private void changeClientUrl(URL newUrl) throws IOException {
             String range = mClient.getRequestProperty("Range");
             mClient.disconnect();
-            mClient = (HttpURLConnection) newUrl.openConnection();
+            mClient = mConnections.add(openConnection(newUrl));
             if (range != null) {
                 mClient.setRequestProperty("Range", range);
             }
@@ -186,40 +279,7 @@ public class HttpURLConnectionClient implements DownloadClient {
         private void handleDuplicateLinks() throws IOException {
             String protocol = mClient.getURL().getProtocol();
 
-            class DuplicateLink {
-                private final String mUrl;
-                private final int mPriority;
-                private DuplicateLink(String url, int priority) {
-                    mUrl = url;
-                    mPriority = priority;
-                }
-            }
-
-            PriorityQueue<DuplicateLink> duplicates = null;
-
-            for (Map.Entry<String, List<String>> entry : mClient.getHeaderFields().entrySet()) {
-                if ("Link".equalsIgnoreCase((entry.getKey()))) {
-                    duplicates = new PriorityQueue<>(entry.getValue().size(),
-                            Comparator.comparingInt(d -> d.mPriority));
-
-                    // https://tools.ietf.org/html/rfc6249
-                    // https://tools.ietf.org/html/rfc5988#section-5
-                    String regex = "(?i)<(.+)>\\s*;\\s*rel=duplicate(?:.*pri=([0-9]+).*|.*)?";
-                    Pattern pattern = Pattern.compile(regex);
-                    for (String field : entry.getValue()) {
-                        Matcher matcher = pattern.matcher(field);
-                        if (matcher.matches()) {
-                            String url = matcher.group(1);
-                            String pri = matcher.group(2);
-                            int priority = pri != null ? Integer.parseInt(pri) : 999999;
-                            duplicates.add(new DuplicateLink(url, priority));
-                            Log.d(TAG, "Adding duplicate link " + url);
-                        } else {
-                            Log.d(TAG, "Ignoring link " + field);
-                        }
-                    }
-                }
-            }
+            mDuplicates = new ArrayDeque<>(DuplicateLink.parse(mClient.getHeaderFields()));
 
             String newUrl = mClient.getHeaderField("Location");
             for (;;) {
@@ -232,20 +292,16 @@ public class HttpURLConnectionClient implements DownloadClient {
                     }
                     Log.d(TAG, "Downloading from " + newUrl);
                     changeClientUrl(url);
-                    mClient.setConnectTimeout(5000);
                     mClient.connect();
                     if (!isSuccessCode(mClient.getResponseCode())) {
                         throw new IOException("Server replied with " + mClient.getResponseCode());
                     }
                     return;
                 } catch (IOException e) {
-                    if (duplicates != null && !duplicates.isEmpty()) {
-                        DuplicateLink link = duplicates.poll();
-                        if (link != null) {
-                            duplicates.remove(link);
-                            newUrl = link.mUrl;
-                            Log.e(TAG, "Using duplicate link " + link.mUrl, e);
-                        }
+                    if (!mDuplicates.isEmpty()) {
+                        DuplicateLink link = mDuplicates.poll();
+                        newUrl = link.mUrl;
+                        Log.e(TAG, "Using duplicate link " + link.mUrl, e);
                     } else {
                         throw e;
                     }
@@ -253,10 +309,65 @@ public class HttpURLConnectionClient implements DownloadClient {
             }
         }
 
+        /**
+         * Replace a connection that stalled with one to the next duplicate
+         * link, continuing from where it stopped.
+         *
+         * @return the body of the new connection
+         */
+        private InputStream failover(IOException error) throws IOException {
+            String protocol = mClient.getURL().getProtocol();
+            mFailovers++;
+            mLostMillis += error instanceof StallWatchdog.StallException ?
+                    ((StallWatchdog.StallException) error).mLostMillis :
+                    StallWatchdog.STALL_TIMEOUT_MS;
+            for (;;) {
+                DuplicateLink link = mDuplicates.poll();
+                if (link == null) {
+                    throw error;
+                }
+                Log.e(TAG, "Connection stalled, continuing from " + link.mUrl, error);
+                try {
+                    URL url = new URL(link.mUrl);
+                    if (!url.getProtocol().equals(protocol)) {
+                        throw new IOException("Protocol changes are not allowed");
+                    }
+                    mClient.disconnect();
+                    mClient = mConnections.add(openConnection(url));
+                    mClient.setRequestProperty("Range", "bytes=" + mTotalBytesRead + "-");
+                    String contentRange = mClient.getHeaderField("Content-Range");
+                    if (!isPartialContentCode(mClient.getResponseCode()) ||
+                            contentRange == null ||
+                            !contentRange.startsWith("bytes " + mTotalBytesRead + "-")) {
+                        throw new IOException("Server replied with " +
+                                mClient.getResponseCode() + " " + contentRange);
+                    }
+                    mJustResumed = true;
+                    mWatchdog.restart(mTotalBytesRead);
+                    return mClient.getInputStream();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }
+
+        private void onTransferred(int count) throws IOException {
+            mTotalBytesRead += count;
+            calculateSpeed();
+            calculateEta();
+            mJustResumed = false; // otherwise we will never get speed and ETA again
+            if (mProgressListener != null) {
+                mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+            }
+            mPeakSpeed = Math.max(mPeakSpeed, mSpeed);
+            // A slow connection is better than none
+            mWatchdog.check(mTotalBytesRead, mDuplicates.isEmpty() ? -1 : mPeakSpeed);
+        }
+
         @Override
         public void run() {
-            boolean justResumed = false;
             try {
+                mConnections.add(mClient);
                 mClient.setInstanceFollowRedirects(!mUseDuplicateLinks);
                 mClient.connect();
                 int responseCode = mClient.getResponseCode();
@@ -269,7 +380,7 @@ public class HttpURLConnectionClient implements DownloadClient {
                 mCallback.onResponse(new Headers());
 
                 if (mResume && isPartialContentCode(responseCode)) {
-                    justResumed = true;
+                    mJustResumed = true;
                     mTotalBytesRead = mDestination.length();
                     Log.d(TAG, "The server fulfilled the partial content request");
                 } else if (mResume || !isSuccessCode(responseCode)) {
@@ -278,29 +389,33 @@ public class HttpURLConnectionClient implements DownloadClient {
                     return;
                 }
 
-                try (
-                        InputStream inputStream = mClient.getInputStream();
-                        OutputStream outputStream = new FileOutputStream(mDestination, mResume)
-                ) {
+                try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                    if (!mResume) {
+                        file.setLength(0);
+                    }
+                    InputStream inputStream = mClient.getInputStream();
                     mTotalBytes = mClient.getContentLength() + mTotalBytesRead;
-                    byte[] b = new byte[8192];
-                    int count;
-                    while (!isInterrupted() && (count = inputStream.read(b)) > 0) {
-                        outputStream.write(b, 0, count);
-                        mTotalBytesRead += count;
-                        calculateSpeed(justResumed);
-                        calculateEta();
-                        justResumed = false; // otherwise we will never get speed and ETA again
-                        if (mProgressListener != null) {
-                            mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+                    mWatchdog.restart(mTotalBytesRead);
+                    for (;;) {
+                        try {
+                            transfer(inputStream, file.getChannel(), mTotalBytesRead, mWatchdog,
+                                    this::onTransferred);
+                            break;
+                        } catch (SocketTimeoutException | StallWatchdog.StallException e) {
+                            if (isInterrupted()) {
+                                throw e;
+                            }
+                            inputStream = failover(e);
                         }
                     }
+                    if (mFailovers > 0) {
+                        Log.d(TAG, "Replaced " + mFailovers + " stalled connections, " +
+                                mLostMillis + " ms lost");
+                    }
                     if (mProgressListener != null) {
                         mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
                     }
 
-                    outputStream.flush();
-
                     if (isInterrupted()) {
                         mCallback.onFailure(true);
                     } else {
@@ -309,6 +424,7 @@ public class HttpURLConnectionClient implements DownloadClient {
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Error downloading file", e);
+                mConnectionLost = NetworkErrors.isConnectionLost(e);
                 mCallback.onFailure(isInterrupted());
             } finally {
                 mClient.disconnect();
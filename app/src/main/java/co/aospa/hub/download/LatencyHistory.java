@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * How long the last requests for a resource took, stored on disk so that
+ * hedged downloads know from the first request of the day when a response
+ * is late.
+ */
+public final class LatencyHistory {
+
+    private static final String TAG = "LatencyHistory";
+
+    private static final int VERSION = 1;
+
+    private static final int MAX_SAMPLES = 32;
+    // A percentile of fewer samples says more about luck than about the server
+    private static final int MIN_SAMPLES = 5;
+
+    private final File mFile;
+
+    // Oldest first, the oldest dropped once full
+    private final long[] mSamples = new long[MAX_SAMPLES];
+    private int mCount;
+    private boolean mLoaded;
+
+    /**
+     * The file is only read once the history is first used, not on the
+     * thread creating it, which may be the main one.
+     */
+    public LatencyHistory(File file) {
+        mFile = file;
+    }
+
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(mFile))) {
+            if (in.readInt() != VERSION) {
+                Log.e(TAG, "Unknown version, ignoring " + mFile.getName());
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                add(in.readLong());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + mFile.getName(), e);
+            mCount = 0;
+        }
+    }
+
+    private void save() {
+        File tmpFile = new File(mFile.getAbsolutePath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmpFile);
+             DataOutputStream out = new DataOutputStream(fos)) {
+            out.writeInt(VERSION);
+            out.writeInt(mCount);
+            for (int i = 0; i < mCount; i++) {
+                out.writeLong(mSamples[i]);
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + tmpFile.getName(), e);
+            return;
+        }
+        if (!tmpFile.renameTo(mFile)) {
+            Log.e(TAG, "Could not write " + mFile.getName());
+        }
+    }
+
+    private void add(long millis) {
+        if (mCount == MAX_SAMPLES) {
+            System.arraycopy(mSamples, 1, mSamples, 0, MAX_SAMPLES - 1);
+            mCount--;
+        }
+        mSamples[mCount++] = Math.max(0, millis);
+    }
+
+    /**
+     * Record how long a request took, from the moment it was sent to the
+     * end of the response.
+     */
+    public synchronized void record(long millis) {
+        load();
+        add(millis);
+        save();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the latency under which the given share of the recorded
+     *         requests completed, or defaultMillis if too few were recorded
+     */
+    public synchronized long getPercentile(int percentile, long defaultMillis) {
+        load();
+        if (mCount < MIN_SAMPLES) {
+            return defaultMillis;
+        }
+        long[] sorted = Arrays.copyOf(mSamples, mCount);
+        Arrays.sort(sorted);
+        // Nearest rank
+        int rank = (int) Math.ceil(percentile / 100.0 * mCount);
+        return sorted[Math.min(Math.max(rank, 1), mCount) - 1];
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to first byte and throughput of the mirrors we downloaded from, along
+ * with the mirrors the download URLs redirected to. Both are stored on disk so
+ * that the following downloads can go straight to the fastest known mirror.
+ */
+public class MirrorScoreboard {
+
+    private static final String TAG = "MirrorScoreboard";
+
+    private static final int VERSION = 1;
+
+    private static final long SCORE_TTL_MS = 24 * 60 * 60 * 1000;
+    private static final long REDIRECT_TTL_MS = 6 * 60 * 60 * 1000;
+
+    private static final int PROBE_SIZE = 256 * 1024;
+    private static final int PROBE_TIMEOUT_MS = 5000;
+
+    private static final class Score {
+        private long mTtfb;
+        private long mSpeed;
+        private long mTimestamp;
+
+        private Score(long ttfb, long speed, long timestamp) {
+            mTtfb = ttfb;
+            mSpeed = speed;
+            mTimestamp = timestamp;
+        }
+    }
+
+    private static final class Redirect {
+        private final List<String> mUrls;
+        private final long mExpiry;
+
+        private Redirect(List<String> urls, long expiry) {
+            mUrls = urls;
+            mExpiry = expiry;
+        }
+    }
+
+    private final File mFile;
+    private final Map<String, Score> mScores = new HashMap<>();
+    private final Map<String, Redirect> mRedirects = new HashMap<>();
+
+    public MirrorScoreboard(File file) {
+        mFile = file;
+        load();
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(mFile))) {
+            if (in.readInt() != VERSION) {
+                Log.e(TAG, "Unknown version, ignoring " + mFile.getName());
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String host = in.readUTF();
+                mScores.put(host, new Score(in.readLong(), in.readLong(), in.readLong()));
+            }
+            count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String url = in.readUTF();
+                long expiry = in.readLong();
+                int urlCount = in.readInt();
+                List<String> urls = new ArrayList<>();
+                for (int j = 0; j < urlCount; j++) {
+                    urls.add(in.readUTF());
+                }
+                mRedirects.put(url, new Redirect(urls, expiry));
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + mFile.getName(), e);
+            mScores.clear();
+            mRedirects.clear();
+        }
+    }
+
+    public synchronized void save() {
+        File tmpFile = new File(mFile.getAbsolutePath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmpFile);
+             DataOutputStream out = new DataOutputStream(fos)) {
+            out.writeInt(VERSION);
+            out.writeInt(mScores.size());
+            for (Map.Entry<String, Score> entry : mScores.entrySet()) {
+                Score score = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(score.mTtfb);
+                out.writeLong(score.mSpeed);
+                out.writeLong(score.mTimestamp);
+            }
+            out.writeInt(mRedirects.size());
+            for (Map.Entry<String, Redirect> entry : mRedirects.entrySet()) {
+                Redirect redirect = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeLong(redirect.mExpiry);
+                out.writeInt(redirect.mUrls.size());
+                for (String url : redirect.mUrls) {
+                    out.writeUTF(url);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write " + tmpFile.getName(), e);
+            return;
+        }
+        if (!tmpFile.renameTo(mFile)) {
+            Log.e(TAG, "Could not write " + mFile.getName());
+        }
+    }
+
+    /**
+     * Get the mirrors the given URL redirected to, if they are still valid.
+     *
+     * @return the mirrors sorted by score, or null if there's nothing cached
+     */
+    synchronized List<URL> getRedirect(URL url) {
+        Redirect redirect = mRedirects.get(url.toString());
+        if (redirect == null) {
+            return null;
+        }
+        if (redirect.mExpiry < System.currentTimeMillis()) {
+            mRedirects.remove(url.toString());
+            return null;
+        }
+        List<URL> urls = new ArrayList<>();
+        for (String mirror : redirect.mUrls) {
+            try {
+                urls.add(new URL(mirror));
+            } catch (IOException e) {
+                Log.e(TAG, "Ignoring invalid mirror " + mirror);
+            }
+        }
+        return urls.isEmpty() ? null : sort(urls);
+    }
+
+    synchronized void putRedirect(URL url, List<URL> mirrors) {
+        List<String> urls = new ArrayList<>();
+        for (URL mirror : mirrors) {
+            urls.add(mirror.toString());
+        }
+        mRedirects.put(url.toString(),
+                new Redirect(urls, System.currentTimeMillis() + REDIRECT_TTL_MS));
+    }
+
+    /**
+     * Forget everything we know about a mirror that failed, so that it's
+     * neither preferred nor reached through a cached redirect anymore.
+     */
+    synchronized void invalidate(URL mirror) {
+        mScores.remove(mirror.getHost());
+        Iterator<Redirect> iterator = mRedirects.values().iterator();
+        while (iterator.hasNext()) {
+            Redirect redirect = iterator.next();
+            redirect.mUrls.remove(mirror.toString());
+            if (redirect.mUrls.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Record the time to first byte (in ms, -1 if unknown) and the
+     * throughput of a single connection (in bytes/s) to the given mirror.
+     */
+    synchronized void record(URL mirror, long ttfb, long speed) {
+        long now = System.currentTimeMillis();
+        Score score = mScores.get(mirror.getHost());
+        if (score == null || now - score.mTimestamp > SCORE_TTL_MS) {
+            mScores.put(mirror.getHost(), new Score(ttfb, speed, now));
+            return;
+        }
+        if (ttfb >= 0) {
+            score.mTtfb = score.mTtfb < 0 ? ttfb : ((score.mTtfb * 3) + ttfb) / 4;
+        }
+        score.mSpeed = ((score.mSpeed * 3) + speed) / 4;
+        score.mTimestamp = now;
+    }
+
+    /**
+     * @return the known throughput of a single connection to the mirror,
+     *         or -1 if we didn't download from it recently
+     */
+    synchronized long getSpeed(URL mirror) {
+        Score score = getValidScore(mirror);
+        return score != null ? score.mSpeed : -1;
+    }
+
+    private Score getValidScore(URL mirror) {
+        Score score = mScores.get(mirror.getHost());
+        if (score == null || System.currentTimeMillis() - score.mTimestamp > SCORE_TTL_MS) {
+            return null;
+        }
+        return score;
+    }
+
+    /**
+     * Sort the mirrors, fastest first. Mirrors we know nothing about keep
+     * their relative order and come after the ones with a score.
+     */
+    synchronized List<URL> sort(List<URL> mirrors) {
+        List<URL> sorted = new ArrayList<>(mirrors);
+        sorted.sort((a, b) -> {
+            Score scoreA = getValidScore(a);
+            Score scoreB = getValidScore(b);
+            if (scoreA == null || scoreB == null) {
+                return scoreA != null ? -1 : scoreB != null ? 1 : 0;
+            }
+            if (scoreA.mSpeed != scoreB.mSpeed) {
+                return Long.compare(scoreB.mSpeed, scoreA.mSpeed);
+            }
+            return Long.compare(scoreA.mTtfb, scoreB.mTtfb);
+        });
+        return sorted;
+    }
+
+    /**
+     * Download the beginning of the mirrors without a recent score in
+     * parallel, recording how fast they are. Mirrors that fail are dropped.
+     *
+     * @return the mirrors that didn't fail, fastest first
+     */
+    List<URL> probe(List<URL> mirrors) {
+        List<URL> unknown = new ArrayList<>();
+        synchronized (this) {
+            for (URL mirror : mirrors) {
+                if (getValidScore(mirror) == null) {
+                    unknown.add(mirror);
+                }
+            }
+        }
+        List<URL> failed = new ArrayList<>();
+        if (!unknown.isEmpty()) {
+            CountDownLatch latch = new CountDownLatch(unknown.size());
+            for (URL mirror : unknown) {
+                new Thread(() -> {
+                    try {
+                        probe(mirror);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not probe " + mirror, e);
+                        synchronized (failed) {
+                            failed.add(mirror);
+                        }
+                        invalidate(mirror);
+                    } finally {
+                        latch.countDown();
+                    }
+                }).start();
+            }
+            try {
+                // Connections that take longer will fail because of their timeouts
+                latch.await(2 * PROBE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        List<URL> healthy = new ArrayList<>(mirrors);
+        synchronized (failed) {
+            healthy.removeAll(failed);
+        }
+        return sort(healthy);
+    }
+
+    private void probe(URL mirror) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) mirror.openConnection();
+        try {
+            connection.setConnectTimeout(PROBE_TIMEOUT_MS);
+            connection.setReadTimeout(PROBE_TIMEOUT_MS);
+            connection.setRequestProperty("Range", "bytes=0-" + (PROBE_SIZE - 1));
+            final long startMillis = SystemClock.elapsedRealtime();
+            int responseCode = connection.getResponseCode();
+            if ((responseCode / 100) != 2) {
+                throw new IOException("Server replied with " + responseCode);
+            }
+            final long ttfb = SystemClock.elapsedRealtime() - startMillis;
+            long bytesRead = 0;
+            try (InputStream inputStream = connection.getInputStream()) {
+                byte[] b = new byte[8192];
+                int count;
+                while (bytesRead < PROBE_SIZE && (count = inputStream.read(b)) > 0) {
+                    bytesRead += count;
+                }
+            }
+            long millis = Math.max(SystemClock.elapsedRealtime() - startMillis - ttfb, 1);
+            long speed = (bytesRead * 1000) / millis;
+            Log.d(TAG, mirror.getHost() + ": TTFB " + ttfb + " ms, " + speed + " B/s");
+            record(mirror, ttfb, speed);
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.EOFException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+final class NetworkErrors {
+
+    private NetworkErrors() {
+    }
+
+    /**
+     * Whether the error means the device couldn't reach the server or lost
+     * its connection to it, rather than the server refusing the request or
+     * sending something we can't use. Only those are worth retrying once
+     * the device is back online.
+     */
+    static boolean isConnectionLost(Throwable error) {
+        for (Throwable t = error; t != null; t = t.getCause()) {
+            if (t instanceof HttpStatusException || t instanceof ChunkVerifier.MismatchException) {
+                return false;
+            } else if (t instanceof SocketException || t instanceof SocketTimeoutException ||
+                    t instanceof UnknownHostException || t instanceof EOFException ||
+                    t instanceof StallWatchdog.StallException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
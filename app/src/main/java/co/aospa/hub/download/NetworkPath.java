@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Network other than the default one that segmented downloads can use at
+ * the same time, such as cellular while on Wi-Fi. Its toString() names it
+ * in the logs.
+ */
+public interface NetworkPath {
+
+    /**
+     * Open a connection to the URL through this network.
+     */
+    URLConnection openConnection(URL url) throws IOException;
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Same as HttpURLConnectionClient, but the body is copied in large chunks
+ * into direct buffers, which the FileChannel of the destination writes
+ * without copying them to a temporary buffer first.
+ */
+class NioDownloadClient extends HttpURLConnectionClient {
+
+    NioDownloadClient(String url, File destination,
+            DownloadClient.ProgressListener progressListener,
+            DownloadClient.DownloadCallback callback,
+            boolean useDuplicateLinks, boolean lowCacheMode, RateLimiter rateLimiter)
+            throws IOException {
+        super(url, destination, progressListener, callback, useDuplicateLinks, lowCacheMode,
+                rateLimiter);
+    }
+
+    @Override
+    BodyReader createReader(InputStream inputStream) {
+        return new ChannelReader(inputStream);
+    }
+
+    @Override
+    boolean useDirectBuffers() {
+        return true;
+    }
+}
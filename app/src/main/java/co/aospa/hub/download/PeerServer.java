@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal HTTP/1.1 server letting the devices of a local network download
+ * the packages of each other. Packages are requested by download ID, as in
+ * http://host:port/ID, and served whole or by byte range. Nothing proves
+ * that a peer serves what it claims, the downloaded package is verified like
+ * any other.
+ */
+public final class PeerServer {
+
+    private static final String TAG = "PeerServer";
+
+    // Downloads open a few connections each, peers are dropped when busy
+    private static final int MAX_CONNECTIONS = 16;
+    private static final int IDLE_TIMEOUT_MS = 30000;
+    private static final int MAX_HEADER_LENGTH = 8192;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    /**
+     * The packages the server can serve.
+     */
+    public interface PackageProvider {
+        /**
+         * @return the verified package with the download ID, or null
+         */
+        File getPackage(String downloadId);
+    }
+
+    private final PackageProvider mProvider;
+    private final Semaphore mConnections = new Semaphore(MAX_CONNECTIONS);
+    private final Set<Socket> mSockets = new HashSet<>();
+    private ServerSocket mServerSocket;
+
+    public PeerServer(PackageProvider provider) {
+        mProvider = provider;
+    }
+
+    /**
+     * Get the URL of a package on the peer at the given address.
+     */
+    public static String getUrl(String host, int port, String downloadId) {
+        if (host.indexOf(':') >= 0) {
+            host = "[" + host + "]";
+        }
+        try {
+            return "http://" + host + ":" + port + "/" + URLEncoder.encode(downloadId, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Start listening on all the interfaces, on the given port or any port
+     * if 0. Only the connections of the local network are answered.
+     *
+     * @return the port
+     */
+    public synchronized int start(int port) throws IOException {
+        if (mServerSocket != null) {
+            return mServerSocket.getLocalPort();
+        }
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+        mServerSocket = serverSocket;
+        Thread thread = new Thread(() -> accept(serverSocket), TAG);
+        thread.setDaemon(true);
+        thread.start();
+        Log.d(TAG, "Serving packages on port " + serverSocket.getLocalPort());
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stop listening and close the connections of the peers.
+     */
+    public synchronized void stop() {
+        if (mServerSocket == null) {
+            return;
+        }
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close the server socket", e);
+        }
+        mServerSocket = null;
+        final List<Socket> sockets;
+        synchronized (mSockets) {
+            sockets = new ArrayList<>(mSockets);
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close a connection", e);
+            }
+        }
+    }
+
+    /**
+     * Whether the address is one of the local network, or of the device
+     * itself. Mobile networks and VPNs may route anything to the device, the
+     * packages are only shared with the devices nearby.
+     */
+    static boolean isLocalAddress(InetAddress address) {
+        if (address.isLoopbackAddress() || address.isLinkLocalAddress() ||
+                address.isSiteLocalAddress()) {
+            return true;
+        }
+        // Unique local IPv6 addresses, fc00::/7
+        return address instanceof Inet6Address &&
+                (address.getAddress()[0] & 0xfe) == 0xfc;
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    Log.e(TAG, "Could not accept a connection", e);
+                }
+                continue;
+            }
+            if (!isLocalAddress(socket.getInetAddress())) {
+                Log.e(TAG, "Dropping the connection of " + socket.getInetAddress());
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close a connection", e);
+                }
+                continue;
+            }
+            if (!mConnections.tryAcquire()) {
+                reject(socket);
+                continue;
+            }
+            Thread thread = new Thread(() -> {
+                try {
+                    serve(socket);
+                } finally {
+                    mConnections.release();
+                }
+            }, TAG);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static void reject(Socket socket) {
+        try (Socket s = socket) {
+            s.getOutputStream().write(("HTTP/1.1 503 Service Unavailable\r\n" +
+                    "Content-Length: 0\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not reject a connection", e);
+        }
+    }
+
+    /**
+     * Answer the requests of a connection until the peer closes it.
+     */
+    private void serve(Socket socket) {
+        synchronized (mSockets) {
+            mSockets.add(socket);
+        }
+        try (Socket s = socket) {
+            s.setSoTimeout(IDLE_TIMEOUT_MS);
+            InputStream in = new BufferedInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            for (;;) {
+                String requestLine = readLine(in);
+                if (requestLine == null) {
+                    return;
+                }
+                Map<String, String> headers = new HashMap<>();
+                for (;;) {
+                    String line = readLine(in);
+                    if (line == null) {
+                        return;
+                    } else if (line.isEmpty()) {
+                        break;
+                    }
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                if (!respond(requestLine, headers, out) ||
+                        "close".equalsIgnoreCase(headers.get("connection"))) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException | SocketException e) {
+            // Idle or gone
+        } catch (IOException e) {
+            Log.e(TAG, "Error serving a peer", e);
+        } finally {
+            synchronized (mSockets) {
+                mSockets.remove(socket);
+            }
+        }
+    }
+
+    /**
+     * @return whether the connection can be reused
+     */
+    private boolean respond(String requestLine, Map<String, String> headers, OutputStream out)
+            throws IOException {
+        String[] parts = requestLine.split(" ");
+        if (parts.length != 3 || !parts[1].startsWith("/")) {
+            writeStatus(out, "400 Bad Request", false);
+            return false;
+        }
+        boolean head = parts[0].equals("HEAD");
+        if (!head && !parts[0].equals("GET")) {
+            writeStatus(out, "405 Method Not Allowed", false);
+            return false;
+        }
+        final String downloadId;
+        try {
+            downloadId = URLDecoder.decode(parts[1].substring(1), "UTF-8");
+        } catch (IllegalArgumentException e) {
+            writeStatus(out, "400 Bad Request", false);
+            return false;
+        }
+        File file = downloadId.isEmpty() ? null : mProvider.getPackage(downloadId);
+        if (file == null) {
+            writeStatus(out, "404 Not Found", true);
+            return true;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            final long length = raf.length();
+            final String etag = "\"" + downloadId + "-" + length + "\"";
+            long start = 0;
+            long end = length - 1;
+            String status = "200 OK";
+            String range = headers.get("range");
+            String ifRange = headers.get("if-range");
+            if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                Matcher matcher = RANGE.matcher(range);
+                if (matcher.matches()) {
+                    start = parsePosition(matcher.group(1));
+                    if (!matcher.group(2).isEmpty()) {
+                        end = Math.min(end, parsePosition(matcher.group(2)));
+                    }
+                    if (start >= length || start > end) {
+                        writeHeaders(out, "416 Range Not Satisfiable", 0,
+                                "Content-Range: bytes */" + length + "\r\n");
+                        return true;
+                    }
+                    status = "206 Partial Content";
+                }
+            }
+            String extra = "ETag: " + etag + "\r\nAccept-Ranges: bytes\r\n";
+            if (status.startsWith("206")) {
+                extra += "Content-Range: bytes " + start + "-" + end + "/" + length + "\r\n";
+            }
+            writeHeaders(out, status, end - start + 1, extra);
+            if (!head) {
+                copy(raf, start, end + 1, out);
+            }
+            out.flush();
+            return true;
+        }
+    }
+
+    /**
+     * @return the value of the digits, or Long.MAX_VALUE if too large for a
+     *         long, which is past the end of any file either way
+     */
+    private static long parsePosition(String digits) {
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    private static void copy(RandomAccessFile file, long start, long end, OutputStream out)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        file.seek(start);
+        for (long position = start; position < end; ) {
+            int count = file.read(buffer, 0, (int) Math.min(buffer.length, end - position));
+            if (count < 0) {
+                throw new IOException("The package shrank");
+            }
+            out.write(buffer, 0, count);
+            position += count;
+        }
+    }
+
+    private static void writeStatus(OutputStream out, String status, boolean keepAlive)
+            throws IOException {
+        writeHeaders(out, status, 0, keepAlive ? "" : "Connection: close\r\n");
+        out.flush();
+    }
+
+    private static void writeHeaders(OutputStream out, String status, long contentLength,
+            String extra) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: " + contentLength + "\r\n" +
+                extra + "\r\n").getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return the line without its terminator, or null at the end of the stream
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (;;) {
+            int c = in.read();
+            if (c < 0) {
+                if (line.size() == 0) {
+                    return null;
+                }
+                throw new IOException("Truncated request");
+            }
+            if (c == '\n') {
+                break;
+            }
+            if (line.size() >= MAX_HEADER_LENGTH) {
+                throw new IOException("Request line too long");
+            }
+            line.write(c);
+        }
+        String s = new String(line.toByteArray(), StandardCharsets.US_ASCII);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+}
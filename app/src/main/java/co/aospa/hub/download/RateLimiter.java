@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket shared by the connections of one or more downloads to cap
+ * their overall throughput. The rate can be changed at any time, the
+ * connections waiting for tokens pick it up right away.
+ */
+public final class RateLimiter {
+
+    public static final long UNLIMITED = 0;
+
+    // The bucket holds this fraction of a second worth of bytes, letting
+    // short bursts through without exceeding the rate over time
+    private static final int BURST_DIVISOR = 4;
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    private long mRate = UNLIMITED;
+    private long mBurst;
+    private long mTokens;
+    private long mLastRefillNanos;
+
+    /**
+     * @param bytesPerSecond the maximum throughput, or UNLIMITED
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        final long rate = Math.max(bytesPerSecond, UNLIMITED);
+        if (rate == mRate) {
+            return;
+        }
+        mRate = rate;
+        mBurst = Math.max(rate / BURST_DIVISOR, MIN_BURST_BYTES);
+        mTokens = Math.min(mTokens, mBurst);
+        mLastRefillNanos = System.nanoTime();
+        notifyAll();
+    }
+
+    public synchronized long getRate() {
+        return mRate;
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        final long elapsed = now - mLastRefillNanos;
+        // Past the time it takes to fill the bucket, which is the case when
+        // it sat idle between downloads, elapsed * mRate would overflow
+        if (elapsed >= (mBurst - mTokens) * 1e9 / mRate) {
+            mTokens = mBurst;
+            mLastRefillNanos = now;
+            return;
+        }
+        final long tokens = elapsed * mRate / 1000000000L;
+        if (tokens > 0) {
+            mTokens = Math.min(mTokens + tokens, mBurst);
+            // Keep the remainder for the next refill
+            mLastRefillNanos = now - (elapsed - tokens * 1000000000L / mRate);
+        }
+    }
+
+    /**
+     * Take the given number of bytes from the bucket, waiting until the rate
+     * allows them when it runs dry. Bytes that were already received are
+     * always taken, leaving the bucket in debt.
+     */
+    public synchronized void acquire(int bytes) throws InterruptedIOException {
+        if (mRate == UNLIMITED) {
+            return;
+        }
+        refill();
+        mTokens -= bytes;
+        try {
+            while (mRate != UNLIMITED && mTokens < 0) {
+                wait(Math.max(1, -mTokens * 1000 / mRate));
+                if (mRate != UNLIMITED) {
+                    refill();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+        if (mRate == UNLIMITED) {
+            mTokens = 0;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides whether and when a download that failed for a transient reason is
+ * resumed. Retries are spaced with an exponential backoff with jitter, unless
+ * the server asked to wait longer with Retry-After.
+ */
+public final class RetryPolicy {
+
+    public static final RetryPolicy NONE = new RetryPolicy(0);
+
+    public static final long DEFAULT_INITIAL_DELAY_MS = 2000;
+    public static final long DEFAULT_MAX_DELAY_MS = 5 * 60 * 1000;
+
+    // Give up instead of honouring a Retry-After longer than this
+    private static final long MAX_RETRY_AFTER_MS = 60 * 60 * 1000;
+
+    // How many times a download can be resumed in all, for each retry in a
+    // row allowed, so that a link that keeps dropping after a few bytes
+    // doesn't keep it going forever
+    private static final int ATTEMPTS_PER_RETRY = 4;
+
+    private final int mMaxRetries;
+    private final int mMaxAttempts;
+    private final long mInitialDelayMs;
+    private final long mMaxDelayMs;
+
+    /**
+     * @param maxRetries how many times in a row a download can be resumed
+     *                   without receiving anything before it is failed
+     */
+    public RetryPolicy(int maxRetries) {
+        this(maxRetries, DEFAULT_INITIAL_DELAY_MS, DEFAULT_MAX_DELAY_MS);
+    }
+
+    public RetryPolicy(int maxRetries, long initialDelayMs, long maxDelayMs) {
+        mMaxRetries = Math.max(0, maxRetries);
+        mMaxAttempts = mMaxRetries * ATTEMPTS_PER_RETRY;
+        mInitialDelayMs = Math.max(1, initialDelayMs);
+        mMaxDelayMs = Math.max(mInitialDelayMs, maxDelayMs);
+    }
+
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    /**
+     * @return how many times a download can be resumed in all, whether the
+     *         attempts before received something or not
+     */
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    /**
+     * Get how long to wait before the given retry.
+     *
+     * @param retry the number of the retry among those that didn't receive
+     *              anything in a row, starting from 1
+     * @param attempt the number of the retry among all of them, starting from 1
+     * @param retryAfterMs the delay requested by the server, or -1
+     * @return the delay in milliseconds, or -1 if the download should fail
+     */
+    long getDelay(int retry, int attempt, long retryAfterMs) {
+        if (retry > mMaxRetries || attempt > mMaxAttempts ||
+                retryAfterMs > MAX_RETRY_AFTER_MS) {
+            return -1;
+        }
+        long backoff = mInitialDelayMs << Math.min(retry - 1, 20);
+        backoff = Math.min(backoff, mMaxDelayMs);
+        // Randomize the second half so that clients failing together don't
+        // come back together
+        long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        return Math.max(delay, retryAfterMs);
+    }
+}
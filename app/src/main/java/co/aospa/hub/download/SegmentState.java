@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Journal of the byte ranges that are still missing from a segmented download.
+ * It is stored next to the destination file so that a paused download can be
+ * resumed without fetching again the ranges that were already written.
+ */
+public class SegmentState {
+
+    private static final String TAG = "SegmentState";
+
+    private static final String FILE_SUFFIX = ".segments";
+    private static final int VERSION = 4;
+
+    static final long UNKNOWN_LENGTH = -1;
+    static final long MIN_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    static final class Segment {
+        private long mPosition;
+        private long mEnd;
+        private boolean mAssigned;
+        private long mSpeed;
+
+        private Segment(long position, long end) {
+            mPosition = position;
+            mEnd = end;
+        }
+
+        long getRemaining() {
+            return mEnd - mPosition;
+        }
+    }
+
+    private final File mDestination;
+    private final List<Segment> mSegments = new ArrayList<>();
+    private long mLength;
+
+    // ETag or Last-Modified of the file, as sent by mValidatorUrl
+    private String mValidatorUrl;
+    private String mValidator;
+
+    private ChunkHashes mChunkHashes;
+    private final BitSet mVerified = new BitSet();
+
+    // SHA-256 the whole file must have and the state of the one being computed
+    private byte[] mExpectedDigest;
+    private byte[] mDigestState;
+    private int mDigestStateLength;
+
+    private SegmentState(File destination, long length) {
+        mDestination = destination;
+        mLength = length;
+    }
+
+    public static File getStateFile(File destination) {
+        return new File(destination.getAbsolutePath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Get the number of bytes of the given destination that have already been
+     * downloaded. Falls back to the length of the file if there's no journal.
+     */
+    public static long getDownloadedBytes(File destination) {
+        SegmentState state = load(destination);
+        if (state != null) {
+            return state.getDownloadedBytes();
+        }
+        return destination.length();
+    }
+
+    public static void delete(File destination) {
+        File stateFile = getStateFile(destination);
+        if (stateFile.exists() && !stateFile.delete()) {
+            Log.e(TAG, "Could not delete " + stateFile.getAbsolutePath());
+        }
+    }
+
+    static SegmentState create(File destination, long offset) {
+        SegmentState state = new SegmentState(destination, UNKNOWN_LENGTH);
+        state.mSegments.add(new Segment(offset, Long.MAX_VALUE));
+        return state;
+    }
+
+    static SegmentState load(File destination) {
+        File stateFile = getStateFile(destination);
+        if (!stateFile.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(stateFile))) {
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                Log.e(TAG, "Unknown journal version, ignoring " + stateFile.getName());
+                return null;
+            }
+            SegmentState state = new SegmentState(destination, in.readLong());
+            if (version >= 2 && in.readBoolean()) {
+                state.mValidatorUrl = in.readUTF();
+                state.mValidator = in.readUTF();
+            }
+            if (version >= 3 && in.readBoolean()) {
+                state.mChunkHashes = ChunkHashes.read(in);
+                byte[] verified = new byte[in.readInt()];
+                in.readFully(verified);
+                state.mVerified.or(BitSet.valueOf(verified));
+            }
+            if (version >= 4) {
+                state.mExpectedDigest = readBytes(in);
+                state.mDigestState = readBytes(in);
+                if (state.mDigestState != null) {
+                    state.mDigestStateLength = state.mDigestState.length;
+                }
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                state.mSegments.add(new Segment(in.readLong(), in.readLong()));
+            }
+            return state;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + stateFile.getName(), e);
+            return null;
+        }
+    }
+
+    synchronized void save() throws IOException {
+        File stateFile = getStateFile(mDestination);
+        File tmpFile = new File(stateFile.getAbsolutePath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmpFile);
+             DataOutputStream out = new DataOutputStream(fos)) {
+            out.writeInt(VERSION);
+            out.writeLong(mLength);
+            out.writeBoolean(mValidator != null);
+            if (mValidator != null) {
+                out.writeUTF(mValidatorUrl);
+                out.writeUTF(mValidator);
+            }
+            out.writeBoolean(mChunkHashes != null);
+            if (mChunkHashes != null) {
+                mChunkHashes.write(out);
+                byte[] verified = mVerified.toByteArray();
+                out.writeInt(verified.length);
+                out.write(verified);
+            }
+            writeBytes(out, mExpectedDigest);
+            writeBytes(out, mDigestState, mDigestStateLength);
+            int count = 0;
+            for (Segment segment : mSegments) {
+                if (segment.getRemaining() > 0) {
+                    count++;
+                }
+            }
+            out.writeInt(count);
+            for (Segment segment : mSegments) {
+                if (segment.getRemaining() > 0) {
+                    out.writeLong(segment.mPosition);
+                    out.writeLong(segment.mEnd);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!tmpFile.renameTo(stateFile)) {
+            throw new IOException("Could not write " + stateFile.getName());
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        writeBytes(out, bytes, bytes != null ? bytes.length : 0);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes, int length)
+            throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(length);
+            out.write(bytes, 0, length);
+        }
+    }
+
+    synchronized long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Set the total length once it's known, capping the open ended segment.
+     */
+    synchronized void setLength(long length) {
+        mLength = length;
+        for (Segment segment : mSegments) {
+            if (segment.mEnd > length) {
+                segment.mEnd = length;
+            }
+            if (segment.mPosition > length) {
+                segment.mPosition = length;
+            }
+        }
+    }
+
+    /**
+     * Remember the validator the server gave for the file, to make sure it
+     * didn't change when resuming. Validators are only comparable when they
+     * come from the same URL.
+     */
+    synchronized void setValidator(URL url, String validator) {
+        mValidatorUrl = validator != null ? url.toString() : null;
+        mValidator = validator;
+    }
+
+    /**
+     * @return the validator to send in If-Range to the given URL, or null
+     */
+    synchronized String getValidator(URL url) {
+        return url.toString().equals(mValidatorUrl) ? mValidator : null;
+    }
+
+    /**
+     * Set the hashes the chunks of the file are checked against. Chunks that
+     * were checked against other hashes must be checked again.
+     */
+    synchronized void setChunkHashes(ChunkHashes hashes) {
+        if (!hashes.equals(mChunkHashes)) {
+            mChunkHashes = hashes;
+            mVerified.clear();
+        }
+    }
+
+    synchronized ChunkHashes getChunkHashes() {
+        return mChunkHashes;
+    }
+
+    synchronized boolean isVerified(int chunk) {
+        return mVerified.get(chunk);
+    }
+
+    synchronized void setVerified(int chunk) {
+        mVerified.set(chunk);
+    }
+
+    /**
+     * Whether all the bytes in the given range are in the file.
+     */
+    synchronized boolean isDownloaded(long start, long end) {
+        for (Segment segment : mSegments) {
+            if (segment.getRemaining() > 0 && segment.mPosition < end && segment.mEnd > start) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Download again a range that was found damaged.
+     */
+    synchronized void addPending(long start, long end) {
+        mSegments.add(new Segment(start, end));
+    }
+
+    synchronized void setExpectedDigest(byte[] digest) {
+        mExpectedDigest = digest;
+    }
+
+    synchronized byte[] getExpectedDigest() {
+        return mExpectedDigest;
+    }
+
+    /**
+     * Save the state of the digest of the beginning of the file, given as
+     * the first bytes of the array. They are copied, into the array of the
+     * previous state when it is large enough, so that checkpoints of the
+     * digest don't allocate.
+     */
+    synchronized void setDigestState(byte[] state, int length) {
+        if (mDigestState == null || mDigestState.length < length) {
+            mDigestState = new byte[Math.max(length, state.length)];
+        }
+        System.arraycopy(state, 0, mDigestState, 0, length);
+        mDigestStateLength = length;
+    }
+
+    synchronized byte[] getDigestState() {
+        return mDigestState != null ? Arrays.copyOf(mDigestState, mDigestStateLength) : null;
+    }
+
+    /**
+     * Get where the bytes downloaded without interruption from the given
+     * position end.
+     */
+    synchronized long getDownloadedEnd(long position) {
+        long end = mLength != UNKNOWN_LENGTH ? mLength : Long.MAX_VALUE;
+        // Indexed, like the other loops polled during the transfer, so that
+        // no iterator is allocated where the code isn't hot enough to be
+        // optimized
+        for (int i = 0; i < mSegments.size(); i++) {
+            final Segment segment = mSegments.get(i);
+            if (segment.getRemaining() > 0 && segment.mEnd > position) {
+                end = Math.min(end, Math.max(segment.mPosition, position));
+            }
+        }
+        return end;
+    }
+
+    synchronized long getDownloadedBytes() {
+        long remaining = 0;
+        long position = 0;
+        for (int i = 0; i < mSegments.size(); i++) {
+            final Segment segment = mSegments.get(i);
+            if (mLength == UNKNOWN_LENGTH) {
+                position = Math.max(position, segment.mPosition);
+            } else {
+                remaining += segment.getRemaining();
+            }
+        }
+        return mLength == UNKNOWN_LENGTH ? position : mLength - remaining;
+    }
+
+    synchronized boolean isComplete() {
+        if (mLength == UNKNOWN_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < mSegments.size(); i++) {
+            if (mSegments.get(i).getRemaining() > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    synchronized int getPendingCount() {
+        int count = 0;
+        for (Segment segment : mSegments) {
+            if (segment.getRemaining() > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the pending segment with the lowest offset and assign it to the caller.
+     */
+    synchronized Segment acquireFirst() {
+        Segment first = null;
+        for (Segment segment : mSegments) {
+            if (!segment.mAssigned && segment.getRemaining() > 0 &&
+                    (first == null || segment.mPosition < first.mPosition)) {
+                first = segment;
+            }
+        }
+        if (first != null) {
+            first.mAssigned = true;
+        }
+        return first;
+    }
+
+    /**
+     * Get some work for a new connection: a pending segment nobody is downloading
+     * or, if there's none, the second half of the segment that is expected to
+     * complete last according to the speed of its connection.
+     *
+     * @return the segment assigned to the caller, or null if there's nothing
+     *         worth splitting
+     */
+    synchronized Segment acquire() {
+        Segment unassigned = acquireFirst();
+        if (unassigned != null) {
+            return unassigned;
+        }
+        if (mLength == UNKNOWN_LENGTH) {
+            return null;
+        }
+        long totalSpeed = 0;
+        int measured = 0;
+        for (Segment segment : mSegments) {
+            if (segment.mSpeed > 0) {
+                totalSpeed += segment.mSpeed;
+                measured++;
+            }
+        }
+        long averageSpeed = measured > 0 ? totalSpeed / measured : 1;
+        Segment slowest = null;
+        long slowestEta = -1;
+        for (Segment segment : mSegments) {
+            if (segment.getRemaining() < 2 * MIN_SEGMENT_SIZE) {
+                continue;
+            }
+            long speed = segment.mSpeed > 0 ? segment.mSpeed : averageSpeed;
+            long eta = segment.getRemaining() / Math.max(speed, 1);
+            if (eta > slowestEta) {
+                slowest = segment;
+                slowestEta = eta;
+            }
+        }
+        if (slowest == null) {
+            return null;
+        }
+        long middle = slowest.mPosition + slowest.getRemaining() / 2;
+        Segment segment = new Segment(middle, slowest.mEnd);
+        segment.mAssigned = true;
+        slowest.mEnd = middle;
+        mSegments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Cut the segment at the given position, leaving what is past it to be
+     * acquired as another segment.
+     */
+    synchronized void split(Segment segment, long position) {
+        if (position > segment.mPosition && position < segment.mEnd) {
+            mSegments.add(new Segment(position, segment.mEnd));
+            segment.mEnd = position;
+        }
+    }
+
+    synchronized void setSpeed(Segment segment, long speed) {
+        segment.mSpeed = speed;
+    }
+
+    synchronized void release(Segment segment) {
+        segment.mAssigned = false;
+        segment.mSpeed = 0;
+        if (segment.getRemaining() <= 0) {
+            mSegments.remove(segment);
+        }
+    }
+
+    synchronized long getPosition(Segment segment) {
+        return segment.mPosition;
+    }
+
+    synchronized long getEnd(Segment segment) {
+        return segment.mEnd;
+    }
+
+    /**
+     * Record that count bytes have been written at the current position of the
+     * given segment.
+     *
+     * @return the number of bytes still to be downloaded for the segment
+     */
+    synchronized long advance(Segment segment, long count) {
+        segment.mPosition = Math.min(segment.mPosition + count, segment.mEnd);
+        return segment.getRemaining();
+    }
+
+    /**
+     * Move the position of a segment back, to download again what is past
+     * the new position.
+     */
+    synchronized void rewind(Segment segment, long position) {
+        segment.mPosition = Math.min(segment.mPosition, Math.max(position, 0));
+    }
+
+    /**
+     * Mark the end of the stream for downloads of unknown length.
+     */
+    synchronized void finish(Segment segment) {
+        segment.mEnd = segment.mPosition;
+        if (mLength == UNKNOWN_LENGTH) {
+            mLength = segment.mPosition;
+        }
+    }
+}
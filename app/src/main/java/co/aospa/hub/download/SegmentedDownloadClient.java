@@ -0,0 +1,1462 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Download client that splits the file in byte ranges and fetches them in
+ * parallel over multiple connections. The number of connections grows as
+ * long as it improves the overall throughput.
+ *
+ * When duplicate links are used, the ranges are spread over all the mirrors
+ * advertised by the server. Connections pick the mirror that is expected to
+ * be the fastest and take over the work of the slowest ones, while mirrors
+ * that fail or stall are dropped.
+ */
+class SegmentedDownloadClient implements DownloadClient {
+
+    private final static String TAG = "SegmentedDownloadClient";
+
+    static final int DEFAULT_MAX_SEGMENTS = 8;
+
+    private static final int INITIAL_SEGMENTS = 2;
+    private static final int STAGE_BUFFERS_PER_CONNECTION = 2;
+
+    private static final long REPORT_INTERVAL_MS = 500;
+    private static final long TUNE_INTERVAL_MS = 3000;
+    private static final long SAVE_INTERVAL_MS = 5000;
+
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 20000;
+
+    // How much of what was downloaded is fetched again and compared when resuming
+    private static final long TAIL_VERIFY_BYTES = 2 * 1024 * 1024;
+    private static final int VERIFY_CHUNK_SIZE = 64 * 1024;
+
+    // Adding a connection must improve the throughput at least by this much,
+    // otherwise we stop adding new ones
+    private static final int MIN_GAIN_PERCENT = 10;
+
+    private static final Pattern CONTENT_RANGE_PATTERN =
+            Pattern.compile("(?i)bytes\\s+([0-9]+)-([0-9]+)/([0-9]+|\\*)");
+
+    // https://www.rfc-editor.org/rfc/rfc9530 and the older RFC 3230
+    private static final Pattern REPR_DIGEST_PATTERN =
+            Pattern.compile("(?i)(?:^|,)\\s*sha-256=:([A-Za-z0-9+/=]+):");
+    private static final Pattern DIGEST_PATTERN =
+            Pattern.compile("(?i)(?:^|,)\\s*sha-256=([A-Za-z0-9+/=]+)");
+
+    private final URL mUrl;
+    private final File mDestination;
+    private final DownloadClient.ProgressListener mProgressListener;
+    private final DownloadClient.DownloadCallback mCallback;
+    private final boolean mUseDuplicateLinks;
+    private final int mMaxSegments;
+    private final MirrorScoreboard mScoreboard;
+    private final int mEngine;
+    private final boolean mLowCacheMode;
+    private final RetryPolicy mRetryPolicy;
+    private final ChunkHashes mChunkHashes;
+    private final byte[] mExpectedDigest;
+    private final RateLimiter mRateLimiter;
+    private final List<URL> mPeers = new ArrayList<>();
+    private final List<NetworkPath> mPaths;
+
+    private volatile boolean mDigestVerified;
+    private volatile boolean mConnectionLost;
+    private DownloadThread mDownloadThread;
+
+    private static class Mirror {
+        private final URL mUrl;
+        // The network to reach the mirror through, or null for the default one
+        private final NetworkPath mPath;
+        private final AtomicLong mBytes = new AtomicLong();
+        private long mLastBytes;
+        private long mSpeed = -1;
+        private long mConnectionSpeed = -1;
+        private int mConnections;
+        private boolean mFailed;
+        // Only used once all the other mirrors failed
+        private boolean mStandby;
+
+        private Mirror(URL url) {
+            this(url, null);
+        }
+
+        private Mirror(URL url, NetworkPath path) {
+            mUrl = url;
+            mPath = path;
+        }
+
+        private String getName() {
+            return mPath != null ? mUrl.getHost() + " over " + mPath : mUrl.getHost();
+        }
+    }
+
+    private static class WriteException extends IOException {
+        private WriteException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private static class ContentChangedException extends IOException {
+        private ContentChangedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The file downloaded in a single attempt doesn't match its digest, which
+     * downloading it again won't fix.
+     */
+    private static class DigestMismatchException extends IOException {
+        private DigestMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    SegmentedDownloadClient(String url, File destination,
+            DownloadClient.ProgressListener progressListener,
+            DownloadClient.DownloadCallback callback,
+            boolean useDuplicateLinks, int maxSegments, MirrorScoreboard scoreboard,
+            int engine, boolean lowCacheMode, RetryPolicy retryPolicy, ChunkHashes chunkHashes,
+            String sha256, RateLimiter rateLimiter, List<String> peers,
+            List<NetworkPath> paths) throws IOException {
+        mUrl = new URL(url);
+        mDestination = destination;
+        mProgressListener = progressListener;
+        mCallback = callback;
+        mUseDuplicateLinks = useDuplicateLinks;
+        mMaxSegments = Math.max(1, maxSegments);
+        mScoreboard = scoreboard;
+        mEngine = engine;
+        mLowCacheMode = lowCacheMode;
+        mRetryPolicy = retryPolicy != null ? retryPolicy : RetryPolicy.NONE;
+        mChunkHashes = chunkHashes;
+        mExpectedDigest = decodeDigest(sha256);
+        mRateLimiter = rateLimiter;
+        if (peers != null) {
+            for (String peer : peers) {
+                try {
+                    mPeers.add(new URL(peer));
+                } catch (IOException e) {
+                    Log.e(TAG, "Ignoring invalid peer " + peer, e);
+                }
+            }
+        }
+        mPaths = paths != null ? paths : Collections.emptyList();
+    }
+
+    private static byte[] decodeDigest(String sha256) {
+        if (sha256 == null) {
+            return null;
+        }
+        try {
+            return ChunkHashes.decodeHex(sha256);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Ignoring invalid digest", e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (mDownloadThread != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        SegmentState.delete(mDestination);
+        mDownloadThread = new DownloadThread(false, 0, 0);
+        mDownloadThread.start();
+    }
+
+    @Override
+    public synchronized void resume() {
+        if (mDownloadThread != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        if (!mDestination.exists()) {
+            mCallback.onFailure(false);
+            return;
+        }
+        mDownloadThread = new DownloadThread(true, 0, 0);
+        mDownloadThread.start();
+    }
+
+    @Override
+    public boolean isDigestVerified() {
+        return mDigestVerified;
+    }
+
+    @Override
+    public boolean isJournaled() {
+        return true;
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return mConnectionLost;
+    }
+
+    @Override
+    public synchronized void cancel() {
+        if (mDownloadThread == null) {
+            Log.e(TAG, "Not downloading");
+            return;
+        }
+        mDownloadThread.cancel();
+        mDownloadThread = null;
+    }
+
+    private static boolean isSuccessCode(int statusCode) {
+        return (statusCode / 100) == 2;
+    }
+
+    private static boolean isRedirectCode(int statusCode) {
+        return (statusCode / 100) == 3;
+    }
+
+    private static boolean isPartialContentCode(int statusCode) {
+        return statusCode == 206;
+    }
+
+    /**
+     * Whether the download could go on if it was resumed later.
+     */
+    private static boolean isTransient(IOException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof WriteException || t instanceof ContentChangedException ||
+                    t instanceof DigestMismatchException ||
+                    t instanceof ChunkVerifier.MismatchException) {
+                return false;
+            } else if (t instanceof HttpStatusException) {
+                return ((HttpStatusException) t).isTransient();
+            }
+        }
+        return true;
+    }
+
+    private static long getRetryAfter(IOException e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof HttpStatusException) {
+                return ((HttpStatusException) t).mRetryAfterMs;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a Content-Range header.
+     *
+     * @return first byte, last byte and total length, the latter being
+     *         SegmentState.UNKNOWN_LENGTH if the server didn't specify it
+     */
+    private static long[] parseContentRange(String contentRange) throws IOException {
+        if (contentRange == null) {
+            throw new IOException("Missing Content-Range");
+        }
+        Matcher matcher = CONTENT_RANGE_PATTERN.matcher(contentRange.trim());
+        if (!matcher.matches()) {
+            throw new IOException("Invalid Content-Range: " + contentRange);
+        }
+        String length = matcher.group(3);
+        return new long[] {
+                Long.parseLong(matcher.group(1)),
+                Long.parseLong(matcher.group(2)),
+                "*".equals(length) ? SegmentState.UNKNOWN_LENGTH : Long.parseLong(length)
+        };
+    }
+
+    /**
+     * @param ifRange validator of the content the range must be taken from,
+     *                the whole file is sent otherwise
+     */
+    private static HttpURLConnection openConnection(URL url, long position, long end,
+            String ifRange) throws IOException {
+        return openConnection(null, url, position, end, ifRange);
+    }
+
+    private static HttpURLConnection openConnection(NetworkPath path, URL url, long position,
+            long end, String ifRange) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) (path != null ?
+                path.openConnection(url) : url.openConnection());
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        if (end == Long.MAX_VALUE) {
+            connection.setRequestProperty("Range", "bytes=" + position + "-");
+        } else {
+            connection.setRequestProperty("Range", "bytes=" + position + "-" + (end - 1));
+        }
+        if (ifRange != null) {
+            connection.setRequestProperty("If-Range", ifRange);
+        }
+        return connection;
+    }
+
+    /**
+     * Get the strong ETag of the response or, if there's none, its
+     * Last-Modified date, both suitable for If-Range.
+     */
+    private static String getValidator(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        return connection.getHeaderField("Last-Modified");
+    }
+
+    /**
+     * Get the SHA-256 of the whole file from a Repr-Digest or Digest header.
+     *
+     * @return the digest, or null if the server didn't send it
+     */
+    private static byte[] getDigest(HttpURLConnection connection) {
+        String reprDigest = connection.getHeaderField("Repr-Digest");
+        String digest = connection.getHeaderField("Digest");
+        Matcher matcher = null;
+        if (reprDigest != null) {
+            matcher = REPR_DIGEST_PATTERN.matcher(reprDigest);
+        } else if (digest != null) {
+            matcher = DIGEST_PATTERN.matcher(digest);
+        }
+        if (matcher == null || !matcher.find()) {
+            return null;
+        }
+        try {
+            byte[] bytes = Base64.getDecoder().decode(matcher.group(1));
+            return bytes.length == ChunkHashes.HASH_LENGTH ? bytes : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean regionEquals(byte[] a, byte[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class DownloadThread extends Thread {
+
+        private final boolean mResume;
+        private final int mRetry;
+        private final int mAttempts;
+        private final List<SegmentThread> mSegmentThreads = new ArrayList<>();
+        private final List<Mirror> mMirrors = new ArrayList<>();
+
+        private SegmentState mState;
+        private long mStartBytes;
+        private FileChannel mChannel;
+        private WriteBehindStage mStage;
+        private volatile ChunkVerifier mVerifier;
+        private volatile StreamingDigest mDigest;
+        private Mirror mFirstMirror;
+        private boolean mRangesSupported;
+        private volatile boolean mStopped;
+        private volatile IOException mError;
+        private final ConnectionGroup mConnections = new ConnectionGroup();
+
+        private long mTotalBytes = -1;
+        private long mTotalBytesRead = 0;
+
+        private long mCurSampleBytes = 0;
+        private long mLastMillis = 0;
+        private long mSpeed = -1;
+        private long mEta = -1;
+
+        private boolean mGrowing = true;
+        private long mLastTuneSpeed = -1;
+
+        private int mFailovers;
+        private long mLostMillis;
+
+        /**
+         * @param retry how many attempts in a row failed before this one
+         *              without receiving anything
+         * @param attempts how many attempts were made before this one
+         */
+        private DownloadThread(boolean resume, int retry, int attempts) {
+            mResume = resume;
+            mRetry = retry;
+            mAttempts = attempts;
+        }
+
+        private void calculateSpeed() {
+            final long millis = SystemClock.elapsedRealtime();
+            final long delta = millis - mLastMillis;
+            if (delta > 500) {
+                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
+                if (mSpeed == -1) {
+                    mSpeed = curSpeed;
+                } else {
+                    mSpeed = ((mSpeed * 3) + curSpeed) / 4;
+                }
+
+                mLastMillis = millis;
+                mCurSampleBytes = mTotalBytesRead;
+            }
+        }
+
+        private void calculateEta() {
+            if (mSpeed > 0 && mTotalBytes > 0) {
+                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+            }
+        }
+
+        private void reportProgress() {
+            final long millis = SystemClock.elapsedRealtime();
+            if (millis - mLastMillis > 500) {
+                updateSpeeds(millis - mLastMillis);
+            }
+            mTotalBytes = mState.getLength();
+            mTotalBytesRead = mState.getDownloadedBytes();
+            calculateSpeed();
+            calculateEta();
+            if (mProgressListener != null) {
+                mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+            }
+        }
+
+        private void updateSpeeds(long delta) {
+            // Indexed loops, so that reporting the progress allocates nothing
+            for (int i = 0; i < mSegmentThreads.size(); i++) {
+                final SegmentThread thread = mSegmentThreads.get(i);
+                long bytes = thread.mBytes;
+                long speed = ((bytes - thread.mLastBytes) * 1000) / delta;
+                thread.mLastBytes = bytes;
+                SegmentState.Segment segment = thread.mSegment;
+                if (thread.isAlive() && segment != null) {
+                    mState.setSpeed(segment, speed);
+                }
+            }
+            synchronized (mMirrors) {
+                for (int i = 0; i < mMirrors.size(); i++) {
+                    final Mirror mirror = mMirrors.get(i);
+                    long bytes = mirror.mBytes.get();
+                    long speed = ((bytes - mirror.mLastBytes) * 1000) / delta;
+                    mirror.mLastBytes = bytes;
+                    if (mirror.mConnections == 0) {
+                        continue;
+                    }
+                    if (mirror.mSpeed == -1) {
+                        mirror.mSpeed = speed;
+                    } else {
+                        mirror.mSpeed = ((mirror.mSpeed * 3) + speed) / 4;
+                    }
+                    long connectionSpeed = speed / mirror.mConnections;
+                    if (mirror.mConnectionSpeed == -1) {
+                        mirror.mConnectionSpeed = connectionSpeed;
+                    } else {
+                        mirror.mConnectionSpeed =
+                                ((mirror.mConnectionSpeed * 3) + connectionSpeed) / 4;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Get the mirror that is expected to give the highest throughput to a
+         * new connection. Mirrors that haven't been used yet are tried first,
+         * mirrors on standby last.
+         */
+        private Mirror acquireMirror() {
+            synchronized (mMirrors) {
+                Mirror best = null;
+                long bestSpeed = -1;
+                for (int pass = 0; pass < 2 && best == null; pass++) {
+                    for (Mirror mirror : mMirrors) {
+                        if (mirror.mFailed || mirror.mStandby != (pass == 1)) {
+                            continue;
+                        }
+                        if (mirror.mSpeed == -1 && mirror.mConnections == 0) {
+                            best = mirror;
+                            break;
+                        }
+                        long speed = Math.max(mirror.mSpeed, 0) / (mirror.mConnections + 1);
+                        if (speed > bestSpeed) {
+                            best = mirror;
+                            bestSpeed = speed;
+                        }
+                    }
+                }
+                if (best != null) {
+                    best.mConnections++;
+                }
+                return best;
+            }
+        }
+
+        private void releaseMirror(Mirror mirror) {
+            synchronized (mMirrors) {
+                mirror.mConnections--;
+            }
+        }
+
+        private void penalizeMirror(Mirror mirror) {
+            synchronized (mMirrors) {
+                mirror.mSpeed = 0;
+            }
+        }
+
+        private void dropMirror(Mirror mirror, IOException e) {
+            synchronized (mMirrors) {
+                if (!mirror.mFailed) {
+                    Log.e(TAG, "Dropping mirror " + mirror.getName(), e);
+                    mirror.mFailed = true;
+                    // Failing over another network says nothing about the mirror
+                    if (mScoreboard != null && mirror.mPath == null) {
+                        mScoreboard.invalidate(mirror.mUrl);
+                    }
+                }
+            }
+        }
+
+        private int getActiveCount() {
+            int count = 0;
+            for (int i = 0; i < mSegmentThreads.size(); i++) {
+                if (mSegmentThreads.get(i).isAlive()) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private void startSegmentThread(SegmentState.Segment segment,
+                HttpURLConnection connection, Mirror mirror) {
+            SegmentThread thread = new SegmentThread(segment, connection, mirror);
+            mSegmentThreads.add(thread);
+            thread.start();
+        }
+
+        private boolean addSegmentThread() {
+            SegmentState.Segment segment = mState.acquire();
+            if (segment == null) {
+                return false;
+            }
+            startSegmentThread(segment, null, null);
+            return true;
+        }
+
+        private void tune(long speed) {
+            int activeCount = getActiveCount();
+            if (activeCount >= mMaxSegments) {
+                return;
+            }
+            if (mLastTuneSpeed > 0 &&
+                    speed * 100 < mLastTuneSpeed * (100 + MIN_GAIN_PERCENT)) {
+                Log.d(TAG, "Throughput stopped improving with " + activeCount + " connections");
+                mGrowing = false;
+                return;
+            }
+            if (addSegmentThread()) {
+                Log.d(TAG, "Adding connection, now " + (activeCount + 1));
+                mLastTuneSpeed = speed;
+            }
+        }
+
+        /**
+         * Replace the connections that stopped receiving anything or that are
+         * far slower than the others.
+         */
+        private void checkStalls() {
+            int activeCount = getActiveCount();
+            long referenceSpeed = activeCount > 1 && mSpeed > 0 ? mSpeed / activeCount : -1;
+            for (int i = 0; i < mSegmentThreads.size(); i++) {
+                final SegmentThread thread = mSegmentThreads.get(i);
+                if (!thread.isAlive()) {
+                    continue;
+                }
+                try {
+                    thread.mWatchdog.check(thread.mBytes, referenceSpeed);
+                } catch (StallWatchdog.StallException e) {
+                    mFailovers++;
+                    mLostMillis += e.mLostMillis;
+                    thread.abort(e);
+                }
+            }
+        }
+
+        /**
+         * Stop the download from another thread. The connections are closed
+         * under the threads blocked reading them, which would otherwise only
+         * notice once something is received.
+         */
+        private void cancel() {
+            mStopped = true;
+            interrupt();
+            mConnections.cancel();
+        }
+
+        /**
+         * Stop the segment threads, closing their connections like cancel()
+         * does, so that none of them still reads while the next attempt runs.
+         */
+        private void stopSegmentThreads() {
+            mStopped = true;
+            for (SegmentThread thread : mSegmentThreads) {
+                thread.interrupt();
+            }
+            mConnections.cancel();
+        }
+
+        /**
+         * Get the Location of the redirect followed by its duplicate links,
+         * ignoring the ones we can't use.
+         */
+        private List<URL> getMirrorUrls(HttpURLConnection redirect) {
+            List<String> links = new ArrayList<>();
+            String location = redirect.getHeaderField("Location");
+            if (location != null) {
+                links.add(location);
+            }
+            for (DuplicateLink link : DuplicateLink.parse(redirect.getHeaderFields())) {
+                if (!links.contains(link.mUrl)) {
+                    links.add(link.mUrl);
+                }
+            }
+            redirect.disconnect();
+
+            List<URL> urls = new ArrayList<>();
+            for (String link : links) {
+                URL url;
+                try {
+                    url = new URL(mUrl, link);
+                } catch (IOException e) {
+                    Log.e(TAG, "Ignoring invalid mirror " + link);
+                    continue;
+                }
+                if (!url.getProtocol().equals(mUrl.getProtocol())) {
+                    // HttpURLConnection wouldn't have followed this redirect either
+                    Log.e(TAG, "Ignoring mirror " + link + ", protocol changes are not allowed");
+                    continue;
+                }
+                urls.add(url);
+            }
+            return urls;
+        }
+
+        /**
+         * Connect to the first mirror that answers, keeping the others to
+         * download the remaining segments.
+         */
+        private HttpURLConnection connectToMirrors(List<URL> urls, long position)
+                throws IOException {
+            mMirrors.clear();
+            HttpURLConnection connection = null;
+            IOException error = null;
+            for (URL url : urls) {
+                Mirror mirror = new Mirror(url);
+                if (mScoreboard != null) {
+                    // Let the fastest known mirrors get the first connections
+                    mirror.mSpeed = mScoreboard.getSpeed(url);
+                }
+                if (connection == null) {
+                    try {
+                        Log.d(TAG, "Downloading from " + url);
+                        connection = mConnections.add(openConnection(url, position,
+                                Long.MAX_VALUE, mState.getValidator(url)));
+                        if (!isSuccessCode(connection.getResponseCode())) {
+                            HttpStatusException e = HttpStatusException.from(connection);
+                            connection.disconnect();
+                            throw e;
+                        }
+                        mFirstMirror = mirror;
+                    } catch (IOException e) {
+                        Log.e(TAG, "Could not use mirror " + url, e);
+                        if (mScoreboard != null) {
+                            mScoreboard.invalidate(url);
+                        }
+                        error = e;
+                        connection = null;
+                        continue;
+                    }
+                }
+                mMirrors.add(mirror);
+            }
+            if (connection == null) {
+                mMirrors.clear();
+                throw error != null ? error : new IOException("No mirror available");
+            }
+            Log.d(TAG, "Using " + mMirrors.size() + " mirrors");
+            return connection;
+        }
+
+        private HttpURLConnection connectToCachedMirrors(long position) {
+            List<URL> urls = mScoreboard.getRedirect(mUrl);
+            if (urls == null) {
+                return null;
+            }
+            try {
+                Log.d(TAG, "Using cached redirect of " + mUrl);
+                return connectToMirrors(urls, position);
+            } catch (IOException e) {
+                Log.e(TAG, "Cached mirrors failed, following the redirect again", e);
+                return null;
+            }
+        }
+
+        /**
+         * Connect to the first peer that has the file, keeping the others for
+         * the remaining segments and the URL in case they all fail.
+         *
+         * @return the connection, or null if no peer has the file
+         */
+        private HttpURLConnection connectToPeers(long position) {
+            try {
+                HttpURLConnection connection = connectToMirrors(mPeers, position);
+                Mirror origin = new Mirror(mUrl);
+                origin.mStandby = true;
+                mMirrors.add(origin);
+                return connection;
+            } catch (IOException e) {
+                Log.e(TAG, "No peer has the file, downloading it from " + mUrl.getHost(), e);
+                return null;
+            }
+        }
+
+        /**
+         * Make every mirror reachable over the other networks too, so that
+         * segments are spread over all of them according to their speed.
+         * Peers are left alone, they're only reachable over the local network.
+         */
+        private void addPathMirrors() {
+            if (mPaths.isEmpty()) {
+                return;
+            }
+            synchronized (mMirrors) {
+                List<Mirror> mirrors = new ArrayList<>(mMirrors);
+                for (Mirror mirror : mirrors) {
+                    if (mirror.mPath != null || isPeer(mirror.mUrl)) {
+                        continue;
+                    }
+                    for (NetworkPath path : mPaths) {
+                        Mirror pathMirror = new Mirror(mirror.mUrl, path);
+                        pathMirror.mStandby = mirror.mStandby;
+                        mMirrors.add(pathMirror);
+                    }
+                }
+            }
+            Log.d(TAG, "Downloading over " + (mPaths.size() + 1) + " networks");
+        }
+
+        private boolean isPeer(URL url) {
+            for (URL peer : mPeers) {
+                // URL.equals() resolves the hosts
+                if (peer.toString().equals(url.toString())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private HttpURLConnection connect(SegmentState.Segment first) throws IOException {
+            long position = mState.getPosition(first);
+            HttpURLConnection connection = null;
+            if (!mPeers.isEmpty()) {
+                connection = connectToPeers(position);
+            }
+            if (connection == null && mUseDuplicateLinks && mScoreboard != null) {
+                connection = connectToCachedMirrors(position);
+            }
+            if (connection == null) {
+                connection = mConnections.add(openConnection(mUrl, position, Long.MAX_VALUE,
+                        mState.getValidator(mUrl)));
+                connection.setInstanceFollowRedirects(!mUseDuplicateLinks);
+            }
+            int responseCode = connection.getResponseCode();
+            if (mUseDuplicateLinks && isRedirectCode(responseCode)) {
+                List<URL> urls = getMirrorUrls(connection);
+                if (mScoreboard != null) {
+                    urls = mScoreboard.probe(urls);
+                    mScoreboard.putRedirect(mUrl, urls);
+                }
+                connection = connectToMirrors(urls, position);
+                responseCode = connection.getResponseCode();
+            } else if (mFirstMirror == null) {
+                mFirstMirror = new Mirror(connection.getURL());
+                mMirrors.add(mFirstMirror);
+            }
+            if (isPartialContentCode(responseCode)) {
+                long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+                if (range[0] != position) {
+                    throw new IOException("Unexpected range " + range[0] + "-" + range[1]);
+                }
+                long length = range[2];
+                long knownLength = mState.getLength();
+                if (knownLength != SegmentState.UNKNOWN_LENGTH && length != knownLength) {
+                    throw new ContentChangedException("The remote file changed size");
+                }
+                if (length != SegmentState.UNKNOWN_LENGTH) {
+                    mState.setLength(length);
+                    mRangesSupported = true;
+                }
+                mState.setValidator(connection.getURL(), getValidator(connection));
+                Log.d(TAG, "The server fulfilled the partial content request");
+            } else if (mResume && responseCode == HttpURLConnection.HTTP_OK) {
+                // Either If-Range didn't match or ranges aren't supported anymore
+                connection.disconnect();
+                throw new ContentChangedException("The server sent the whole file");
+            } else if (!mResume && isSuccessCode(responseCode)) {
+                // Ranges aren't supported, download everything over this connection
+                long length = connection.getContentLengthLong();
+                if (length >= 0) {
+                    mState.setLength(length);
+                }
+                mState.setValidator(connection.getURL(), getValidator(connection));
+                Log.d(TAG, "The server doesn't support ranges, using a single connection");
+            } else {
+                HttpStatusException e = HttpStatusException.from(connection);
+                connection.disconnect();
+                throw e;
+            }
+            if (mState.getExpectedDigest() == null) {
+                mState.setExpectedDigest(getDigest(connection));
+            }
+            mCallback.onResponse(connection::getHeaderField);
+            mFirstMirror.mConnections++;
+            return connection;
+        }
+
+        /**
+         * Download again the end of what was already downloaded before the
+         * first segment and compare it with the file. A mismatch from the start
+         * means that the remote or local file changed, a later one that the
+         * tail of the file was torn, in which case the segment is moved back to
+         * download it again.
+         *
+         * @return whether the segment was moved back
+         */
+        private boolean verifyTail(SegmentState.Segment first) throws IOException {
+            final long position = mState.getPosition(first);
+            if (mDestination.length() < position) {
+                // What was downloaded past the end is lost too
+                throw new ContentChangedException("The file is shorter than its journal");
+            }
+            final long length = Math.min(TAIL_VERIFY_BYTES, position);
+            if (length == 0) {
+                return false;
+            }
+            final long start = position - length;
+            final URL url = mFirstMirror.mUrl;
+            HttpURLConnection connection = mConnections.add(openConnection(url, start,
+                    position, mState.getValidator(url)));
+            try (RandomAccessFile file = new RandomAccessFile(mDestination, "r")) {
+                int responseCode = connection.getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    throw new ContentChangedException("The server sent the whole file");
+                } else if (!isPartialContentCode(responseCode)) {
+                    throw HttpStatusException.from(connection);
+                }
+                long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+                if (range[0] != start) {
+                    throw new IOException("Unexpected range " + range[0] + "-" + range[1]);
+                }
+                byte[] remote = new byte[VERIFY_CHUNK_SIZE];
+                byte[] local = new byte[VERIFY_CHUNK_SIZE];
+                file.seek(start);
+                try (DataInputStream in = new DataInputStream(connection.getInputStream())) {
+                    for (long offset = start; offset < position; ) {
+                        int count = (int) Math.min(VERIFY_CHUNK_SIZE, position - offset);
+                        in.readFully(remote, 0, count);
+                        file.readFully(local, 0, count);
+                        if (!regionEquals(remote, local, count)) {
+                            if (offset == start) {
+                                throw new ContentChangedException(
+                                        "The file doesn't match the remote one");
+                            }
+                            Log.e(TAG, "The file is torn, downloading again from " + offset);
+                            mState.rewind(first, offset);
+                            return true;
+                        }
+                        offset += count;
+                    }
+                }
+                Log.d(TAG, "Verified the last " + length + " bytes downloaded");
+                return false;
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public void run() {
+            HttpURLConnection connection = null;
+            try {
+                mState = mResume ? SegmentState.load(mDestination) : null;
+                if (mState == null) {
+                    // Either a new download or one that was started without a journal
+                    mState = SegmentState.create(mDestination,
+                            mResume ? mDestination.length() : 0);
+                }
+                if (mChunkHashes != null) {
+                    mState.setChunkHashes(mChunkHashes);
+                }
+                if (mExpectedDigest != null) {
+                    mState.setExpectedDigest(mExpectedDigest);
+                }
+                if (!mResume) {
+                    // The destination may be preallocated from onResponse(), it
+                    // must not be taken for downloaded if we are killed
+                    mState.save();
+                }
+                mStartBytes = mState.getDownloadedBytes();
+                SegmentState.Segment first = mState.acquireFirst();
+                if (first == null) {
+                    Log.d(TAG, "Nothing left to download");
+                    SegmentState.delete(mDestination);
+                    mCallback.onSuccess();
+                    return;
+                }
+
+                connection = connect(first);
+                if (connection == null || isInterrupted()) {
+                    // Either failed or cancelled from onResponse()
+                    mCallback.onFailure(isInterrupted());
+                    return;
+                }
+                addPathMirrors();
+                if (mResume && mRangesSupported && verifyTail(first)) {
+                    // This connection starts past what must be downloaded again
+                    connection.disconnect();
+                    connection = null;
+                    releaseMirror(mFirstMirror);
+                }
+
+                final long startMillis = SystemClock.elapsedRealtime();
+                final long startBytes = mState.getDownloadedBytes();
+                try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw");
+                     WriteBehindStage stage = new WriteBehindStage(file.getChannel(),
+                             STAGE_BUFFERS_PER_CONNECTION * mMaxSegments,
+                             mEngine == DownloadClient.ENGINE_NIO, mLowCacheMode)) {
+                    if (!mResume) {
+                        // Only drop what is past the end, keeping the blocks
+                        // that may have been reserved for the file
+                        long length = mState.getLength();
+                        file.setLength(length != SegmentState.UNKNOWN_LENGTH ? length : 0);
+                    }
+                    // The file can be longer than what was downloaded, never
+                    // leave it without a journal
+                    mState.save();
+                    mChannel = file.getChannel();
+                    mStage = stage;
+                    ChunkHashes hashes = mState.getChunkHashes();
+                    if (hashes != null && !hashes.fits(mState.getLength())) {
+                        Log.e(TAG, "The chunk hashes don't match the file, ignoring them");
+                        hashes = null;
+                    }
+                    if (mState.getLength() != SegmentState.UNKNOWN_LENGTH) {
+                        mDigest = new StreamingDigest(mChannel, mState, hashes);
+                        mDigest.update();
+                    }
+                    if (hashes != null) {
+                        mVerifier = new ChunkVerifier(hashes, mChannel, mState,
+                                this::updateDigest);
+                        mVerifier.scan();
+                    }
+                    mLastMillis = startMillis;
+                    mCurSampleBytes = startBytes;
+
+                    startSegmentThread(first, connection,
+                            connection != null ? mFirstMirror : null);
+                    connection = null;
+                    if (mRangesSupported) {
+                        // Start with at least a connection per mirror
+                        int count = Math.max(INITIAL_SEGMENTS, mMirrors.size());
+                        for (int i = 1; i < Math.min(count, mMaxSegments); i++) {
+                            addSegmentThread();
+                        }
+                    }
+
+                    long lastTune = startMillis;
+                    long lastTuneBytes = startBytes;
+                    long lastSave = startMillis;
+                    while (!isInterrupted()) {
+                        synchronized (this) {
+                            wait(REPORT_INTERVAL_MS);
+                        }
+                        if (mError != null) {
+                            throw mError;
+                        }
+                        if (mVerifier != null) {
+                            mVerifier.throwIfFailed();
+                        }
+                        reportProgress();
+                        checkStalls();
+
+                        if (getActiveCount() == 0) {
+                            if (mState.isComplete() &&
+                                    (mVerifier == null || mVerifier.verifyAll())) {
+                                break;
+                            } else if (!addSegmentThread()) {
+                                throw new IOException("Download incomplete");
+                            }
+                        }
+
+                        final long now = SystemClock.elapsedRealtime();
+                        if (mRangesSupported && mGrowing && now - lastTune >= TUNE_INTERVAL_MS) {
+                            tune(((mTotalBytesRead - lastTuneBytes) * 1000) / (now - lastTune));
+                            lastTune = now;
+                            lastTuneBytes = mTotalBytesRead;
+                        }
+                        if (now - lastSave >= SAVE_INTERVAL_MS) {
+                            mChannel.force(false);
+                            mState.save();
+                            lastSave = now;
+                        }
+                    }
+
+                    if (!isInterrupted()) {
+                        checkDigest();
+                    }
+                    closeCheckers();
+                    if (isInterrupted()) {
+                        stopSegmentThreads();
+                        saveScores();
+                        // Write what was already received before saving the journal
+                        mStage.close();
+                        mState.save();
+                        mCallback.onFailure(true);
+                    } else {
+                        mChannel.force(false);
+                        SegmentState.delete(mDestination);
+                        long millis = SystemClock.elapsedRealtime() - startMillis;
+                        Log.d(TAG, "Downloaded " + (mTotalBytesRead - startBytes) + " bytes in " +
+                                millis + " ms using up to " + mSegmentThreads.size() +
+                                " connections");
+                        if (mFailovers > 0) {
+                            Log.d(TAG, "Replaced " + mFailovers + " stalled connections, " +
+                                    mLostMillis + " ms lost");
+                        }
+                        for (Mirror mirror : mMirrors) {
+                            Log.d(TAG, "Downloaded " + mirror.mBytes.get() + " bytes from " +
+                                    mirror.getName() + (mirror.mFailed ? " (dropped)" : ""));
+                        }
+                        saveScores();
+                        mCallback.onSuccess();
+                    }
+                }
+            } catch (InterruptedException e) {
+                stopSegmentThreads();
+                closeCheckers();
+                saveState();
+                mCallback.onFailure(true);
+            } catch (IOException e) {
+                Log.e(TAG, "Error downloading file", e);
+                stopSegmentThreads();
+                closeCheckers();
+                saveState();
+                if (connection != null) {
+                    connection.disconnect();
+                    connection = null;
+                }
+                retryOrFail(e);
+            } finally {
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
+
+        /**
+         * Resume the download in a new thread after a delay if the error is
+         * transient and the retry budget allows it, fail it otherwise.
+         */
+        private void retryOrFail(IOException e) {
+            // Also when a segment found it changed during a new download
+            if (!isInterrupted() && e instanceof ContentChangedException) {
+                // Everything is downloaded again, which counts as a retry
+                // even though the attempt made progress
+                int attempt = mAttempts + 1;
+                if (mRetryPolicy.getDelay(1, attempt, -1) < 0) {
+                    Log.e(TAG, "Giving up after " + mAttempts + " retries, the file changed");
+                    mCallback.onFailure(false);
+                    return;
+                }
+                Log.e(TAG, "Downloading the file again from the start (" + attempt + "/" +
+                        mRetryPolicy.getMaxAttempts() + " in all)");
+                SegmentState.delete(mDestination);
+                startNextAttempt(false, mRetry, attempt);
+                return;
+            }
+            mConnectionLost = NetworkErrors.isConnectionLost(e);
+            if (isInterrupted() || !isTransient(e)) {
+                mCallback.onFailure(isInterrupted());
+                return;
+            }
+            // The attempts that failed without receiving anything are counted
+            // against a budget of their own, all of them against a larger one
+            boolean progress = mState != null && mState.getDownloadedBytes() > mStartBytes;
+            int retry = progress ? 1 : mRetry + 1;
+            int attempt = mAttempts + 1;
+            long delay = mRetryPolicy.getDelay(retry, attempt, getRetryAfter(e));
+            if (delay < 0) {
+                Log.e(TAG, "Giving up after " + mAttempts + " retries, the last " +
+                        (retry - 1) + " without progress");
+                mCallback.onFailure(false);
+                return;
+            }
+            Log.d(TAG, "Retrying in " + delay + " ms (" + retry + "/" +
+                    mRetryPolicy.getMaxRetries() + ", " + attempt + "/" +
+                    mRetryPolicy.getMaxAttempts() + " in all)");
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ie) {
+                mCallback.onFailure(true);
+                return;
+            }
+            startNextAttempt(true, retry, attempt);
+        }
+
+        private void startNextAttempt(boolean resume, int retry, int attempts) {
+            synchronized (SegmentedDownloadClient.this) {
+                if (mDownloadThread != this) {
+                    // Cancelled meanwhile
+                    mCallback.onFailure(true);
+                    return;
+                }
+                mDownloadThread = new DownloadThread(resume, retry, attempts);
+                mDownloadThread.start();
+            }
+        }
+
+        private void saveScores() {
+            if (mScoreboard == null) {
+                return;
+            }
+            synchronized (mMirrors) {
+                for (Mirror mirror : mMirrors) {
+                    if (!mirror.mFailed && mirror.mPath == null && mirror.mConnectionSpeed > 0) {
+                        mScoreboard.record(mirror.mUrl, -1, mirror.mConnectionSpeed);
+                    }
+                }
+            }
+            mScoreboard.save();
+        }
+
+        private void updateDigest() {
+            StreamingDigest digest = mDigest;
+            if (digest != null) {
+                digest.update();
+            }
+        }
+
+        /**
+         * Compare the digest computed while downloading with the one given by
+         * the manifest or the server, if any.
+         */
+        private void checkDigest() throws IOException, InterruptedException {
+            if (mDigest == null) {
+                return;
+            }
+            byte[] digest = mDigest.finish();
+            byte[] expected = mState.getExpectedDigest();
+            if (expected == null) {
+                Log.d(TAG, "No digest to check the file against");
+            } else if (!Arrays.equals(digest, expected)) {
+                if (!mResume) {
+                    // Nothing from another version of the file was kept, so
+                    // either the digest or the server is wrong
+                    throw new DigestMismatchException("The file doesn't match its digest");
+                }
+                throw new ContentChangedException("The file doesn't match its digest");
+            } else if (mExpectedDigest == null) {
+                // Any mirror or peer can send a digest, it only rules out corruption
+                Log.d(TAG, "The file matches the digest sent by the server");
+            } else {
+                Log.d(TAG, "The file matches its digest");
+                mDigestVerified = true;
+            }
+        }
+
+        private void closeCheckers() {
+            if (mVerifier != null) {
+                mVerifier.close();
+                mVerifier = null;
+            }
+            if (mDigest != null) {
+                mDigest.close();
+                mDigest = null;
+            }
+        }
+
+        private void saveState() {
+            saveScores();
+            if (mState == null) {
+                return;
+            }
+            try {
+                mState.save();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not save the download state", e);
+            }
+        }
+
+        private class SegmentThread extends Thread {
+
+            private volatile SegmentState.Segment mSegment;
+            private volatile HttpURLConnection mConnection;
+            private Mirror mMirror;
+
+            private final StallWatchdog mWatchdog = new StallWatchdog();
+            private volatile StallWatchdog.StallException mStall;
+
+            private volatile long mBytes;
+            private long mLastBytes;
+            private IOException mMirrorError;
+
+            private SegmentThread(SegmentState.Segment segment, HttpURLConnection connection,
+                    Mirror mirror) {
+                mSegment = segment;
+                mConnection = connection;
+                mMirror = mirror;
+            }
+
+            private HttpURLConnection openSegment(Mirror mirror, SegmentState.Segment segment)
+                    throws IOException {
+                long position = mState.getPosition(segment);
+                String validator = mState.getValidator(mirror.mUrl);
+                HttpURLConnection connection = mConnections.add(openConnection(mirror.mPath,
+                        mirror.mUrl, position, mState.getEnd(segment), validator));
+                int responseCode = connection.getResponseCode();
+                if (validator != null && responseCode == HttpURLConnection.HTTP_OK) {
+                    // If-Range didn't match, what was downloaded so far is from
+                    // another version of the file, not just this segment
+                    connection.disconnect();
+                    throw new ContentChangedException("The server sent the whole file");
+                } else if (!isPartialContentCode(responseCode)) {
+                    HttpStatusException e = HttpStatusException.from(connection);
+                    connection.disconnect();
+                    throw e;
+                }
+                long[] range = parseContentRange(connection.getHeaderField("Content-Range"));
+                if (range[0] != position) {
+                    connection.disconnect();
+                    throw new IOException("Unexpected range " + range[0] + "-" + range[1]);
+                }
+                return connection;
+            }
+
+            private ByteBuffer acquireBuffer(long position) throws WriteException {
+                try {
+                    return mStage.acquire(position);
+                } catch (IOException e) {
+                    throw new WriteException(e);
+                }
+            }
+
+            private void submitBuffer(ByteBuffer buffer, long position,
+                    WriteBehindStage.WriteListener listener) throws WriteException {
+                buffer.flip();
+                try {
+                    mStage.submit(buffer, position, listener);
+                } catch (IOException e) {
+                    throw new WriteException(e);
+                }
+            }
+
+            private void drainWrites() throws WriteException {
+                try {
+                    mStage.drain();
+                } catch (IOException e) {
+                    throw new WriteException(e);
+                }
+            }
+
+            private void download() throws IOException {
+                final SegmentState.Segment segment = mSegment;
+                long position = mState.getPosition(segment);
+                long remaining;
+                // The segment only advances once the bytes are in the file, so
+                // that the journal never covers bytes that weren't written
+                final WriteBehindStage.WriteListener listener = (written, count) -> {
+                    mState.advance(segment, count);
+                    ChunkVerifier verifier = mVerifier;
+                    if (verifier != null) {
+                        verifier.onWritten(written, written + count);
+                    } else {
+                        updateDigest();
+                    }
+                };
+                mWatchdog.restart(mBytes);
+                try (InputStream inputStream = mConnection.getInputStream()) {
+                    BodyReader reader = mEngine == DownloadClient.ENGINE_NIO ?
+                            new ChannelReader(inputStream) : BodyReader.fromStream(inputStream);
+                    while (!mStopped && (remaining = mState.getEnd(segment) - position) > 0) {
+                        // Waiting for the destination isn't the fault of the connection
+                        mWatchdog.pause();
+                        ByteBuffer buffer = acquireBuffer(position);
+                        mWatchdog.resume();
+                        if (buffer.remaining() > remaining) {
+                            buffer.limit((int) remaining);
+                        }
+                        int count = 0;
+                        try {
+                            while (buffer.hasRemaining() && !mStopped &&
+                                    (count = reader.read(buffer)) >= 0) {
+                                mMirror.mBytes.addAndGet(count);
+                                mBytes += count;
+                                throttle(count);
+                            }
+                        } finally {
+                            int length = buffer.position();
+                            submitBuffer(buffer, position, listener);
+                            position += length;
+                        }
+                        if (count < 0) {
+                            if (mState.getLength() == SegmentState.UNKNOWN_LENGTH) {
+                                drainWrites();
+                                mState.finish(segment);
+                                return;
+                            }
+                            throw new IOException("Unexpected end of stream");
+                        }
+                    }
+                }
+            }
+
+            private void throttle(int count) throws IOException {
+                if (mRateLimiter == null) {
+                    return;
+                }
+                // Waiting for the rate limit isn't the fault of the connection
+                mWatchdog.pause();
+                try {
+                    mRateLimiter.acquire(count);
+                } finally {
+                    mWatchdog.resume();
+                }
+            }
+
+            /**
+             * Tear down the connection from another thread, making the
+             * download continue on another one.
+             */
+            private void abort(StallWatchdog.StallException e) {
+                HttpURLConnection connection = mConnection;
+                if (connection != null) {
+                    Log.e(TAG, "Replacing connection to " + connection.getURL().getHost(), e);
+                    mStall = e;
+                    connection.disconnect();
+                }
+            }
+
+            private void disconnect() {
+                mWatchdog.pause();
+                if (mConnection != null) {
+                    mConnection.disconnect();
+                    mConnection = null;
+                }
+                if (mMirror != null) {
+                    releaseMirror(mMirror);
+                    mMirror = null;
+                }
+            }
+
+            @Override
+            public void run() {
+                try {
+                    while (!mStopped && mSegment != null) {
+                        if (mConnection == null) {
+                            mMirror = acquireMirror();
+                            if (mMirror == null) {
+                                throw new IOException("No mirror left", mMirrorError);
+                            }
+                            try {
+                                mConnection = openSegment(mMirror, mSegment);
+                            } catch (ContentChangedException e) {
+                                throw e;
+                            } catch (IOException e) {
+                                if (mStopped) {
+                                    break;
+                                }
+                                mMirrorError = e;
+                                dropMirror(mMirror, e);
+                                disconnect();
+                                continue;
+                            }
+                        }
+                        try {
+                            download();
+                        } catch (WriteException e) {
+                            throw e;
+                        } catch (IOException e) {
+                            if (mStopped) {
+                                break;
+                            }
+                            if (mStall != null) {
+                                // Continue from where we stopped, preferably
+                                // using another mirror, but this one may still
+                                // be fine for other connections
+                                mStall = null;
+                                penalizeMirror(mMirror);
+                                disconnect();
+                                drainWrites();
+                                continue;
+                            }
+                            // Continue from where we stopped using another mirror
+                            mMirrorError = e;
+                            dropMirror(mMirror, e);
+                            disconnect();
+                            drainWrites();
+                            continue;
+                        }
+                        disconnect();
+                        drainWrites();
+                        mState.release(mSegment);
+                        mSegment = mStopped ? null : mState.acquire();
+                    }
+                } catch (IOException e) {
+                    if (!mStopped) {
+                        Log.e(TAG, "Error downloading segment", e);
+                        mError = e;
+                    }
+                } finally {
+                    disconnect();
+                    if (mSegment != null) {
+                        mState.release(mSegment);
+                    }
+                    synchronized (DownloadThread.this) {
+                        DownloadThread.this.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * SHA-256 whose intermediate state can be saved and restored, so that the
+ * digest of a download survives the process. MessageDigest can only be
+ * cloned in memory.
+ */
+final class Sha256 {
+
+    private static final int BLOCK_SIZE = 64;
+
+    // The most write() can save: the state, the count and a partial block
+    static final int MAX_STATE_SIZE = 8 * 4 + 8 + BLOCK_SIZE;
+
+    private static final int[] K = {
+            0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4,
+            0xab1c5ed5, 0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe,
+            0x9bdc06a7, 0xc19bf174, 0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f,
+            0x4a7484aa, 0x5cb0a9dc, 0x76f988da, 0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+            0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967, 0x27b70a85, 0x2e1b2138, 0x4d2c6dfc,
+            0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85, 0xa2bfe8a1, 0xa81a664b,
+            0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070, 0x19a4c116,
+            0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+            0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7,
+            0xc67178f2
+    };
+
+    private final int[] mState = {
+            0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+            0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+    };
+    private final int[] mSchedule = new int[64];
+    private final byte[] mBuffer = new byte[BLOCK_SIZE];
+    private int mBuffered;
+    private long mCount;
+    // Where the bytes of direct buffers are copied to be hashed
+    private byte[] mCopy;
+
+    Sha256() {
+    }
+
+    static Sha256 read(DataInputStream in) throws IOException {
+        Sha256 sha = new Sha256();
+        for (int i = 0; i < sha.mState.length; i++) {
+            sha.mState[i] = in.readInt();
+        }
+        sha.mCount = in.readLong();
+        sha.mBuffered = (int) (sha.mCount % BLOCK_SIZE);
+        in.readFully(sha.mBuffer, 0, sha.mBuffered);
+        return sha;
+    }
+
+    /**
+     * Save the state in the format read() takes, without allocating.
+     *
+     * @param out an array of at least MAX_STATE_SIZE bytes
+     * @return the number of bytes written
+     */
+    int write(byte[] out) {
+        int offset = 0;
+        for (int word : mState) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                out[offset++] = (byte) (word >>> shift);
+            }
+        }
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            out[offset++] = (byte) (mCount >>> shift);
+        }
+        System.arraycopy(mBuffer, 0, out, offset, mBuffered);
+        return offset + mBuffered;
+    }
+
+    /**
+     * @return how many bytes were hashed so far
+     */
+    long getCount() {
+        return mCount;
+    }
+
+    void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        if (mCopy == null) {
+            mCopy = new byte[16 * 1024];
+        }
+        final byte[] bytes = mCopy;
+        while (buffer.hasRemaining()) {
+            int count = Math.min(bytes.length, buffer.remaining());
+            buffer.get(bytes, 0, count);
+            update(bytes, 0, count);
+        }
+    }
+
+    void update(byte[] bytes, int offset, int length) {
+        mCount += length;
+        if (mBuffered > 0) {
+            int count = Math.min(BLOCK_SIZE - mBuffered, length);
+            System.arraycopy(bytes, offset, mBuffer, mBuffered, count);
+            mBuffered += count;
+            offset += count;
+            length -= count;
+            if (mBuffered < BLOCK_SIZE) {
+                return;
+            }
+            compress(mBuffer, 0);
+            mBuffered = 0;
+        }
+        while (length >= BLOCK_SIZE) {
+            compress(bytes, offset);
+            offset += BLOCK_SIZE;
+            length -= BLOCK_SIZE;
+        }
+        System.arraycopy(bytes, offset, mBuffer, 0, length);
+        mBuffered = length;
+    }
+
+    /**
+     * Complete the digest. The instance can't be used afterwards.
+     */
+    byte[] digest() {
+        final long bits = mCount * 8;
+        byte[] padding = new byte[BLOCK_SIZE * 2];
+        padding[0] = (byte) 0x80;
+        int length = (mBuffered < 56 ? 56 : 120) - mBuffered;
+        for (int i = 0; i < 8; i++) {
+            padding[length + i] = (byte) (bits >>> (56 - i * 8));
+        }
+        update(padding, 0, length + 8);
+        byte[] digest = new byte[32];
+        for (int i = 0; i < mState.length; i++) {
+            digest[i * 4] = (byte) (mState[i] >>> 24);
+            digest[i * 4 + 1] = (byte) (mState[i] >>> 16);
+            digest[i * 4 + 2] = (byte) (mState[i] >>> 8);
+            digest[i * 4 + 3] = (byte) mState[i];
+        }
+        return digest;
+    }
+
+    private void compress(byte[] block, int offset) {
+        final int[] w = mSchedule;
+        for (int i = 0; i < 16; i++) {
+            int p = offset + i * 4;
+            w[i] = (block[p] << 24) | ((block[p + 1] & 0xff) << 16) |
+                    ((block[p + 2] & 0xff) << 8) | (block[p + 3] & 0xff);
+        }
+        for (int i = 16; i < 64; i++) {
+            int s0 = Integer.rotateRight(w[i - 15], 7) ^ Integer.rotateRight(w[i - 15], 18) ^
+                    (w[i - 15] >>> 3);
+            int s1 = Integer.rotateRight(w[i - 2], 17) ^ Integer.rotateRight(w[i - 2], 19) ^
+                    (w[i - 2] >>> 10);
+            w[i] = w[i - 16] + s0 + w[i - 7] + s1;
+        }
+        int a = mState[0];
+        int b = mState[1];
+        int c = mState[2];
+        int d = mState[3];
+        int e = mState[4];
+        int f = mState[5];
+        int g = mState[6];
+        int h = mState[7];
+        for (int i = 0; i < 64; i++) {
+            int s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^
+                    Integer.rotateRight(e, 25);
+            int ch = (e & f) ^ (~e & g);
+            int t1 = h + s1 + ch + K[i] + w[i];
+            int s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^
+                    Integer.rotateRight(a, 22);
+            int maj = (a & b) ^ (a & c) ^ (b & c);
+            int t2 = s0 + maj;
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        mState[0] += a;
+        mState[1] += b;
+        mState[2] += c;
+        mState[3] += d;
+        mState[4] += e;
+        mState[5] += f;
+        mState[6] += g;
+        mState[7] += h;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+
+/**
+ * Watches the throughput of a connection to notice when it stops receiving
+ * anything or becomes much slower than it could be, so that it can be
+ * replaced. Time spent waiting for the destination isn't held against the
+ * connection.
+ */
+class StallWatchdog {
+
+    // A connection that receives nothing for this long is stalled
+    static final int STALL_TIMEOUT_MS = 15000;
+
+    // Window over which the speed of a connection is measured
+    private static final long WINDOW_MS = 20000;
+
+    // A connection is too slow below this fraction of the reference speed
+    private static final int MIN_SPEED_DIVISOR = 10;
+
+    static class StallException extends IOException {
+        final long mLostMillis;
+
+        private StallException(String message, long lostMillis) {
+            super(message);
+            mLostMillis = lostMillis;
+        }
+    }
+
+    private long mLastBytes;
+    private long mLastProgressMillis;
+    private long mWindowStartMillis;
+    private long mWindowBytes;
+    private boolean mPaused;
+    private long mPauseMillis;
+
+    /**
+     * Create a watchdog that only starts watching on restart().
+     */
+    StallWatchdog() {
+        restart(0);
+        mPaused = true;
+    }
+
+    /**
+     * Start watching again, for instance after connecting.
+     *
+     * @param bytes the bytes received so far
+     */
+    synchronized void restart(long bytes) {
+        final long now = SystemClock.elapsedRealtime();
+        mLastBytes = bytes;
+        mLastProgressMillis = now;
+        mWindowStartMillis = now;
+        mWindowBytes = bytes;
+        mPaused = false;
+    }
+
+    /**
+     * Stop watching while the connection isn't read for reasons of our own.
+     */
+    synchronized void pause() {
+        if (!mPaused) {
+            mPaused = true;
+            mPauseMillis = SystemClock.elapsedRealtime();
+        }
+    }
+
+    synchronized void resume() {
+        if (mPaused) {
+            mPaused = false;
+            // Leave the pause out of the measurements
+            final long paused = SystemClock.elapsedRealtime() - mPauseMillis;
+            mLastProgressMillis += paused;
+            mWindowStartMillis += paused;
+        }
+    }
+
+    /**
+     * @param bytes the bytes received so far
+     * @param referenceSpeed the speed in bytes per second the connection should
+     *                       be able to reach, or -1 to only detect stalls
+     * @throws StallException if the connection should be replaced
+     */
+    synchronized void check(long bytes, long referenceSpeed) throws StallException {
+        if (mPaused) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (bytes != mLastBytes) {
+            mLastBytes = bytes;
+            mLastProgressMillis = now;
+        } else if (now - mLastProgressMillis >= STALL_TIMEOUT_MS) {
+            throw new StallException("Nothing received for " + (now - mLastProgressMillis) +
+                    " ms", now - mLastProgressMillis);
+        }
+        final long window = now - mWindowStartMillis;
+        if (window < WINDOW_MS) {
+            return;
+        }
+        final long speed = ((bytes - mWindowBytes) * 1000) / window;
+        mWindowStartMillis = now;
+        mWindowBytes = bytes;
+        if (referenceSpeed > 0 && speed * MIN_SPEED_DIVISOR < referenceSpeed) {
+            throw new StallException("Receiving " + speed + " B/s instead of " +
+                    referenceSpeed + " B/s", window);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Computes the SHA-256 of a segmented download while it is written. The
+ * beginning of the file is hashed as soon as it has been downloaded without
+ * gaps, reading back pages that were just written, and the state of the
+ * digest is saved in the segment journal to continue after a pause. The
+ * hashing thread is woken through the monitor of the digest, so that
+ * nothing is allocated per write to schedule it.
+ */
+class StreamingDigest implements Closeable {
+
+    private static final String TAG = "StreamingDigest";
+
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+
+    // Save the state of the digest once this much was hashed
+    private static final long CHECKPOINT_BYTES = 16 * 1024 * 1024;
+
+    private final FileChannel mChannel;
+    private final SegmentState mState;
+    private final ChunkHashes mChunkHashes;
+    private final long mLength;
+    private final Thread mThread;
+    // Direct, reading into a heap buffer goes through a temporary direct
+    // one that the channel allocates again whenever a read is larger
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final byte[] mCheckpoint = new byte[Sha256.MAX_STATE_SIZE];
+
+    private Sha256 mSha;
+    private boolean mScheduled;
+    private boolean mClosed;
+    private IOException mError;
+
+    /**
+     * @param chunkHashes the hashes of the chunks the file is checked
+     *                    against, only the valid chunks are hashed then
+     */
+    StreamingDigest(FileChannel channel, SegmentState state, ChunkHashes chunkHashes) {
+        mChannel = channel;
+        mState = state;
+        mChunkHashes = chunkHashes;
+        mLength = state.getLength();
+        mSha = restore();
+        mThread = new Thread(this::hashLoop, TAG);
+        mThread.start();
+    }
+
+    private Sha256 restore() {
+        byte[] saved = mState.getDigestState();
+        if (saved != null) {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(saved))) {
+                Sha256 sha = Sha256.read(in);
+                if (sha.getCount() <= mState.getDownloadedEnd(0)) {
+                    Log.d(TAG, "Continuing the digest from " + sha.getCount());
+                    return sha;
+                }
+                Log.e(TAG, "Part of what was hashed must be downloaded again");
+            } catch (IOException e) {
+                Log.e(TAG, "Could not restore the digest", e);
+            }
+        }
+        return new Sha256();
+    }
+
+    private void checkpoint() {
+        mState.setDigestState(mCheckpoint, mSha.write(mCheckpoint));
+    }
+
+    /**
+     * Called when more of the file may be ready to be hashed.
+     */
+    synchronized void update() {
+        if (mScheduled || mClosed) {
+            return;
+        }
+        mScheduled = true;
+        notifyAll();
+    }
+
+    private void hashLoop() {
+        for (;;) {
+            synchronized (this) {
+                while (!mScheduled && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mClosed) {
+                    return;
+                }
+                mScheduled = false;
+            }
+            advance();
+        }
+    }
+
+    /**
+     * Get how far the file can be hashed.
+     */
+    private long getLimit(long position) {
+        long limit = mState.getDownloadedEnd(position);
+        if (mChunkHashes != null) {
+            // Damaged chunks would be downloaded again after being hashed
+            int chunk = mChunkHashes.getIndex(position);
+            while (chunk < mChunkHashes.getCount() && mState.isVerified(chunk)) {
+                chunk++;
+            }
+            limit = Math.min(limit, mChunkHashes.getStart(chunk));
+        }
+        return Math.min(limit, mLength);
+    }
+
+    private void advance() {
+        synchronized (this) {
+            if (mError != null) {
+                return;
+            }
+        }
+        try {
+            long position = mSha.getCount();
+            long checkpoint = position;
+            final long limit = getLimit(position);
+            while (position < limit) {
+                mBuffer.clear();
+                if (mBuffer.remaining() > limit - position) {
+                    mBuffer.limit((int) (limit - position));
+                }
+                int count = mChannel.read(mBuffer, position);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of file");
+                }
+                mBuffer.flip();
+                mSha.update(mBuffer);
+                position += count;
+                if (position - checkpoint >= CHECKPOINT_BYTES) {
+                    checkpoint();
+                    checkpoint = position;
+                }
+            }
+            checkpoint();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not compute the digest", e);
+            synchronized (this) {
+                mError = e;
+            }
+        }
+    }
+
+    /**
+     * Hash what is left once the whole file is downloaded.
+     *
+     * @return the SHA-256 of the file
+     */
+    byte[] finish() throws IOException, InterruptedException {
+        // Hash the rest here once the thread is done with what it started
+        synchronized (this) {
+            mClosed = true;
+            notifyAll();
+        }
+        mThread.join();
+        advance();
+        synchronized (this) {
+            if (mError != null) {
+                throw mError;
+            }
+        }
+        if (mSha.getCount() != mLength) {
+            throw new IOException("Hashed " + mSha.getCount() + " bytes of " + mLength);
+        }
+        return mSha.digest();
+    }
+
+    @Override
+    public synchronized void close() {
+        // Interrupting the thread would close the channel under the writer
+        mClosed = true;
+        notifyAll();
+    }
+}
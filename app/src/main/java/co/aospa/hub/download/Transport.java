@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Source of the downloads whose URL has a scheme other than HTTP, such as
+ * local files or documents, registered with Transports. These downloads go
+ * through the same journal, progress reporting and verification as the
+ * others, at the speed of the storage.
+ */
+public interface Transport {
+
+    /**
+     * @return the length of the resource, or -1 if it isn't known
+     */
+    long getLength(String url) throws IOException;
+
+    /**
+     * Open the resource to read it from the given offset.
+     */
+    InputStream open(String url, long offset) throws IOException;
+}
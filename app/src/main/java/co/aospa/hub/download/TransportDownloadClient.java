@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Download client copying the resource of a Transport to the destination.
+ * The ranges still missing are kept in a SegmentState journal, like the ones
+ * of segmented downloads, so that the copy can be paused and resumed.
+ */
+class TransportDownloadClient implements DownloadClient {
+
+    private final static String TAG = "TransportDownloadClient";
+
+    private static final int STAGE_BUFFERS = 4;
+
+    // Local sources are fast, don't rewrite the journal for every buffer
+    private static final long SAVE_INTERVAL_BYTES = 16 * 1024 * 1024;
+
+    private final Transport mTransport;
+    private final String mUrl;
+    private final File mDestination;
+    private final DownloadClient.ProgressListener mProgressListener;
+    private final DownloadClient.DownloadCallback mCallback;
+    private final boolean mLowCacheMode;
+    private final RateLimiter mRateLimiter;
+
+    private DownloadThread mDownloadThread;
+    private volatile boolean mConnectionLost;
+
+    TransportDownloadClient(Transport transport, String url, File destination,
+            DownloadClient.ProgressListener progressListener,
+            DownloadClient.DownloadCallback callback, boolean lowCacheMode,
+            RateLimiter rateLimiter) {
+        mTransport = transport;
+        mUrl = url;
+        mDestination = destination;
+        mProgressListener = progressListener;
+        mCallback = callback;
+        mLowCacheMode = lowCacheMode;
+        mRateLimiter = rateLimiter;
+    }
+
+    @Override
+    public void start() {
+        if (mDownloadThread != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        SegmentState.delete(mDestination);
+        mDownloadThread = new DownloadThread(false);
+        mDownloadThread.start();
+    }
+
+    @Override
+    public void resume() {
+        if (mDownloadThread != null) {
+            Log.e(TAG, "Already downloading");
+            return;
+        }
+        if (!mDestination.exists()) {
+            mCallback.onFailure(false);
+            return;
+        }
+        mDownloadThread = new DownloadThread(true);
+        mDownloadThread.start();
+    }
+
+    @Override
+    public boolean isDigestVerified() {
+        return false;
+    }
+
+    @Override
+    public boolean isJournaled() {
+        return true;
+    }
+
+    @Override
+    public boolean isConnectionLost() {
+        return mConnectionLost;
+    }
+
+    @Override
+    public void cancel() {
+        if (mDownloadThread == null) {
+            Log.e(TAG, "Not downloading");
+            return;
+        }
+        mDownloadThread.cancel();
+        mDownloadThread = null;
+    }
+
+    private class DownloadThread extends Thread {
+
+        private long mTotalBytes = -1;
+        private long mTotalBytesRead = 0;
+
+        private long mCurSampleBytes = 0;
+        private long mLastMillis = 0;
+        private long mSpeed = -1;
+        private long mEta = -1;
+
+        private final boolean mResume;
+        private boolean mJustResumed;
+
+        // The source being read, closed to cancel a blocked read
+        private final Object mLock = new Object();
+        private InputStream mSource;
+        private boolean mCancelled;
+
+        private DownloadThread(boolean resume) {
+            mResume = resume;
+        }
+
+        private void cancel() {
+            final InputStream source;
+            synchronized (mLock) {
+                mCancelled = true;
+                source = mSource;
+            }
+            interrupt();
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not close the source", e);
+                }
+            }
+        }
+
+        private void calculateSpeed() {
+            final long millis = SystemClock.elapsedRealtime();
+            if (mJustResumed) {
+                // Start over, what was copied before doesn't count
+                mLastMillis = millis;
+                mSpeed = -1;
+                mCurSampleBytes = mTotalBytesRead;
+                return;
+            }
+            final long delta = millis - mLastMillis;
+            if (delta > 500) {
+                final long curSpeed = ((mTotalBytesRead - mCurSampleBytes) * 1000) / delta;
+                if (mSpeed == -1) {
+                    mSpeed = curSpeed;
+                } else {
+                    mSpeed = ((mSpeed * 3) + curSpeed) / 4;
+                }
+
+                mLastMillis = millis;
+                mCurSampleBytes = mTotalBytesRead;
+            }
+        }
+
+        private void calculateEta() {
+            if (mSpeed > 0 && mTotalBytes > 0) {
+                mEta = (mTotalBytes - mTotalBytesRead) / mSpeed;
+            }
+        }
+
+        private void onTransferred(int count) {
+            mTotalBytesRead += count;
+            calculateSpeed();
+            calculateEta();
+            mJustResumed = false;
+            if (mProgressListener != null) {
+                mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+            }
+        }
+
+        private boolean isCancelled() {
+            synchronized (mLock) {
+                return mCancelled;
+            }
+        }
+
+        private InputStream open(long position) throws IOException {
+            InputStream source = mTransport.open(mUrl, position);
+            synchronized (mLock) {
+                if (!mCancelled) {
+                    mSource = source;
+                    return source;
+                }
+            }
+            source.close();
+            throw new InterruptedIOException();
+        }
+
+        @Override
+        public void run() {
+            SegmentState state = null;
+            try {
+                state = mResume ? SegmentState.load(mDestination) : null;
+                if (state == null) {
+                    // Either a new download or one that was started without a journal
+                    state = SegmentState.create(mDestination,
+                            mResume ? mDestination.length() : 0);
+                }
+                final long length = mTransport.getLength(mUrl);
+                final long knownLength = state.getLength();
+                if (length >= 0 && knownLength != SegmentState.UNKNOWN_LENGTH &&
+                        length != knownLength) {
+                    throw new IOException("The source changed size");
+                }
+                if (length >= 0) {
+                    state.setLength(length);
+                }
+                mTotalBytes = length;
+                // The destination may be preallocated from onResponse()
+                state.save();
+                mCallback.onResponse(name -> "Content-Length".equalsIgnoreCase(name) &&
+                        length >= 0 ? String.valueOf(length) : null);
+                if (isInterrupted() || isCancelled()) {
+                    mCallback.onFailure(true);
+                    return;
+                }
+
+                try (RandomAccessFile file = new RandomAccessFile(mDestination, "rw")) {
+                    if (!mResume) {
+                        file.setLength(Math.max(length, 0));
+                    }
+                    mTotalBytesRead = state.getDownloadedBytes();
+                    mJustResumed = true;
+                    try (WriteBehindStage stage = new WriteBehindStage(file.getChannel(),
+                            STAGE_BUFFERS, false, mLowCacheMode)) {
+                        SegmentState.Segment segment;
+                        while ((segment = state.acquireFirst()) != null) {
+                            copy(state, segment, stage);
+                            state.release(segment);
+                        }
+                    }
+                }
+                SegmentState.delete(mDestination);
+                if (mProgressListener != null) {
+                    mProgressListener.update(mTotalBytesRead, mTotalBytes, mSpeed, mEta);
+                }
+                mCallback.onSuccess();
+            } catch (IOException e) {
+                Log.e(TAG, "Error downloading file", e);
+                if (state != null) {
+                    try {
+                        state.save();
+                    } catch (IOException saveError) {
+                        Log.e(TAG, "Could not save the journal", saveError);
+                    }
+                }
+                mConnectionLost = NetworkErrors.isConnectionLost(e);
+                mCallback.onFailure(isInterrupted() || isCancelled());
+            } finally {
+                synchronized (mLock) {
+                    mSource = null;
+                }
+            }
+        }
+
+        /**
+         * Copy the segment from the source, recording in the journal what is
+         * written as it's written.
+         */
+        private void copy(SegmentState state, SegmentState.Segment segment,
+                WriteBehindStage stage) throws IOException {
+            long position = state.getPosition(segment);
+            final long end = state.getEnd(segment);
+            long lastSave = mTotalBytesRead;
+            final WriteBehindStage.WriteListener listener =
+                    (written, count) -> state.advance(segment, count);
+            try (InputStream source = open(position)) {
+                BodyReader reader = BodyReader.fromStream(source);
+                while (position < end) {
+                    if (isInterrupted() || isCancelled()) {
+                        throw new InterruptedIOException();
+                    }
+                    ByteBuffer buffer = stage.acquire(position);
+                    if (buffer.remaining() > end - position) {
+                        buffer.limit(buffer.position() + (int) (end - position));
+                    }
+                    boolean eof = false;
+                    try {
+                        while (buffer.hasRemaining()) {
+                            int count = reader.read(buffer);
+                            if (count < 0) {
+                                eof = true;
+                                break;
+                            }
+                            onTransferred(count);
+                            if (mRateLimiter != null) {
+                                mRateLimiter.acquire(count);
+                            }
+                        }
+                    } finally {
+                        buffer.flip();
+                        int count = buffer.remaining();
+                        stage.submit(buffer, position, listener);
+                        position += count;
+                    }
+                    if (eof) {
+                        if (end != Long.MAX_VALUE) {
+                            throw new IOException("The source ended " + (end - position) +
+                                    " bytes early");
+                        }
+                        stage.drain();
+                        state.finish(segment);
+                        return;
+                    }
+                    if (mTotalBytesRead - lastSave >= SAVE_INTERVAL_BYTES) {
+                        stage.drain();
+                        state.save();
+                        lastSave = mTotalBytesRead;
+                    }
+                }
+                stage.drain();
+            }
+        }
+    }
+}
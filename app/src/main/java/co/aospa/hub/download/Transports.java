@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The transports DownloadClient.Builder uses for the URLs of their scheme.
+ * URLs of the other schemes are downloaded over HTTP.
+ */
+public final class Transports {
+
+    private static final Map<String, Transport> sTransports = new ConcurrentHashMap<>();
+
+    static {
+        register("file", new FileTransport());
+    }
+
+    private Transports() {
+    }
+
+    /**
+     * Download the URLs with the given scheme with the transport, replacing
+     * the one registered before, if any.
+     */
+    public static void register(String scheme, Transport transport) {
+        sTransports.put(scheme.toLowerCase(Locale.ROOT), transport);
+    }
+
+    /**
+     * @return the transport for the scheme of the URL, or null to use HTTP
+     */
+    static Transport get(String url) {
+        int end = url.indexOf(':');
+        if (end <= 0) {
+            return null;
+        }
+        return sTransports.get(url.substring(0, end).toLowerCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Writes buffers filled from the network to the destination on a thread of
+ * its own, so that a slow flash write doesn't stop the socket from being
+ * read. The number of buffers is bounded: when all of them are waiting to be
+ * written the readers block, and the time they spend blocked is reported.
+ * Once every buffer was allocated, nothing is allocated per write, not even
+ * to wait: the queues are guarded by the monitor of the stage rather than
+ * by locks whose waiters are queued in nodes.
+ */
+class WriteBehindStage implements Closeable {
+
+    private static final String TAG = "WriteBehindStage";
+
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    // Writes start on multiples of this as soon as possible
+    private static final int ALIGNMENT = 4096;
+
+    // In write back mode, data is synced once this much was written
+    static final long WRITE_BACK_BYTES = 8 * 1024 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 16;
+    private static final ArrayDeque<ByteBuffer> sDirectPool = new ArrayDeque<>();
+
+    interface WriteListener {
+        /**
+         * Called on the writer thread once the bytes are in the file.
+         *
+         * @param position where the bytes were written
+         */
+        void onWritten(long position, int count);
+    }
+
+    // Recycled, there's at most one per buffer
+    private static final class Write {
+        private ByteBuffer mBuffer;
+        private long mPosition;
+        private WriteListener mListener;
+    }
+
+    private static final Write STOP = new Write();
+
+    private final FileChannel mChannel;
+    private final int mMaxBuffers;
+    private final boolean mDirect;
+    private final boolean mWriteBack;
+    // Guarded by this, none of them grows past its initial capacity. The
+    // buffers are all allocated up front, so the transfer allocates nothing.
+    private final ArrayDeque<ByteBuffer> mFreeBuffers;
+    private final ArrayDeque<Write> mWrites;
+    private final ArrayDeque<Write> mFreeWrites;
+    private final Thread mWriterThread;
+    // Heap buffers are copied here to be written, rather than to the
+    // temporary buffer of the channel, which it allocates again whenever a
+    // write is larger than the last one. Only used by the writer thread.
+    private final ByteBuffer mDirectCopy;
+
+    private volatile IOException mError;
+    private boolean mClosed;
+
+    private long mSubmitted;
+    private long mCompleted;
+
+    // Backpressure metrics
+    private long mBlockedMillis;
+    private int mBlockedCount;
+    private int mMaxQueued;
+    private long mWriteMillis;
+    private long mBytesWritten;
+    private int mWriteCount;
+    private long mUnsyncedBytes;
+    private long mSyncMillis;
+    private int mSyncCount;
+
+    /**
+     * @param maxBuffers the number of buffers that can be filled or waiting to
+     *                   be written at the same time
+     * @param direct whether to use direct buffers, for readers that fill them
+     *               through a channel
+     * @param writeBack whether to sync the data every WRITE_BACK_BYTES, so that
+     *                  the kernel can drop the pages as soon as it needs memory
+     *                  instead of waiting for them to be flushed
+     */
+    WriteBehindStage(FileChannel channel, int maxBuffers, boolean direct, boolean writeBack) {
+        mChannel = channel;
+        mMaxBuffers = Math.max(2, maxBuffers);
+        mDirect = direct;
+        mWriteBack = writeBack;
+        mFreeBuffers = new ArrayDeque<>(mMaxBuffers);
+        for (int i = 0; i < mMaxBuffers; i++) {
+            mFreeBuffers.add(allocate());
+        }
+        mDirectCopy = direct ? null : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        // Room for a write per buffer and STOP
+        mWrites = new ArrayDeque<>(mMaxBuffers + 1);
+        mFreeWrites = new ArrayDeque<>(mMaxBuffers);
+        mWriterThread = new Thread(this::writeLoop, TAG);
+        mWriterThread.start();
+    }
+
+    private ByteBuffer allocate() {
+        if (mDirect) {
+            synchronized (sDirectPool) {
+                ByteBuffer buffer = sDirectPool.poll();
+                if (buffer != null) {
+                    return buffer;
+                }
+            }
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        return ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private void checkError() throws IOException {
+        if (mError != null) {
+            throw new IOException("Could not write to the destination", mError);
+        }
+    }
+
+    /**
+     * Get an empty buffer to fill, waiting for one to be written if all of
+     * them are in use. Its limit is lowered if needed so that the following
+     * writes from the same reader are aligned.
+     *
+     * @param position where the content of the buffer will be written
+     */
+    ByteBuffer acquire(long position) throws IOException {
+        checkError();
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = mFreeBuffers.poll();
+            if (buffer == null) {
+                final long startMillis = SystemClock.elapsedRealtime();
+                while ((buffer = mFreeBuffers.poll()) == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                mBlockedMillis += SystemClock.elapsedRealtime() - startMillis;
+                mBlockedCount++;
+            }
+        }
+        checkError();
+        buffer.clear();
+        buffer.limit(BUFFER_SIZE - (int) (position % ALIGNMENT));
+        return buffer;
+    }
+
+    /**
+     * Queue the content of the buffer, from its position to its limit, for
+     * writing at the given position of the destination. An empty buffer is
+     * simply given back.
+     */
+    void submit(ByteBuffer buffer, long position, WriteListener listener) throws IOException {
+        synchronized (this) {
+            if (!buffer.hasRemaining() || mClosed) {
+                mFreeBuffers.add(buffer);
+                notifyAll();
+                if (mClosed) {
+                    throw new IOException("Stage closed");
+                }
+                return;
+            }
+            mSubmitted++;
+            mMaxQueued = Math.max(mMaxQueued, mWrites.size() + 1);
+            Write write = mFreeWrites.poll();
+            if (write == null) {
+                write = new Write();
+            }
+            write.mBuffer = buffer;
+            write.mPosition = position;
+            write.mListener = listener;
+            mWrites.add(write);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for everything submitted so far to be written.
+     */
+    void drain() throws IOException {
+        synchronized (this) {
+            final long submitted = mSubmitted;
+            while (mCompleted < submitted) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        checkError();
+    }
+
+    private void writeLoop() {
+        for (;;) {
+            Write write;
+            synchronized (this) {
+                while ((write = mWrites.poll()) == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        // Only STOP ends the loop
+                    }
+                }
+            }
+            if (write == STOP) {
+                break;
+            }
+            ByteBuffer buffer = write.mBuffer;
+            if (mError == null) {
+                final long startMillis = SystemClock.elapsedRealtime();
+                try {
+                    int count = buffer.remaining();
+                    long position = write.mPosition;
+                    ByteBuffer source = buffer;
+                    if (!buffer.isDirect()) {
+                        source = mDirectCopy;
+                        source.clear();
+                        source.put(buffer);
+                        source.flip();
+                    }
+                    while (source.hasRemaining()) {
+                        position += mChannel.write(source, position);
+                    }
+                    mUnsyncedBytes += count;
+                    if (mWriteBack && mUnsyncedBytes >= WRITE_BACK_BYTES) {
+                        writeBack();
+                    }
+                    if (write.mListener != null) {
+                        write.mListener.onWritten(write.mPosition, count);
+                    }
+                    synchronized (this) {
+                        mWriteMillis += SystemClock.elapsedRealtime() - startMillis;
+                        mBytesWritten += count;
+                        mWriteCount++;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Write failed", e);
+                    mError = e;
+                }
+            }
+            synchronized (this) {
+                mFreeBuffers.add(buffer);
+                write.mBuffer = null;
+                write.mListener = null;
+                mFreeWrites.push(write);
+                mCompleted++;
+                notifyAll();
+            }
+        }
+    }
+
+    private void writeBack() throws IOException {
+        final long startMillis = SystemClock.elapsedRealtime();
+        mChannel.force(false);
+        mUnsyncedBytes = 0;
+        synchronized (this) {
+            mSyncMillis += SystemClock.elapsedRealtime() - startMillis;
+            mSyncCount++;
+        }
+    }
+
+    /**
+     * Write what is still queued and stop the writer thread. Buffers submitted
+     * afterwards are rejected.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mWrites.add(STOP);
+            notifyAll();
+        }
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                mWriterThread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mWriteBack && mError == null && mUnsyncedBytes > 0) {
+            try {
+                writeBack();
+            } catch (IOException e) {
+                Log.e(TAG, "Sync failed", e);
+                mError = e;
+            }
+        }
+        if (mDirect) {
+            synchronized (this) {
+                synchronized (sDirectPool) {
+                    ByteBuffer buffer;
+                    while ((buffer = mFreeBuffers.poll()) != null &&
+                            sDirectPool.size() < MAX_POOLED_BUFFERS) {
+                        sDirectPool.push(buffer);
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            Log.d(TAG, "Wrote " + mBytesWritten + " bytes in " + mWriteCount + " writes taking " +
+                    mWriteMillis + " ms, readers waited " + mBlockedMillis + " ms for a buffer " +
+                    mBlockedCount + " times, max queue depth " + mMaxQueued + "/" + mMaxBuffers +
+                    (mWriteBack ? ", " + mSyncCount + " syncs taking " + mSyncMillis + " ms" : ""));
+        }
+        checkError();
+    }
+}
@@ -34,8 +34,18 @@ public final class Constants {
     public static final String PREF_MOBILE_DATA_WARNING = "pref_mobile_data_warning";
     public static final String PREF_NEEDS_REBOOT_ID = "needs_reboot_id";
 
+    // Download bandwidth limits in KiB/s, 0 meaning unlimited, and the hours
+    // of the day the peak limit applies between
+    public static final String PREF_BANDWIDTH_LIMIT_METERED = "bandwidth_limit_metered";
+    public static final String PREF_BANDWIDTH_LIMIT_UNMETERED = "bandwidth_limit_unmetered";
+    public static final String PREF_BANDWIDTH_PEAK_LIMIT = "bandwidth_peak_limit";
+    public static final String PREF_BANDWIDTH_PEAK_START = "bandwidth_peak_start";
+    public static final String PREF_BANDWIDTH_PEAK_END = "bandwidth_peak_end";
+
     public static final String UNCRYPT_FILE_EXT = ".uncrypt";
 
+    public static final int DEFAULT_DOWNLOAD_RETRIES = 8;
+
     public static final String PROP_AB_DEVICE = "ro.build.ab_update";
     public static final String PROP_BUILD_DATE = "ro.build.date.utc";
     public static final String PROP_BUILD_VERSION = "ro.lineage.build.version";
@@ -43,7 +53,13 @@ public final class Constants {
     public static final String PROP_DEVICE = "ro.aospa.device";
     public static final String PROP_NEXT_DEVICE = "ro.updater.next_device";
     public static final String PROP_RELEASE_TYPE = "ro.lineage.releasetype";
+    public static final String PROP_UPDATER_ALT_URI = "lineage.updater.alt_uri";
     public static final String PROP_UPDATER_ALLOW_DOWNGRADING = "lineage.updater.allow_downgrading";
+    public static final String PROP_UPDATER_DOWNLOAD_ENGINE = "lineage.updater.download_engine";
+    public static final String PROP_UPDATER_DOWNLOAD_RETRIES = "lineage.updater.download_retries";
+    public static final String PROP_UPDATER_LOW_CACHE_IO = "lineage.updater.low_cache_io";
+    public static final String PROP_UPDATER_MULTIPATH = "lineage.updater.multipath";
+    public static final String PROP_UPDATER_PEER_SHARING = "lineage.updater.peer_sharing";
     public static final String PROP_UPDATER_URI = "lineage.updater.uri";
 
     public static final String PREF_INSTALL_OLD_TIMESTAMP = "install_old_timestamp";
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.misc;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.util.Log;
+
+import co.aospa.hub.download.Transport;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Transport for content:// URIs, for instance of a document picked on a USB
+ * drive through the storage access framework.
+ */
+public class ContentTransport implements Transport {
+
+    private static final String TAG = "ContentTransport";
+
+    private final ContentResolver mResolver;
+
+    public ContentTransport(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    @Override
+    public long getLength(String url) throws IOException {
+        Uri uri = Uri.parse(url);
+        String name = FileUtils.queryName(mResolver, uri);
+        if (name == null) {
+            throw new FileNotFoundException("Could not find " + url);
+        }
+        long size = FileUtils.querySize(mResolver, uri);
+        Log.d(TAG, "Reading " + name + ", " + size + " bytes");
+        return size;
+    }
+
+    @Override
+    public InputStream open(String url, long offset) throws IOException {
+        InputStream in = mResolver.openInputStream(Uri.parse(url));
+        if (in == null) {
+            throw new FileNotFoundException("Could not open " + url);
+        }
+        try {
+            // Files seek, pipes read what is skipped
+            while (offset > 0) {
+                long count = in.skip(offset);
+                if (count <= 0) {
+                    throw new IOException("Could not skip to the resume offset");
+                }
+                offset -= count;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+}
@@ -20,6 +20,9 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -28,6 +31,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
@@ -36,6 +40,9 @@ public class FileUtils {
 
     private static final String TAG = "FileUtils";
 
+    // In low cache mode, the copy is synced once this much was written
+    private static final long WRITE_BACK_BYTES = 8 * 1024 * 1024;
+
     public interface ProgressCallBack {
         void update(int progress);
     }
@@ -81,14 +88,37 @@ public class FileUtils {
 
     public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack)
             throws IOException {
+        copyFile(sourceFile, destFile, progressCallBack, false);
+    }
+
+    /**
+     * @param lowCacheMode write the copy back to storage every few megabytes
+     *                     instead of leaving it to the kernel, so that it never
+     *                     holds more than that in dirty pages
+     */
+    public static void copyFile(File sourceFile, File destFile, ProgressCallBack progressCallBack,
+            boolean lowCacheMode) throws IOException {
         try (FileChannel sourceChannel = new FileInputStream(sourceFile).getChannel();
              FileChannel destChannel = new FileOutputStream(destFile).getChannel()) {
+            ReadableByteChannel readableByteChannel = sourceChannel;
             if (progressCallBack != null) {
-                ReadableByteChannel readableByteChannel = new CallbackByteChannel(sourceChannel,
+                readableByteChannel = new CallbackByteChannel(sourceChannel,
                         sourceFile.length(), progressCallBack);
-                destChannel.transferFrom(readableByteChannel, 0, sourceChannel.size());
-            } else {
-                destChannel.transferFrom(sourceChannel, 0, sourceChannel.size());
+            }
+            final long size = sourceChannel.size();
+            if (!lowCacheMode) {
+                destChannel.transferFrom(readableByteChannel, 0, size);
+                return;
+            }
+            long position = 0;
+            while (position < size) {
+                long count = destChannel.transferFrom(readableByteChannel, position,
+                        Math.min(WRITE_BACK_BYTES, size - position));
+                if (count <= 0) {
+                    break;
+                }
+                position += count;
+                destChannel.force(false);
             }
         } catch (IOException e) {
             Log.e(TAG, "Could not copy file", e);
@@ -118,6 +148,56 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Allocate the blocks of the file up to the given size, creating it if
+     * needed, so that writing it later can't fail for lack of space and it
+     * isn't fragmented. The space is released when the file is deleted.
+     * Since the file gets the given length, only for files whose downloaded
+     * ranges are kept in a journal.
+     *
+     * @return false if there isn't enough space, in which case the file is
+     *         left as it was
+     */
+    public static boolean reserveSpace(File file, long size) {
+        if (size <= 0) {
+            return true;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            final long length = raf.length();
+            if (length >= size) {
+                return true;
+            }
+            try {
+                Os.posix_fallocate(raf.getFD(), 0, size);
+                return true;
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC || e.errno == OsConstants.EFBIG) {
+                    Log.e(TAG, "Not enough space to reserve " + size + " bytes for " +
+                            file.getName());
+                    // Give back what could be allocated
+                    raf.setLength(length);
+                    return false;
+                }
+                // The filesystem can't preallocate, only check the free space
+                Log.w(TAG, "Could not reserve space for " + file.getName(), e);
+                return file.getUsableSpace() >= size - length;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not reserve space for " + file.getName(), e);
+            return true;
+        }
+    }
+
+    /**
+     * Whether there is enough free space for the file to grow to the given
+     * size, without reserving it.
+     */
+    public static boolean hasSpaceFor(File file, long size) {
+        final long missing = size - file.length();
+        File dir = file.getAbsoluteFile().getParentFile();
+        return missing <= 0 || dir == null || dir.getUsableSpace() >= missing;
+    }
+
     public static String queryName(@NonNull ContentResolver resolver, Uri uri) {
         try (Cursor returnCursor = resolver.query(uri, null, null, null, null)) {
             returnCursor.moveToFirst();
@@ -128,4 +208,17 @@ public class FileUtils {
             return null;
         }
     }
+
+    /**
+     * @return the size of the document, or -1 if the provider doesn't know it
+     */
+    public static long querySize(@NonNull ContentResolver resolver, Uri uri) {
+        try (Cursor returnCursor = resolver.query(uri, null, null, null, null)) {
+            returnCursor.moveToFirst();
+            int sizeIndex = returnCursor.getColumnIndex(OpenableColumns.SIZE);
+            return returnCursor.isNull(sizeIndex) ? -1 : returnCursor.getLong(sizeIndex);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.misc;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Measures how much of the page cache our I/O on update packages takes, to
+ * check the effect of the low cache I/O mode.
+ */
+public final class PageCache {
+
+    private static final String TAG = "PageCache";
+
+    // Size of the windows mapped to query the residency of a file
+    private static final long MINCORE_WINDOW = 64 * 1024 * 1024;
+
+    private PageCache() {
+    }
+
+    /**
+     * Page cache usage at a given time, to be compared with a later one.
+     */
+    public static final class Snapshot {
+        private final File mFile;
+        private final long mCached;
+        private final long mDirty;
+        private final long mResident;
+
+        private Snapshot(File file) {
+            long[] meminfo = readMeminfo();
+            mFile = file;
+            mCached = meminfo[0];
+            mDirty = meminfo[1];
+            mResident = getResidentBytes(file);
+        }
+
+        /**
+         * Log how the page cache and the pages of the file changed since the
+         * snapshot was taken.
+         */
+        public void log(String operation) {
+            long[] meminfo = readMeminfo();
+            long resident = getResidentBytes(mFile);
+            Log.d(TAG, operation + " " + mFile.getName() + ": cached " +
+                    toKiB(meminfo[0] - mCached) + " KiB, dirty " +
+                    toKiB(meminfo[1] - mDirty) + " KiB, file pages resident " +
+                    toKiB(resident) + " KiB of " + toKiB(mFile.length()) + " KiB (" +
+                    toKiB(resident - mResident) + " KiB)");
+        }
+    }
+
+    public static Snapshot snapshot(File file) {
+        return new Snapshot(file);
+    }
+
+    private static long toKiB(long bytes) {
+        return bytes / 1024;
+    }
+
+    /**
+     * @return the Cached and Dirty values of /proc/meminfo in bytes
+     */
+    private static long[] readMeminfo() {
+        long[] values = new long[2];
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/meminfo"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("Cached:")) {
+                    values[0] = parseMeminfoValue(line);
+                } else if (line.startsWith("Dirty:")) {
+                    values[1] = parseMeminfoValue(line);
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.e(TAG, "Could not read meminfo", e);
+        }
+        return values;
+    }
+
+    private static long parseMeminfoValue(String line) {
+        String[] fields = line.trim().split("\\s+");
+        return Long.parseLong(fields[1]) * 1024;
+    }
+
+    /**
+     * Get how many bytes of the file are in the page cache.
+     *
+     * @return the number of resident bytes, or 0 if it can't be determined
+     */
+    public static long getResidentBytes(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        final long pageSize = Os.sysconf(OsConstants._SC_PAGESIZE);
+        FileDescriptor fd = null;
+        try {
+            fd = Os.open(file.getAbsolutePath(), OsConstants.O_RDONLY, 0);
+            final long size = Os.fstat(fd).st_size;
+            long resident = 0;
+            for (long offset = 0; offset < size; offset += MINCORE_WINDOW) {
+                long length = Math.min(MINCORE_WINDOW, size - offset);
+                long address = Os.mmap(0, length, OsConstants.PROT_READ,
+                        OsConstants.MAP_SHARED, fd, offset);
+                try {
+                    byte[] vector = new byte[(int) ((length + pageSize - 1) / pageSize)];
+                    Os.mincore(address, length, vector);
+                    for (byte page : vector) {
+                        if ((page & 1) != 0) {
+                            resident += pageSize;
+                        }
+                    }
+                } finally {
+                    Os.munmap(address, length);
+                }
+            }
+            return Math.min(resident, size);
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Could not get the residency of " + file.getName(), e);
+            return 0;
+        } finally {
+            if (fd != null) {
+                try {
+                    Os.close(fd);
+                } catch (ErrnoException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.misc;
+
+import android.net.Network;
+
+import co.aospa.hub.download.NetworkPath;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * NetworkPath opening its connections through a network of the system.
+ */
+public class SystemNetworkPath implements NetworkPath {
+
+    private final Network mNetwork;
+    private final String mName;
+
+    public SystemNetworkPath(Network network, String name) {
+        mNetwork = network;
+        mName = name;
+    }
+
+    @Override
+    public URLConnection openConnection(URL url) throws IOException {
+        return mNetwork.openConnection(url);
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
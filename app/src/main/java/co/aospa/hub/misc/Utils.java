@@ -15,9 +15,11 @@
  */
 package co.aospa.hub.misc;
 
+import android.app.ActivityManager;
 import android.app.AlarmManager;
 import android.content.ClipData;
 import android.content.ClipboardManager;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -38,6 +40,14 @@ import org.json.JSONObject;
 import co.aospa.hub.R;
 import co.aospa.hub.UpdatesDbHelper;
 import co.aospa.hub.controller.UpdaterService;
+import co.aospa.hub.download.ChunkHashes;
+import co.aospa.hub.download.DownloadClient;
+import co.aospa.hub.download.LatencyHistory;
+import co.aospa.hub.download.NetworkPath;
+import co.aospa.hub.download.RateLimiter;
+import co.aospa.hub.download.RetryPolicy;
+import co.aospa.hub.download.SegmentState;
+import co.aospa.hub.download.Transports;
 import co.aospa.hub.model.Update;
 import co.aospa.hub.model.UpdateBaseInfo;
 import co.aospa.hub.model.UpdateInfo;
@@ -47,6 +57,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
@@ -59,9 +70,21 @@ public class Utils {
 
     private static final String TAG = "Utils";
 
+    private static LatencyHistory sUpdatesListLatency;
+
     private Utils() {
     }
 
+    /**
+     * Let the list of updates and the updates come from content:// URIs, for
+     * instance to provision devices from a USB drive. file:// URLs are always
+     * supported.
+     */
+    public static void registerTransports(Context context) {
+        Transports.register(ContentResolver.SCHEME_CONTENT,
+                new ContentTransport(context.getApplicationContext().getContentResolver()));
+    }
+
     public static File getDownloadPath(Context context) {
         return new File(context.getString(R.string.download_path));
     }
@@ -92,9 +115,97 @@ public class Utils {
         update.setFileSize(object.getLong("size"));
         update.setDownloadUrl(object.getString("url"));
         update.setVersion(object.getString("version_code"));
+        update.setSha256(object.optString("sha256", null));
+        update.setChunkHashes(parseChunkHashes(object));
+        update.setBlockChecksumsUrl(object.optString("block_checksums", null));
+        selectIncremental(update, object.optJSONArray("incrementals"));
         return update;
     }
 
+    /**
+     * Switch the update to the smallest of its incremental packages that
+     * applies to the running build, identified by its "source_datetime" or
+     * its "source_incremental". The full package is kept if none applies.
+     */
+    private static void selectIncremental(Update update, JSONArray incrementals) {
+        if (incrementals == null) {
+            return;
+        }
+        final long buildTimestamp = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
+        final String buildIncremental =
+                SystemProperties.get(Constants.PROP_BUILD_VERSION_INCREMENTAL);
+        JSONObject selected = null;
+        long selectedSize = update.getFileSize();
+        for (int i = 0; i < incrementals.length(); i++) {
+            JSONObject incremental = incrementals.optJSONObject(i);
+            if (incremental == null) {
+                continue;
+            }
+            boolean applies;
+            if (incremental.has("source_datetime")) {
+                applies = incremental.optLong("source_datetime", -1) == buildTimestamp;
+            } else {
+                applies = !buildIncremental.isEmpty() &&
+                        buildIncremental.equals(incremental.optString("source_incremental"));
+            }
+            long size = incremental.optLong("size", -1);
+            if (applies && size > 0 && size < selectedSize) {
+                selected = incremental;
+                selectedSize = size;
+            }
+        }
+        if (selected == null) {
+            return;
+        }
+        try {
+            final String name = selected.getString("filename");
+            final String downloadId = selected.getString("id");
+            final String url = selected.getString("url");
+            update.setChunkHashes(parseChunkHashes(selected));
+            update.setName(name);
+            update.setDownloadId(downloadId);
+            update.setDownloadUrl(url);
+            update.setFileSize(selectedSize);
+            update.setSha256(selected.optString("sha256", null));
+            update.setBlockChecksumsUrl(selected.optString("block_checksums", null));
+            update.setSourceTimestamp(buildTimestamp);
+            Log.d(TAG, "Using the incremental package " + name + " of " + selectedSize +
+                    " bytes");
+        } catch (JSONException e) {
+            Log.e(TAG, "Could not parse the incremental package, using the full one", e);
+        }
+    }
+
+    /**
+     * Parse the optional SHA-256 hashes of the chunks of the package, given as
+     * "chunk_size" and the "chunk_sha256" array.
+     *
+     * @return the hashes, or null if there are none or they are invalid
+     */
+    private static ChunkHashes parseChunkHashes(JSONObject object) {
+        JSONArray array = object.optJSONArray("chunk_sha256");
+        if (array == null || !object.has("chunk_size")) {
+            return null;
+        }
+        try {
+            List<String> hashes = new ArrayList<>();
+            for (int i = 0; i < array.length(); i++) {
+                hashes.add(array.getString(i));
+            }
+            ChunkHashes chunkHashes = ChunkHashes.parse(object.getLong("chunk_size"), hashes);
+            long size = object.getLong("size");
+            long count = (size + chunkHashes.getChunkSize() - 1) / chunkHashes.getChunkSize();
+            if (count != chunkHashes.getCount()) {
+                Log.e(TAG, "Expected " + count + " chunk hashes, got " + chunkHashes.getCount());
+                return null;
+            }
+            return chunkHashes;
+        } catch (JSONException | IllegalArgumentException e) {
+            Log.e(TAG, "Ignoring invalid chunk hashes", e);
+            return null;
+        }
+    }
+
     public static boolean isCompatible(UpdateBaseInfo update) {
         if (!SystemProperties.getBoolean(Constants.PROP_UPDATER_ALLOW_DOWNGRADING, false) &&
                 update.getTimestamp() <= SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0)) {
@@ -105,8 +216,13 @@ public class Utils {
     }
 
     public static boolean canInstall(UpdateBaseInfo update) {
+        final long buildTimestamp = SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0);
+        if (update.getSourceTimestamp() != 0 && update.getSourceTimestamp() != buildTimestamp) {
+            // Incremental packages only apply to the build they were made from
+            return false;
+        }
         return (SystemProperties.getBoolean(Constants.PROP_UPDATER_ALLOW_DOWNGRADING, false) ||
-                update.getTimestamp() > SystemProperties.getLong(Constants.PROP_BUILD_DATE, 0));
+                update.getTimestamp() > buildTimestamp);
     }
 
     public static List<UpdateInfo> parseJson(File file, boolean compatibleOnly)
@@ -153,12 +269,130 @@ public class Utils {
         return serverUrl.replace("{device}", device);
     }
 
+    /**
+     * Get the URL the list of updates is requested from again when the server
+     * URL is slow to answer. Without an alternate server, it's the same URL,
+     * which still gets a new connection and possibly another server.
+     */
+    public static String getAlternateServerURL(Context context) {
+        String serverUrl = SystemProperties.get(Constants.PROP_UPDATER_ALT_URI);
+        if (serverUrl.trim().isEmpty()) {
+            serverUrl = context.getString(R.string.updater_alt_server_url);
+        }
+        if (serverUrl.trim().isEmpty()) {
+            return getServerURL(context);
+        }
+
+        String device = SystemProperties.get(Constants.PROP_NEXT_DEVICE,
+                SystemProperties.get(Constants.PROP_DEVICE));
+        return serverUrl.replace("{device}", device);
+    }
+
+    /**
+     * Get how long the list of updates took to download lately, shared by
+     * the manual and periodic checks through the same instance, so that they
+     * don't write its file over each other.
+     */
+    public static synchronized LatencyHistory getUpdatesListLatency(Context context) {
+        if (sUpdatesListLatency == null) {
+            sUpdatesListLatency = new LatencyHistory(
+                    new File(context.getFilesDir(), "updates_list_latency"));
+        }
+        return sUpdatesListLatency;
+    }
+
     public static String getChangelogURL(Context context) {
         String device = SystemProperties.get(Constants.PROP_NEXT_DEVICE,
                 SystemProperties.get(Constants.PROP_DEVICE));
         return context.getString(R.string.menu_changelog_url, device);
     }
 
+    /**
+     * Get the engine used to download updates, so that they can be compared
+     * by setting the corresponding property to "stream", "nio" or "http2".
+     */
+    public static int getDownloadEngine() {
+        String engine = SystemProperties.get(Constants.PROP_UPDATER_DOWNLOAD_ENGINE);
+        if ("nio".equals(engine)) {
+            return DownloadClient.ENGINE_NIO;
+        } else if ("http2".equals(engine)) {
+            return DownloadClient.ENGINE_HTTP2;
+        }
+        return DownloadClient.ENGINE_STREAM;
+    }
+
+    /**
+     * Get the engine used to fetch the list of updates. With HTTP/2, it shares
+     * the connection of the downloads from the same server.
+     */
+    public static int getUpdatesListEngine() {
+        return getDownloadEngine() == DownloadClient.ENGINE_HTTP2 ?
+                DownloadClient.ENGINE_HTTP2 : DownloadClient.ENGINE_EVENT_LOOP;
+    }
+
+    /**
+     * Get the policy used to resume a download automatically after a
+     * transient failure. Each download has its own budget.
+     */
+    public static RetryPolicy getDownloadRetryPolicy() {
+        return new RetryPolicy(SystemProperties.getInt(Constants.PROP_UPDATER_DOWNLOAD_RETRIES,
+                Constants.DEFAULT_DOWNLOAD_RETRIES));
+    }
+
+    /**
+     * Whether update packages should be written in a way that leaves little
+     * in the page cache, by default only on low RAM devices.
+     */
+    public static boolean isLowCacheIo(Context context) {
+        ActivityManager am = context.getSystemService(ActivityManager.class);
+        return SystemProperties.getBoolean(Constants.PROP_UPDATER_LOW_CACHE_IO,
+                am != null && am.isLowRamDevice());
+    }
+
+    /**
+     * Whether verified packages should be shared with, and downloaded from,
+     * the other devices of the local network.
+     */
+    public static boolean isPeerSharingEnabled() {
+        return SystemProperties.getBoolean(Constants.PROP_UPDATER_PEER_SHARING, false);
+    }
+
+    /**
+     * Get the throughput downloads are allowed on the current network at the
+     * current time of day. During the peak hours, the lowest of the network
+     * and peak limits applies.
+     *
+     * @return the limit in bytes per second, or RateLimiter.UNLIMITED
+     */
+    public static long getBandwidthLimit(Context context) {
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        long limit = preferences.getInt(isNetworkMetered(context) ?
+                Constants.PREF_BANDWIDTH_LIMIT_METERED :
+                Constants.PREF_BANDWIDTH_LIMIT_UNMETERED, 0);
+        long peakLimit = preferences.getInt(Constants.PREF_BANDWIDTH_PEAK_LIMIT, 0);
+        int peakStart = preferences.getInt(Constants.PREF_BANDWIDTH_PEAK_START, -1);
+        int peakEnd = preferences.getInt(Constants.PREF_BANDWIDTH_PEAK_END, -1);
+        int hour = Calendar.getInstance().get(Calendar.HOUR_OF_DAY);
+        if (peakLimit > 0 && isHourInRange(hour, peakStart, peakEnd)) {
+            limit = limit > 0 ? Math.min(limit, peakLimit) : peakLimit;
+        }
+        return limit > 0 ? limit * 1024 : RateLimiter.UNLIMITED;
+    }
+
+    /**
+     * Whether the hour is in [start, end), the range wrapping around midnight
+     * if the end comes before the start.
+     */
+    private static boolean isHourInRange(int hour, int start, int end) {
+        if (start < 0 || end < 0 || start == end) {
+            return false;
+        } else if (start < end) {
+            return hour >= start && hour < end;
+        } else {
+            return hour >= start || hour < end;
+        }
+    }
+
     public static void triggerUpdate(Context context, String downloadId) {
         final Intent intent = new Intent(context, UpdaterService.class);
         intent.setAction(UpdaterService.ACTION_INSTALL_UPDATE);
@@ -187,6 +421,50 @@ public class Utils {
         return cm.isActiveNetworkMetered();
     }
 
+    /**
+     * Get the validated networks other than the default one that downloads
+     * can use at the same time, if enabled. Metered networks are only used if
+     * the default one is metered too, or if the user doesn't want to be
+     * warned about mobile data.
+     */
+    public static List<NetworkPath> getNetworkPaths(Context context) {
+        List<NetworkPath> paths = new ArrayList<>();
+        if (!SystemProperties.getBoolean(Constants.PROP_UPDATER_MULTIPATH, false)) {
+            return paths;
+        }
+        ConnectivityManager cm = context.getSystemService(ConnectivityManager.class);
+        Network activeNetwork = cm.getActiveNetwork();
+        if (activeNetwork == null) {
+            return paths;
+        }
+        SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(context);
+        boolean allowMetered = cm.isActiveNetworkMetered() ||
+                !preferences.getBoolean(Constants.PREF_MOBILE_DATA_WARNING, true);
+        for (Network network : cm.getAllNetworks()) {
+            NetworkCapabilities capabilities = cm.getNetworkCapabilities(network);
+            if (network.equals(activeNetwork) || capabilities == null ||
+                    !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET) ||
+                    !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED) ||
+                    capabilities.hasTransport(NetworkCapabilities.TRANSPORT_VPN)) {
+                continue;
+            }
+            if (!allowMetered && !capabilities.hasCapability(
+                    NetworkCapabilities.NET_CAPABILITY_NOT_METERED)) {
+                continue;
+            }
+            String name;
+            if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+                name = "cellular";
+            } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+                name = "Wi-Fi";
+            } else {
+                name = "network " + network;
+            }
+            paths.add(new SystemNetworkPath(network, name));
+        }
+        return paths;
+    }
+
     /**
      * Compares two json formatted updates list files
      *
@@ -299,6 +577,7 @@ public class Utils {
         List<String> knownPaths = new ArrayList<>();
         for (UpdateInfo update : dbHelper.getUpdates()) {
             knownPaths.add(update.getFile().getAbsolutePath());
+            knownPaths.add(SegmentState.getStateFile(update.getFile()).getAbsolutePath());
         }
         for (File file : files) {
             if (!knownPaths.contains(file.getAbsolutePath())) {
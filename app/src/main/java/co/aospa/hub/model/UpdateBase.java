@@ -15,6 +15,8 @@
  */
 package co.aospa.hub.model;
 
+import co.aospa.hub.download.ChunkHashes;
+
 public class UpdateBase implements UpdateBaseInfo {
 
     private String mName;
@@ -24,6 +26,10 @@ public class UpdateBase implements UpdateBaseInfo {
     private String mType;
     private String mVersion;
     private long mFileSize;
+    private ChunkHashes mChunkHashes;
+    private String mSha256;
+    private String mBlockChecksumsUrl;
+    private long mSourceTimestamp;
 
     public UpdateBase() {
     }
@@ -36,6 +42,10 @@ public class UpdateBase implements UpdateBaseInfo {
         mType = update.getType();
         mVersion = update.getVersion();
         mFileSize = update.getFileSize();
+        mChunkHashes = update.getChunkHashes();
+        mSha256 = update.getSha256();
+        mBlockChecksumsUrl = update.getBlockChecksumsUrl();
+        mSourceTimestamp = update.getSourceTimestamp();
     }
 
     @Override
@@ -100,4 +110,40 @@ public class UpdateBase implements UpdateBaseInfo {
     public void setFileSize(long fileSize) {
         mFileSize = fileSize;
     }
+
+    @Override
+    public ChunkHashes getChunkHashes() {
+        return mChunkHashes;
+    }
+
+    public void setChunkHashes(ChunkHashes chunkHashes) {
+        mChunkHashes = chunkHashes;
+    }
+
+    @Override
+    public String getSha256() {
+        return mSha256;
+    }
+
+    public void setSha256(String sha256) {
+        mSha256 = sha256;
+    }
+
+    @Override
+    public String getBlockChecksumsUrl() {
+        return mBlockChecksumsUrl;
+    }
+
+    public void setBlockChecksumsUrl(String blockChecksumsUrl) {
+        mBlockChecksumsUrl = blockChecksumsUrl;
+    }
+
+    @Override
+    public long getSourceTimestamp() {
+        return mSourceTimestamp;
+    }
+
+    public void setSourceTimestamp(long sourceTimestamp) {
+        mSourceTimestamp = sourceTimestamp;
+    }
 }
@@ -15,6 +15,8 @@
  */
 package co.aospa.hub.model;
 
+import co.aospa.hub.download.ChunkHashes;
+
 public interface UpdateBaseInfo {
     String getName();
 
@@ -29,4 +31,16 @@ public interface UpdateBaseInfo {
     String getDownloadUrl();
 
     long getFileSize();
+
+    ChunkHashes getChunkHashes();
+
+    String getSha256();
+
+    String getBlockChecksumsUrl();
+
+    /**
+     * @return the build date of the build an incremental package applies to,
+     *         or 0 for a full package
+     */
+    long getSourceTimestamp();
 }
@@ -21,6 +21,7 @@ public enum UpdateStatus {
     DOWNLOADING,
     PAUSED,
     PAUSED_ERROR,
+    PAUSED_NO_SPACE,
     DELETED,
     VERIFYING,
     VERIFIED,
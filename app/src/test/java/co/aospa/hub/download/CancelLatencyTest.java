@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cancelling downloads whose server stopped sending in the middle of the
+ * body. The connections are the ones of a "stalled" URL scheme that, like
+ * Android's HttpURLConnection, close their socket when disconnected from
+ * another thread. The JDK's leaves the reads blocked until they time out.
+ */
+public class CancelLatencyTest {
+
+    private static final long LENGTH = 64L * 1024 * 1024;
+    // Sent before the server stalls
+    private static final int SENT = 256 * 1024;
+
+    // How long pausing a download may take, and the call to cancel()
+    private static final long MAX_LATENCY_MS = 1000;
+    private static final long MAX_CALL_MS = 100;
+
+    private static ServerSocket sServer;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static final class Callback implements DownloadClient.DownloadCallback {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mCancelled;
+
+        @Override
+        public void onResponse(DownloadClient.Headers headers) {
+        }
+
+        @Override
+        public void onSuccess() {
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailure(boolean cancelled) {
+            mCancelled = cancelled;
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * A connection to sServer, which sends the body of the requested range
+     * without any headers. Those are made up from the request instead.
+     */
+    private static final class StalledConnection extends HttpURLConnection {
+        private Socket mSocket;
+        // Request properties can't be read once connected
+        private String mRange;
+
+        private StalledConnection(URL url) {
+            super(url);
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            if (mSocket == null) {
+                mRange = getRequestProperty("Range");
+                mSocket = new Socket(sServer.getInetAddress(), sServer.getLocalPort());
+                connected = true;
+            }
+        }
+
+        @Override
+        public synchronized void disconnect() {
+            try {
+                if (mSocket != null) {
+                    mSocket.close();
+                }
+            } catch (IOException e) {
+                // Closed anyway
+            }
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+
+        /**
+         * @return the first and last byte requested
+         */
+        private long[] getRange() {
+            if (mRange == null) {
+                return new long[] { 0, LENGTH - 1 };
+            }
+            String[] bounds = mRange.substring("bytes=".length()).split("-", -1);
+            long end = bounds[1].isEmpty() ? LENGTH - 1 : Long.parseLong(bounds[1]);
+            return new long[] { Long.parseLong(bounds[0]), Math.min(end, LENGTH - 1) };
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            connect();
+            return mRange != null ? HTTP_PARTIAL : HTTP_OK;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            long[] range = getRange();
+            switch (name.toLowerCase(Locale.ROOT)) {
+                case "content-length":
+                    return String.valueOf(range[1] + 1 - range[0]);
+                case "content-range":
+                    return mRange == null ? null :
+                            "bytes " + range[0] + "-" + range[1] + "/" + LENGTH;
+                case "accept-ranges":
+                    return "bytes";
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaderFields() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public int getContentLength() {
+            return (int) getContentLengthLong();
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return Long.parseLong(getHeaderField("Content-Length"));
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            connect();
+            return mSocket.getInputStream();
+        }
+    }
+
+    @BeforeClass
+    public static void setUpServer() throws IOException {
+        sServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            try {
+                for (;;) {
+                    Socket socket = sServer.accept();
+                    // Never closed, as the server of a stalled link wouldn't
+                    socket.getOutputStream().write(new byte[SENT]);
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }, "StalledServer");
+        thread.setDaemon(true);
+        thread.start();
+        URL.setURLStreamHandlerFactory(protocol -> !"stalled".equals(protocol) ? null :
+                new URLStreamHandler() {
+                    @Override
+                    protected URLConnection openConnection(URL url) {
+                        return new StalledConnection(url);
+                    }
+                });
+    }
+
+    @AfterClass
+    public static void tearDownServer() throws IOException {
+        sServer.close();
+    }
+
+    private void assertCancelsPromptly(DownloadClient.Builder builder) throws Exception {
+        final CountDownLatch received = new CountDownLatch(1);
+        Callback callback = new Callback();
+        DownloadClient client = builder
+                .setUrl("stalled://127.0.0.1/update.zip")
+                .setDestination(new File(mFolder.getRoot(), "update.zip"))
+                .setDownloadCallback(callback)
+                .setProgressListener((read, total, speed, eta) -> {
+                    if (read > 0) {
+                        received.countDown();
+                    }
+                })
+                .build();
+        client.start();
+        assertTrue("Nothing received", received.await(10, TimeUnit.SECONDS));
+        // Let the reads block on the stalled socket
+        Thread.sleep(200);
+
+        final long start = System.nanoTime();
+        client.cancel();
+        final long callMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("cancel() took " + callMillis + " ms", callMillis < MAX_CALL_MS);
+        assertTrue("Not cancelled after " + MAX_LATENCY_MS + " ms",
+                callback.mDone.await(MAX_LATENCY_MS, TimeUnit.MILLISECONDS));
+        assertTrue(callback.mCancelled);
+    }
+
+    @Test(timeout = 30000)
+    public void cancelsStreamDownload() throws Exception {
+        assertCancelsPromptly(new DownloadClient.Builder());
+    }
+
+    @Test(timeout = 30000)
+    public void cancelsNioDownload() throws Exception {
+        assertCancelsPromptly(new DownloadClient.Builder()
+                .setEngine(DownloadClient.ENGINE_NIO));
+    }
+
+    @Test(timeout = 30000)
+    public void cancelsSegmentedDownload() throws Exception {
+        assertCancelsPromptly(new DownloadClient.Builder()
+                .setSegmented(true));
+    }
+
+    @Test(timeout = 30000)
+    public void cancelsSegmentedNioDownload() throws Exception {
+        assertCancelsPromptly(new DownloadClient.Builder()
+                .setSegmented(true)
+                .setEngine(DownloadClient.ENGINE_NIO));
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * Downloads from an HTTP/2 server on the loopback interface, trusted through
+ * the default SSLContext like a server with a real certificate would be.
+ */
+public class Http2DownloadClientTest {
+
+    private static final char[] KEYSTORE_PASSWORD = "password".toCharArray();
+
+    // Three parts of the 4 MiB the client wants at least for each stream
+    private static final int SIZE = 12 * 1024 * 1024 + 7;
+    private static final int MAX_STREAMS = 4;
+    private static final long TIMEOUT_S = 30;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Server mServer;
+    private File mDestination;
+    private String mUrl;
+
+    private static final class Callback implements DownloadClient.DownloadCallback {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mSucceeded;
+        private volatile boolean mCancelled;
+
+        @Override
+        public void onResponse(DownloadClient.Headers headers) {
+        }
+
+        @Override
+        public void onSuccess() {
+            mSucceeded = true;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailure(boolean cancelled) {
+            mCancelled = cancelled;
+            mDone.countDown();
+        }
+
+        private void await() throws InterruptedException {
+            assertTrue("Timed out", mDone.await(TIMEOUT_S, TimeUnit.SECONDS));
+        }
+    }
+
+    @BeforeClass
+    public static void setUpTls() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Http2DownloadClientTest.class
+                .getResourceAsStream("localhost.p12")) {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        }
+        KeyManagerFactory keyManagers =
+                KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+        TrustManagerFactory trustManagers =
+                TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+        SSLContext.setDefault(context);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new Server(newData(1), "\"1\"");
+        mDestination = new File(mFolder.getRoot(), "update.zip");
+        mUrl = "https://127.0.0.1:" + mServer.getPort() + "/update.zip";
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    private static byte[] newData(long seed) {
+        byte[] data = new byte[SIZE];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    private Http2DownloadClient newClient(Callback callback,
+            DownloadClient.ProgressListener listener) throws IOException {
+        return new Http2DownloadClient(mUrl, mDestination, listener, callback, false, false,
+                null, MAX_STREAMS);
+    }
+
+    /**
+     * Start a download with the first range served slowly and cancel it
+     * once most of the file arrived, from the ranges requested later.
+     */
+    private void downloadWithHole() throws Exception {
+        mServer.mWholeFileDelayMs = 20;
+        final CountDownLatch progress = new CountDownLatch(1);
+        Callback callback = new Callback();
+        Http2DownloadClient client = newClient(callback, (read, total, speed, eta) -> {
+            if (read >= SIZE * 2L / 3) {
+                progress.countDown();
+            }
+        });
+        client.start();
+        assertTrue("Timed out", progress.await(TIMEOUT_S, TimeUnit.SECONDS));
+        client.cancel();
+        callback.await();
+        assertTrue(callback.mCancelled);
+        mServer.mWholeFileDelayMs = 0;
+
+        // The file has its final length but not all of its content
+        assertEquals(SIZE, mDestination.length());
+        SegmentState state = SegmentState.load(mDestination);
+        assertTrue(state != null && !state.isComplete());
+        assertTrue(state.getDownloadedEnd(0) < SIZE / 3);
+    }
+
+    @Test(timeout = 60000)
+    public void downloadsInParallelStreams() throws Exception {
+        Callback callback = new Callback();
+        newClient(callback, null).start();
+        callback.await();
+
+        assertTrue(callback.mSucceeded);
+        assertArrayEquals(mServer.mData, Files.readAllBytes(mDestination.toPath()));
+        assertFalse(SegmentState.getStateFile(mDestination).exists());
+        final long part = SIZE / 3;
+        assertEquals(Arrays.asList(null, "bytes=" + part + "-" + (part * 2 - 1),
+                "bytes=" + part * 2 + "-" + (SIZE - 1)), mServer.getRanges());
+    }
+
+    @Test(timeout = 60000)
+    public void resumesTheMissingRanges() throws Exception {
+        downloadWithHole();
+        final long offset = SegmentState.load(mDestination).getDownloadedEnd(0);
+        mServer.clearRanges();
+
+        Callback callback = new Callback();
+        newClient(callback, null).resume();
+        callback.await();
+
+        assertTrue(callback.mSucceeded);
+        assertArrayEquals(mServer.mData, Files.readAllBytes(mDestination.toPath()));
+        assertFalse(SegmentState.getStateFile(mDestination).exists());
+        // From the first missing byte rather than from the length of the file
+        assertEquals("bytes=" + offset + "-", mServer.getRanges().get(0));
+    }
+
+    @Test(timeout = 60000)
+    public void restartsWhenTheFileChanged() throws Exception {
+        downloadWithHole();
+        mServer.mData = newData(2);
+        mServer.mEtag = "\"2\"";
+
+        Callback callback = new Callback();
+        newClient(callback, null).resume();
+        callback.await();
+
+        assertTrue(callback.mSucceeded);
+        assertArrayEquals(mServer.mData, Files.readAllBytes(mDestination.toPath()));
+        assertFalse(SegmentState.getStateFile(mDestination).exists());
+    }
+
+    /**
+     * Just enough of an HTTP/2 server to send a file or ranges of it, with
+     * flow control, honouring If-Range and If-Match with a strong ETag.
+     */
+    private static final class Server implements AutoCloseable {
+
+        private static final byte[] PREFACE =
+                "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+        private static final int TYPE_DATA = 0x0;
+        private static final int TYPE_HEADERS = 0x1;
+        private static final int TYPE_RST_STREAM = 0x3;
+        private static final int TYPE_SETTINGS = 0x4;
+        private static final int TYPE_PING = 0x6;
+        private static final int TYPE_GOAWAY = 0x7;
+        private static final int TYPE_WINDOW_UPDATE = 0x8;
+
+        private static final int FLAG_END_STREAM = 0x1;
+        private static final int FLAG_ACK = 0x1;
+        private static final int FLAG_END_HEADERS = 0x4;
+
+        private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+        private static final int DEFAULT_WINDOW = 65535;
+        private static final int FRAME_SIZE = 16384;
+
+        private volatile byte[] mData;
+        private volatile String mEtag;
+        // Delay between the frames of responses to requests without a range
+        private volatile long mWholeFileDelayMs;
+
+        private final SSLServerSocket mSocket;
+        private final List<Socket> mConnections = new ArrayList<>();
+        // The Range header of each request, null if there was none
+        private final List<String> mRanges = new ArrayList<>();
+
+        private Server(byte[] data, String etag) throws IOException, GeneralSecurityException {
+            mData = data;
+            mEtag = etag;
+            mSocket = (SSLServerSocket) SSLContext.getDefault().getServerSocketFactory()
+                    .createServerSocket(0, 0, InetAddress.getLoopbackAddress());
+            SSLParameters parameters = mSocket.getSSLParameters();
+            parameters.setApplicationProtocols(new String[] {"h2"});
+            mSocket.setSSLParameters(parameters);
+            Thread thread = new Thread(this::accept, "Http2Server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private int getPort() {
+            return mSocket.getLocalPort();
+        }
+
+        private List<String> getRanges() {
+            synchronized (mRanges) {
+                return new ArrayList<>(mRanges);
+            }
+        }
+
+        private void clearRanges() {
+            synchronized (mRanges) {
+                mRanges.clear();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+            synchronized (mConnections) {
+                for (Socket socket : mConnections) {
+                    socket.close();
+                }
+            }
+        }
+
+        private void accept() {
+            try {
+                for (;;) {
+                    Socket socket = mSocket.accept();
+                    synchronized (mConnections) {
+                        mConnections.add(socket);
+                    }
+                    Thread thread = new Thread(() -> new Connection(socket).run(),
+                            "Http2Connection");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }
+
+        private class Connection {
+            private final Socket mSocket;
+            private final Hpack.Decoder mDecoder = new Hpack.Decoder(4096);
+            private OutputStream mOut;
+
+            // Guarded by this
+            private long mConnectionWindow = DEFAULT_WINDOW;
+            private long mInitialWindow = DEFAULT_WINDOW;
+            private final Map<Integer, long[]> mStreamWindows = new HashMap<>();
+            private boolean mClosed;
+
+            private Connection(Socket socket) {
+                mSocket = socket;
+            }
+
+            private void run() {
+                try {
+                    DataInputStream in = new DataInputStream(mSocket.getInputStream());
+                    mOut = mSocket.getOutputStream();
+                    byte[] preface = new byte[PREFACE.length];
+                    in.readFully(preface);
+                    if (!Arrays.equals(preface, PREFACE)) {
+                        throw new IOException("Not HTTP/2");
+                    }
+                    writeFrame(TYPE_SETTINGS, 0, 0, new byte[0], 0, 0);
+                    for (;;) {
+                        final int length = in.readUnsignedByte() << 16 | in.readUnsignedShort();
+                        final int type = in.readUnsignedByte();
+                        final int flags = in.readUnsignedByte();
+                        final int streamId = in.readInt() & 0x7fffffff;
+                        byte[] payload = new byte[length];
+                        in.readFully(payload);
+                        onFrame(type, flags, streamId, payload);
+                    }
+                } catch (IOException e) {
+                    // The client went away
+                } finally {
+                    synchronized (this) {
+                        mClosed = true;
+                        notifyAll();
+                    }
+                    try {
+                        mSocket.close();
+                    } catch (IOException e) {
+                        // Nothing left to do with it
+                    }
+                }
+            }
+
+            private void onFrame(int type, int flags, int streamId, byte[] payload)
+                    throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(payload);
+                switch (type) {
+                    case TYPE_HEADERS:
+                        // The client sends whole blocks without padding or priority
+                        List<String> headers = mDecoder.decode(payload, payload.length);
+                        synchronized (mRanges) {
+                            mRanges.add(getHeader(headers, "range"));
+                        }
+                        synchronized (this) {
+                            mStreamWindows.put(streamId, new long[] { mInitialWindow });
+                        }
+                        Thread thread = new Thread(() -> respond(streamId, headers),
+                                "Http2Stream" + streamId);
+                        thread.setDaemon(true);
+                        thread.start();
+                        break;
+                    case TYPE_SETTINGS:
+                        if ((flags & FLAG_ACK) != 0) {
+                            break;
+                        }
+                        synchronized (this) {
+                            while (buffer.hasRemaining()) {
+                                int id = buffer.getShort() & 0xffff;
+                                long value = buffer.getInt() & 0xffffffffL;
+                                if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+                                    for (long[] window : mStreamWindows.values()) {
+                                        window[0] += value - mInitialWindow;
+                                    }
+                                    mInitialWindow = value;
+                                }
+                            }
+                            notifyAll();
+                        }
+                        writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+                        break;
+                    case TYPE_WINDOW_UPDATE:
+                        synchronized (this) {
+                            int increment = buffer.getInt() & 0x7fffffff;
+                            if (streamId == 0) {
+                                mConnectionWindow += increment;
+                            } else if (mStreamWindows.containsKey(streamId)) {
+                                mStreamWindows.get(streamId)[0] += increment;
+                            }
+                            notifyAll();
+                        }
+                        break;
+                    case TYPE_RST_STREAM:
+                        synchronized (this) {
+                            mStreamWindows.remove(streamId);
+                            notifyAll();
+                        }
+                        break;
+                    case TYPE_PING:
+                        if ((flags & FLAG_ACK) == 0) {
+                            writeFrame(TYPE_PING, FLAG_ACK, 0, payload, 0, payload.length);
+                        }
+                        break;
+                    case TYPE_GOAWAY:
+                        throw new IOException("GOAWAY");
+                    default:
+                        break;
+                }
+            }
+
+            private String getHeader(List<String> headers, String name) {
+                for (int i = 0; i < headers.size(); i += 2) {
+                    if (headers.get(i).equals(name)) {
+                        return headers.get(i + 1);
+                    }
+                }
+                return null;
+            }
+
+            private void respond(int streamId, List<String> request) {
+                final byte[] data = mData;
+                final String etag = mEtag;
+                final String range = getHeader(request, "range");
+                final String ifRange = getHeader(request, "if-range");
+                final String ifMatch = getHeader(request, "if-match");
+                int status = 200;
+                long start = 0;
+                long end = data.length - 1;
+                if (ifMatch != null && !ifMatch.equals(etag)) {
+                    status = 412;
+                } else if (range != null && (ifRange == null || ifRange.equals(etag))) {
+                    String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                    start = Long.parseLong(bounds[0]);
+                    if (!bounds[1].isEmpty()) {
+                        end = Math.min(end, Long.parseLong(bounds[1]));
+                    }
+                    status = 206;
+                }
+                List<String> headers = new ArrayList<>(Arrays.asList(
+                        ":status", String.valueOf(status), "accept-ranges", "bytes"));
+                if (etag != null) {
+                    headers.add("etag");
+                    headers.add(etag);
+                }
+                if (status == 206) {
+                    headers.add("content-range");
+                    headers.add("bytes " + start + "-" + end + "/" + data.length);
+                }
+                final boolean hasBody = status != 412;
+                if (hasBody) {
+                    headers.add("content-length");
+                    headers.add(String.valueOf(end + 1 - start));
+                }
+                final long delay = range == null ? mWholeFileDelayMs : 0;
+                try {
+                    byte[] block = encode(headers);
+                    writeFrame(TYPE_HEADERS, FLAG_END_HEADERS | (hasBody ? 0 : FLAG_END_STREAM),
+                            streamId, block, 0, block.length);
+                    for (long position = start; hasBody && position <= end; ) {
+                        final int count = reserve(streamId,
+                                (int) Math.min(FRAME_SIZE, end + 1 - position));
+                        if (count < 0) {
+                            return;
+                        }
+                        position += count;
+                        writeFrame(TYPE_DATA, position > end ? FLAG_END_STREAM : 0, streamId,
+                                data, (int) position - count, count);
+                        if (delay > 0) {
+                            Thread.sleep(delay);
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // The client went away
+                } finally {
+                    synchronized (this) {
+                        mStreamWindows.remove(streamId);
+                    }
+                }
+            }
+
+            /**
+             * Wait for the windows to let some of the bytes through.
+             *
+             * @return how many can be sent, or -1 if the stream was reset
+             */
+            private synchronized int reserve(int streamId, int count)
+                    throws InterruptedException {
+                for (;;) {
+                    long[] window = mStreamWindows.get(streamId);
+                    if (window == null || mClosed) {
+                        return -1;
+                    }
+                    final long available = Math.min(window[0], mConnectionWindow);
+                    if (available > 0) {
+                        final int reserved = (int) Math.min(count, available);
+                        window[0] -= reserved;
+                        mConnectionWindow -= reserved;
+                        return reserved;
+                    }
+                    wait();
+                }
+            }
+
+            private synchronized void writeFrame(int type, int flags, int streamId,
+                    byte[] payload, int offset, int length) throws IOException {
+                ByteBuffer header = ByteBuffer.allocate(9);
+                header.put((byte) (length >>> 16)).putShort((short) length);
+                header.put((byte) type).put((byte) flags).putInt(streamId);
+                mOut.write(header.array());
+                mOut.write(payload, offset, length);
+                mOut.flush();
+            }
+        }
+
+        /**
+         * Encode headers as literals without indexing, with new names.
+         */
+        private static byte[] encode(List<String> headers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (int i = 0; i < headers.size(); i += 2) {
+                out.write(0);
+                writeString(out, headers.get(i));
+                writeString(out, headers.get(i + 1));
+            }
+            return out.toByteArray();
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.ISO_8859_1);
+            int length = bytes.length;
+            if (length < 0x7f) {
+                out.write(length);
+            } else {
+                out.write(0x7f);
+                length -= 0x7f;
+                while (length >= 0x80) {
+                    out.write((length & 0x7f) | 0x80);
+                    length >>>= 7;
+                }
+                out.write(length);
+            }
+            out.write(bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+
+public class NetworkErrorsTest {
+
+    @Test
+    public void connectionLosses() {
+        assertTrue(NetworkErrors.isConnectionLost(new UnknownHostException("example.com")));
+        assertTrue(NetworkErrors.isConnectionLost(new ConnectException("Network unreachable")));
+        assertTrue(NetworkErrors.isConnectionLost(new SocketTimeoutException()));
+        assertTrue(NetworkErrors.isConnectionLost(new EOFException()));
+        // Through the exception the segments were failed with
+        assertTrue(NetworkErrors.isConnectionLost(
+                new IOException("No mirror left", new ConnectException())));
+    }
+
+    @Test
+    public void otherFailures() {
+        assertFalse(NetworkErrors.isConnectionLost(new IOException("Server replied with 404")));
+        assertFalse(NetworkErrors.isConnectionLost(new IOException("Digest mismatch")));
+        assertFalse(NetworkErrors.isConnectionLost(new IOException("Download incomplete")));
+    }
+}
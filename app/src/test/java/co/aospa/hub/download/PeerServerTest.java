@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Requests to a PeerServer on the loopback interface, over a single
+ * connection kept alive between them unless the server closes it.
+ */
+public class PeerServerTest {
+
+    private static final String ID = "update/1";
+    private static final int SIZE = 100 * 1024 + 7;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private byte[] mData;
+    private PeerServer mServer;
+    private String mPath;
+    private Socket mSocket;
+
+    private static final class Response {
+        private int mStatus;
+        private final Map<String, String> mHeaders = new HashMap<>();
+        private byte[] mBody;
+
+        private String header(String name) {
+            return mHeaders.get(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mData = new byte[SIZE];
+        new Random(42).nextBytes(mData);
+        File file = mFolder.newFile("package.zip");
+        Files.write(file.toPath(), mData);
+        mServer = new PeerServer(id -> ID.equals(id) ? file : null);
+        int port = mServer.start(0);
+        String url = PeerServer.getUrl("127.0.0.1", port, ID);
+        mPath = url.substring(url.indexOf('/', "http://".length()));
+        mSocket = new Socket("127.0.0.1", port);
+        mSocket.setSoTimeout(5000);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mSocket.close();
+        mServer.stop();
+    }
+
+    private Response request(String method, String path, String... headers)
+            throws IOException {
+        StringBuilder request = new StringBuilder(method + " " + path + " HTTP/1.1\r\n");
+        request.append("Host: 127.0.0.1\r\n");
+        for (String header : headers) {
+            request.append(header).append("\r\n");
+        }
+        request.append("\r\n");
+        OutputStream out = mSocket.getOutputStream();
+        out.write(request.toString().getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        InputStream in = mSocket.getInputStream();
+        Response response = new Response();
+        String statusLine = readLine(in);
+        response.mStatus = Integer.parseInt(statusLine.split(" ")[1]);
+        String line;
+        while (!(line = readLine(in)).isEmpty()) {
+            int colon = line.indexOf(':');
+            response.mHeaders.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT),
+                    line.substring(colon + 1).trim());
+        }
+        int length = method.equals("HEAD") ? 0 :
+                Integer.parseInt(response.header("Content-Length"));
+        response.mBody = new byte[length];
+        for (int read = 0; read < length; ) {
+            int count = in.read(response.mBody, read, length - read);
+            if (count < 0) {
+                throw new IOException("Truncated body");
+            }
+            read += count;
+        }
+        return response;
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                throw new IOException("Connection closed");
+            }
+            line.write(c);
+        }
+        String s = new String(line.toByteArray(), StandardCharsets.US_ASCII);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    private byte[] slice(long start, long end) {
+        return Arrays.copyOfRange(mData, (int) start, (int) end);
+    }
+
+    @Test
+    public void servesWholePackage() throws IOException {
+        Response response = request("GET", mPath);
+        assertEquals(200, response.mStatus);
+        assertEquals("bytes", response.header("Accept-Ranges"));
+        assertNull(response.header("Content-Range"));
+        assertArrayEquals(mData, response.mBody);
+    }
+
+    @Test
+    public void headHasNoBody() throws IOException {
+        Response response = request("HEAD", mPath);
+        assertEquals(200, response.mStatus);
+        assertEquals(String.valueOf(SIZE), response.header("Content-Length"));
+        // The connection is still usable, so nothing was sent after the headers
+        assertEquals(200, request("GET", mPath).mStatus);
+    }
+
+    @Test
+    public void servesRanges() throws IOException {
+        Response response = request("GET", mPath, "Range: bytes=100-199");
+        assertEquals(206, response.mStatus);
+        assertEquals("bytes 100-199/" + SIZE, response.header("Content-Range"));
+        assertArrayEquals(slice(100, 200), response.mBody);
+
+        response = request("GET", mPath, "Range: bytes=" + (SIZE - 10) + "-");
+        assertEquals(206, response.mStatus);
+        assertArrayEquals(slice(SIZE - 10, SIZE), response.mBody);
+
+        // The end is clamped to the last byte
+        response = request("GET", mPath, "Range: bytes=5-" + (SIZE * 2));
+        assertEquals(206, response.mStatus);
+        assertEquals("bytes 5-" + (SIZE - 1) + "/" + SIZE, response.header("Content-Range"));
+        assertArrayEquals(slice(5, SIZE), response.mBody);
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRanges() throws IOException {
+        Response response = request("GET", mPath, "Range: bytes=" + SIZE + "-");
+        assertEquals(416, response.mStatus);
+        assertEquals("bytes */" + SIZE, response.header("Content-Range"));
+
+        response = request("GET", mPath, "Range: bytes=200-100");
+        assertEquals(416, response.mStatus);
+    }
+
+    @Test
+    public void survivesOverflowingRanges() throws IOException {
+        Response response = request("GET", mPath, "Range: bytes=99999999999999999999-");
+        assertEquals(416, response.mStatus);
+
+        response = request("GET", mPath, "Range: bytes=10-99999999999999999999");
+        assertEquals(206, response.mStatus);
+        assertArrayEquals(slice(10, SIZE), response.mBody);
+    }
+
+    @Test
+    public void ignoresMalformedRanges() throws IOException {
+        Response response = request("GET", mPath, "Range: bytes=-500");
+        assertEquals(200, response.mStatus);
+        assertArrayEquals(mData, response.mBody);
+    }
+
+    @Test
+    public void honoursIfRange() throws IOException {
+        String etag = request("HEAD", mPath).header("ETag");
+
+        Response response = request("GET", mPath, "Range: bytes=0-9", "If-Range: " + etag);
+        assertEquals(206, response.mStatus);
+        assertArrayEquals(slice(0, 10), response.mBody);
+
+        // Another representation, the whole package is sent instead
+        response = request("GET", mPath, "Range: bytes=0-9", "If-Range: \"other\"");
+        assertEquals(200, response.mStatus);
+        assertArrayEquals(mData, response.mBody);
+    }
+
+    @Test
+    public void rejectsUnknownPackages() throws IOException {
+        assertEquals(404, request("GET", "/other").mStatus);
+        assertEquals(404, request("GET", "/").mStatus);
+        assertEquals(405, request("POST", mPath).mStatus);
+    }
+
+    @Test
+    public void dropsPeersOutsideTheLocalNetwork() throws IOException {
+        for (String address : new String[] { "127.0.0.1", "10.1.2.3", "172.16.0.9",
+                "192.168.1.20", "169.254.7.7", "fe80::1", "fd00::5" }) {
+            assertTrue(address, PeerServer.isLocalAddress(InetAddress.getByName(address)));
+        }
+        // Public, and carrier-grade NAT that mobile networks share
+        for (String address : new String[] { "8.8.8.8", "100.64.0.1", "2001:db8::1" }) {
+            assertFalse(address, PeerServer.isLocalAddress(InetAddress.getByName(address)));
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts what the threads of a download allocate while they read the body
+ * and report its progress, once the transfer is steady.
+ */
+public class ProgressAllocationTest {
+
+    private static final long LENGTH = 64L * 1024 * 1024;
+    private static final int WARM_UP_DOWNLOADS = 5;
+    // Segmented downloads report their progress twice a second, so the
+    // server is slowed down for them to report it a few times
+    private static final long SEGMENTED_CHUNK_DELAY_MS = 5;
+    private static final int SEGMENTS = 2;
+    private static final int MEASURED_DOWNLOADS = 3;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private com.sun.management.ThreadMXBean mThreads;
+    private ServerSocket mServer;
+    private volatile long mChunkDelayMs;
+    // Not part of the download, so not sampled
+    private final Set<Long> mServerThreads = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Samples the allocations of the thread reporting the progress, from the
+     * listener itself, between a quarter and three quarters of the file.
+     * Only primitive fields are touched, so that it doesn't allocate either.
+     */
+    private final class Listener implements DownloadClient.ProgressListener {
+        private long mStartBytes = -1;
+        private long mEndBytes = -1;
+        private long mUpdates;
+        private long mSteadyUpdates;
+
+        // Read by the test thread, which samples the other threads
+        private volatile long mBytesRead;
+
+        @Override
+        public void update(long bytesRead, long contentLength, long speed, long eta) {
+            mBytesRead = bytesRead;
+            mUpdates++;
+            if (mStartBytes < 0 && bytesRead >= LENGTH / 4) {
+                mSteadyUpdates = -mUpdates;
+                mStartBytes = mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            } else if (mStartBytes >= 0 && mEndBytes < 0 && bytesRead >= LENGTH * 3 / 4) {
+                mEndBytes = mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                mSteadyUpdates += mUpdates;
+            }
+        }
+    }
+
+    private static final class Callback implements DownloadClient.DownloadCallback {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mSucceeded;
+
+        @Override
+        public void onResponse(DownloadClient.Headers headers) {
+        }
+
+        @Override
+        public void onSuccess() {
+            mSucceeded = true;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailure(boolean cancelled) {
+            mDone.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        assumeTrue(ManagementFactory.getThreadMXBean()
+                instanceof com.sun.management.ThreadMXBean);
+        mThreads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+
+        mServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            try {
+                for (;;) {
+                    final Socket socket = mServer.accept();
+                    Thread connection = new Thread(() -> serve(socket), "BodyServer");
+                    mServerThreads.add(connection.getId());
+                    connection.setDaemon(true);
+                    connection.start();
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }, "BodyServerAcceptor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    /**
+     * Answer a request with LENGTH zeroes, or the range of them it asks for.
+     */
+    private void serve(Socket socket) {
+        final byte[] chunk = new byte[64 * 1024];
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    s.getInputStream(), StandardCharsets.US_ASCII));
+            String range = null;
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                if (line.toLowerCase(Locale.ROOT).startsWith("range:")) {
+                    range = line.substring("range:".length()).trim();
+                }
+            }
+            long start = 0;
+            long end = LENGTH - 1;
+            String status = "200 OK";
+            String contentRange = "";
+            if (range != null) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                status = "206 Partial Content";
+                contentRange = "Content-Range: bytes " + start + "-" + end + "/" + LENGTH +
+                        "\r\n";
+            }
+            OutputStream out = s.getOutputStream();
+            out.write(("HTTP/1.1 " + status + "\r\nContent-Length: " + (end + 1 - start) +
+                    "\r\nAccept-Ranges: bytes\r\n" + contentRange +
+                    "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            for (long sent = start; sent <= end; sent += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, end + 1 - sent));
+                if (mChunkDelayMs > 0) {
+                    Thread.sleep(mChunkDelayMs);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client went away
+        }
+    }
+
+    private Callback start(DownloadClient.Builder builder, Listener listener)
+            throws Exception {
+        Callback callback = new Callback();
+        builder.setUrl("http://127.0.0.1:" + mServer.getLocalPort() + "/update.zip")
+                .setDestination(new File(mFolder.getRoot(), "update.zip"))
+                .setDownloadCallback(callback)
+                .setProgressListener(listener)
+                .build()
+                .start();
+        return callback;
+    }
+
+    private static void await(Callback callback) throws InterruptedException {
+        assertTrue("Timed out", callback.mDone.await(60, TimeUnit.SECONDS));
+        assertTrue(callback.mSucceeded);
+    }
+
+    private void download(DownloadClient.Builder builder, Listener listener)
+            throws Exception {
+        await(start(builder, listener));
+    }
+
+    private static void awaitBytes(Listener listener, Callback callback, long bytes)
+            throws InterruptedException {
+        while (listener.mBytesRead < bytes) {
+            assertTrue("Finished early", callback.mDone.getCount() > 0);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @return what each thread started since the given ones allocated so far,
+     *         leaving out those of the server
+     */
+    private Map<Long, Long> getAllocatedBytes(Map<Long, Long> excluded) {
+        Map<Long, Long> allocated = new HashMap<>();
+        for (long id : mThreads.getAllThreadIds()) {
+            long bytes = mThreads.getThreadAllocatedBytes(id);
+            if (bytes >= 0 && !mServerThreads.contains(id) &&
+                    (excluded == null || !excluded.containsKey(id))) {
+                allocated.put(id, bytes);
+            }
+        }
+        return allocated;
+    }
+
+    private void assertSteadyTransferDoesNotAllocate(DownloadClient.Builder builder)
+            throws Exception {
+        // Warm up first: what the JIT compiler does meanwhile shows up in the
+        // allocations of the thread, and so do the classes it loads
+        for (int i = 0; i < WARM_UP_DOWNLOADS; i++) {
+            download(builder, new Listener());
+        }
+        // The compiled code can still be thrown away now and then, and the
+        // objects it had done without are then allocated once, by whichever
+        // thread runs it. What is allocated per chunk shows up every time.
+        long allocated = -1;
+        for (int i = 0; i < MEASURED_DOWNLOADS && allocated != 0; i++) {
+            Listener listener = new Listener();
+            download(builder, listener);
+            assertTrue("Only " + listener.mSteadyUpdates + " updates",
+                    listener.mSteadyUpdates >= 100);
+            allocated = listener.mEndBytes - listener.mStartBytes;
+        }
+        assertEquals("Bytes allocated", 0, allocated);
+    }
+
+    @Test(timeout = 120000)
+    public void streamDownloadDoesNotAllocate() throws Exception {
+        assertSteadyTransferDoesNotAllocate(new DownloadClient.Builder());
+    }
+
+    @Test(timeout = 120000)
+    public void nioDownloadDoesNotAllocate() throws Exception {
+        assertSteadyTransferDoesNotAllocate(new DownloadClient.Builder()
+                .setEngine(DownloadClient.ENGINE_NIO));
+    }
+
+    /**
+     * The segments are read by threads of their own while another one
+     * reports the progress, tunes and journals the download, so all of the
+     * threads of the download are sampled, from the test thread.
+     */
+    private void assertSteadySegmentedTransferDoesNotAllocate(DownloadClient.Builder builder)
+            throws Exception {
+        builder.setSegmented(true).setMaxSegments(SEGMENTS);
+        // At the same pace, for the compiled code not to meet branches it
+        // hasn't seen yet, which makes it fall back to the interpreter
+        mChunkDelayMs = SEGMENTED_CHUNK_DELAY_MS;
+        for (int i = 0; i < WARM_UP_DOWNLOADS; i++) {
+            download(builder, new Listener());
+        }
+        // Measured again when something was allocated once, as above
+        long allocated = -1;
+        for (int i = 0; i < MEASURED_DOWNLOADS && allocated != 0; i++) {
+            allocated = measureSegmentedTransfer(builder);
+        }
+        assertEquals("Bytes allocated", 0, allocated);
+    }
+
+    /**
+     * @return what the threads of the download allocated in between a
+     *         quarter and three quarters of the file
+     */
+    private long measureSegmentedTransfer(DownloadClient.Builder builder) throws Exception {
+        final Map<Long, Long> before = getAllocatedBytes(null);
+        Listener listener = new Listener();
+        Callback callback = start(builder, listener);
+        awaitBytes(listener, callback, LENGTH / 4);
+        final long startUpdates = listener.mUpdates;
+        final Map<Long, Long> start = getAllocatedBytes(before);
+        awaitBytes(listener, callback, LENGTH * 3 / 4);
+        final Map<Long, Long> end = getAllocatedBytes(before);
+        final long updates = listener.mUpdates - startUpdates;
+        await(callback);
+
+        // Threads started meanwhile count with all they allocated
+        long allocated = 0;
+        for (Map.Entry<Long, Long> thread : end.entrySet()) {
+            Long startBytes = start.get(thread.getKey());
+            allocated += thread.getValue() - (startBytes != null ? startBytes : 0);
+        }
+        assertTrue("Only " + updates + " updates", updates >= 3);
+        return allocated;
+    }
+
+    @Test(timeout = 120000)
+    public void segmentedDownloadDoesNotAllocate() throws Exception {
+        assertSteadySegmentedTransferDoesNotAllocate(new DownloadClient.Builder());
+    }
+
+    @Test(timeout = 120000)
+    public void segmentedNioDownloadDoesNotAllocate() throws Exception {
+        assertSteadySegmentedTransferDoesNotAllocate(new DownloadClient.Builder()
+                .setEngine(DownloadClient.ENGINE_NIO));
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiterTest {
+
+    private static final long RATE = 10 * 1024 * 1024;
+
+    /**
+     * Pretend that the limiter was last refilled the given time ago.
+     */
+    private static void idle(RateLimiter limiter, long minutes) throws Exception {
+        Field field = RateLimiter.class.getDeclaredField("mLastRefillNanos");
+        field.setAccessible(true);
+        field.setLong(limiter, System.nanoTime() - TimeUnit.MINUTES.toNanos(minutes));
+    }
+
+    private static long acquireMillis(RateLimiter limiter, int bytes) throws Exception {
+        final long start = System.nanoTime();
+        limiter.acquire(bytes);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test(timeout = 10000)
+    public void fillsUpAfterLongIdle() throws Exception {
+        for (long minutes : new long[] { 1, 16, 60, 24 * 60 }) {
+            RateLimiter limiter = new RateLimiter();
+            limiter.setRate(RATE);
+            idle(limiter, minutes);
+            // A full bucket lets a quarter of a second through right away
+            long millis = acquireMillis(limiter, (int) (RATE / 4));
+            assertTrue("Waited " + millis + " ms after " + minutes + " min", millis < 50);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void capsTheRate() throws Exception {
+        RateLimiter limiter = new RateLimiter();
+        limiter.setRate(RATE);
+        idle(limiter, 60);
+        final long start = System.nanoTime();
+        // The burst, then a second worth of bytes
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire((int) (RATE / 4));
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Took " + millis + " ms", millis >= 900 && millis < 1500);
+    }
+}
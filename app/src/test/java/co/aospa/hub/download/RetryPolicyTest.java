@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+    @Test
+    public void limitsTheRetriesWithoutProgress() {
+        RetryPolicy policy = new RetryPolicy(3);
+        assertTrue(policy.getDelay(3, 3, -1) >= 0);
+        assertEquals(-1, policy.getDelay(4, 4, -1));
+    }
+
+    @Test
+    public void limitsTheRetriesInAll() {
+        RetryPolicy policy = new RetryPolicy(3);
+        // Every attempt received something, so each one is the first retry
+        for (int attempt = 1; attempt <= policy.getMaxAttempts(); attempt++) {
+            assertTrue(policy.getDelay(1, attempt, -1) >= 0);
+        }
+        assertEquals(-1, policy.getDelay(1, policy.getMaxAttempts() + 1, -1));
+    }
+
+    @Test
+    public void neverRetriesWithoutPolicy() {
+        assertEquals(-1, RetryPolicy.NONE.getDelay(1, 1, -1));
+    }
+}
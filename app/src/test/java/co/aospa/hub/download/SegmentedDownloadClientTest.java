@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2026 The LineageOS Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package co.aospa.hub.download;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Segmented downloads that have to start over, against a loopback server.
+ */
+public class SegmentedDownloadClientTest {
+
+    private static final long LENGTH = 8L * 1024 * 1024;
+    private static final int CHUNK = 64 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private ServerSocket mServer;
+    // Requests without If-Range, which each attempt starts with
+    private final AtomicInteger mFirstRequests = new AtomicInteger();
+    private final AtomicInteger mVersion = new AtomicInteger();
+    // Whether every request sees a new version of the file
+    private volatile boolean mChanging;
+
+    private static final class Callback implements DownloadClient.DownloadCallback {
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mSucceeded;
+        private volatile boolean mCancelled;
+
+        @Override
+        public void onResponse(DownloadClient.Headers headers) {
+        }
+
+        @Override
+        public void onSuccess() {
+            mSucceeded = true;
+            mDone.countDown();
+        }
+
+        @Override
+        public void onFailure(boolean cancelled) {
+            mCancelled = cancelled;
+            mDone.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(() -> {
+            try {
+                for (;;) {
+                    final Socket socket = mServer.accept();
+                    new Thread(() -> serve(socket), "FileServer").start();
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }, "FileServerAcceptor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    /**
+     * Serve LENGTH zeroes, or the requested range of them unless If-Range
+     * names another version, slowly enough for the other segments to start.
+     */
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    s.getInputStream(), StandardCharsets.US_ASCII));
+            String range = null;
+            String ifRange = null;
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                String lower = line.toLowerCase(Locale.ROOT);
+                if (lower.startsWith("range:")) {
+                    range = line.substring("range:".length()).trim();
+                } else if (lower.startsWith("if-range:")) {
+                    ifRange = line.substring("if-range:".length()).trim();
+                }
+            }
+            if (ifRange == null) {
+                mFirstRequests.incrementAndGet();
+            }
+            final String etag = "\"v" + (mChanging ? mVersion.incrementAndGet() : mVersion.get())
+                    + "\"";
+            long start = 0;
+            long end = LENGTH - 1;
+            boolean partial = range != null && (ifRange == null || ifRange.equals(etag));
+            if (partial) {
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+            }
+            StringBuilder headers = new StringBuilder()
+                    .append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n")
+                    .append("Content-Length: ").append(end + 1 - start).append("\r\n")
+                    .append("Accept-Ranges: bytes\r\n")
+                    .append("ETag: ").append(etag).append("\r\n")
+                    .append("Connection: close\r\n");
+            if (partial) {
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end)
+                        .append('/').append(LENGTH).append("\r\n");
+            }
+            OutputStream out = s.getOutputStream();
+            out.write(headers.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII));
+            final byte[] chunk = new byte[CHUNK];
+            for (long sent = start; sent <= end; sent += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, end + 1 - sent));
+                Thread.sleep(1);
+            }
+        } catch (IOException | InterruptedException e) {
+            // The client went away
+        }
+    }
+
+    private Callback download(DownloadClient.Builder builder) throws Exception {
+        Callback callback = new Callback();
+        builder.setUrl("http://127.0.0.1:" + mServer.getLocalPort() + "/update.zip")
+                .setDestination(new File(mFolder.getRoot(), "update.zip"))
+                .setDownloadCallback(callback)
+                .setSegmented(true)
+                .build()
+                .start();
+        assertTrue("Timed out", callback.mDone.await(60, TimeUnit.SECONDS));
+        return callback;
+    }
+
+    @Test(timeout = 120000)
+    public void failsOnDigestMismatch() throws Exception {
+        // Not the SHA-256 of LENGTH zeroes
+        StringBuilder sha256 = new StringBuilder();
+        for (int i = 0; i < 64; i++) {
+            sha256.append('0');
+        }
+        Callback callback = download(new DownloadClient.Builder()
+                .setRetryPolicy(new RetryPolicy(8, 1, 1))
+                .setSha256(sha256.toString()));
+
+        assertFalse(callback.mSucceeded);
+        assertFalse(callback.mCancelled);
+        // Downloading it again wouldn't have changed its digest
+        assertEquals(1, mFirstRequests.get());
+    }
+
+    @Test(timeout = 120000)
+    public void givesUpWhenTheFileKeepsChanging() throws Exception {
+        mChanging = true;
+        RetryPolicy policy = new RetryPolicy(1, 1, 1);
+        Callback callback = download(new DownloadClient.Builder()
+                .setRetryPolicy(policy));
+
+        assertFalse(callback.mSucceeded);
+        assertFalse(callback.mCancelled);
+        // Every attempt made progress, only the total number of them is capped
+        assertEquals(policy.getMaxAttempts() + 1, mFirstRequests.get());
+    }
+}